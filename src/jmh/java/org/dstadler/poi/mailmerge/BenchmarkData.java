@@ -0,0 +1,204 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+/**
+ * Generates synthetic data-files for the benchmarks, the rows are
+ * built from the sample data with a fixed seed, so all runs use the
+ * same input.
+ */
+final class BenchmarkData {
+    /**
+     * The directory of the project, set by the build so that the forked
+     * benchmark-JVMs find the sample files.
+     */
+    static final File BASE_DIR = new File(System.getProperty("org.dstadler.poi.mailmerge.basedir", "."));
+
+    static final File SAMPLES = new File(BASE_DIR, "samples");
+    static final File DIR = new File(BASE_DIR, "build/jmh-data");
+
+    // the formats of the numeric cells, see writeNumeric()
+    private static final String[] NUMBER_FORMATS = {
+            "General", "0", "0.00", "#,##0", "#,##0.00", "0%", "0.00E+00", "yyyy-mm-dd", "00000", "#,##0.00_);(#,##0.00)"
+    };
+
+    // keep a reference, otherwise the level is lost when the logger is garbage collected
+    private static final Logger PACKAGE_LOG = Logger.getLogger("org.dstadler.poi.mailmerge");
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Logging of each row would dominate the measurements.
+     */
+    static void disableLogging() {
+        PACKAGE_LOG.setLevel(Level.WARNING);
+    }
+
+    /**
+     * @return The rows of the sample data, without headers
+     */
+    static Data readSample() throws IOException {
+        Data data = new Data();
+        data.read(new File(SAMPLES, "Lines.csv"));
+        return data;
+    }
+
+    /**
+     * Write a data-file with the headers of the sample data and the given number of rows.
+     *
+     * @param format One of csv, xls or xlsx
+     * @param rows The number of rows besides the header
+     * @return The file, it is only written once for each format and size
+     */
+    static File write(String format, int rows) throws IOException {
+        File file = new File(DIR, "Lines-" + rows + "." + format);
+        if (file.exists()) {
+            return file;
+        }
+
+        if (!DIR.exists() && !DIR.mkdirs()) {
+            throw new IOException("Could not create directory " + DIR);
+        }
+
+        Data sample = readSample();
+        List<List<String>> values = generate(sample, rows);
+        switch (format) {
+            case "csv" -> writeCSV(file, sample.getHeaders(), values);
+            case "xls" -> writeExcel(new HSSFWorkbook(), file, sample.getHeaders(), values);
+            case "xlsx" -> writeExcel(new SXSSFWorkbook(), file, sample.getHeaders(), values);
+            default -> throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+        return file;
+    }
+
+    /**
+     * Build the given number of rows by varying the rows of the sample data.
+     */
+    static List<List<String>> generate(Data sample, int rows) {
+        Random random = new Random(42);
+        List<List<String>> values = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            List<String> row = new ArrayList<>(sample.getData().get(i % sample.getData().size()));
+            row.set(0, row.get(0) + " " + i);
+            row.set(3, Integer.toString(10000 + random.nextInt(90000)));
+            values.add(row);
+        }
+        return values;
+    }
+
+    /**
+     * Write an Excel-file where all cells are numbers with a variety of
+     * formats, e.g. to measure formatting of numeric cells.
+     *
+     * @param format One of xls or xlsx
+     * @param rows The number of rows besides the header
+     * @return The file, it is only written once for each format and size
+     */
+    static File writeNumeric(String format, int rows) throws IOException {
+        File file = new File(DIR, "Numbers-" + rows + "." + format);
+        if (file.exists()) {
+            return file;
+        }
+
+        if (!DIR.exists() && !DIR.mkdirs()) {
+            throw new IOException("Could not create directory " + DIR);
+        }
+
+        Workbook wb = switch (format) {
+            case "xls" -> new HSSFWorkbook();
+            case "xlsx" -> new SXSSFWorkbook();
+            default -> throw new IllegalArgumentException("Unsupported format: " + format);
+        };
+        try (wb) {
+            Sheet sheet = wb.createSheet();
+
+            // one column per format, the values are re-used by all rows of a column
+            CellStyle[] styles = new CellStyle[NUMBER_FORMATS.length];
+            Row header = sheet.createRow(0);
+            for (int col = 0; col < NUMBER_FORMATS.length; col++) {
+                header.createCell(col).setCellValue("Number" + col);
+                styles[col] = wb.createCellStyle();
+                styles[col].setDataFormat(wb.createDataFormat().getFormat(NUMBER_FORMATS[col]));
+            }
+
+            Random random = new Random(42);
+            for (int rowNum = 1; rowNum <= rows; rowNum++) {
+                Row row = sheet.createRow(rowNum);
+                for (int col = 0; col < NUMBER_FORMATS.length; col++) {
+                    // dates need a value within the supported range
+                    double value = NUMBER_FORMATS[col].startsWith("yyyy") ?
+                            40000 + random.nextInt(10000) :
+                            random.nextDouble() * 100000;
+                    row.createCell(col).setCellValue(value);
+                    row.getCell(col).setCellStyle(styles[col]);
+                }
+            }
+
+            try (OutputStream out = new FileOutputStream(file)) {
+                wb.write(out);
+            }
+        }
+        return file;
+    }
+
+    private static void writeCSV(File file, List<String> headers, List<List<String>> values) throws IOException {
+        try (Writer writer = new FileWriter(file, StandardCharsets.UTF_8);
+             CSVPrinter printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+            printer.printRecord(headers);
+            printer.printRecords(values);
+        }
+    }
+
+    private static void writeExcel(Workbook wb, File file, List<String> headers, List<List<String>> values) throws IOException {
+        try (wb) {
+            Sheet sheet = wb.createSheet();
+
+            // the zip-code is stored as number to also measure formatting of numeric cells
+            CellStyle zipStyle = wb.createCellStyle();
+            zipStyle.setDataFormat(wb.createDataFormat().getFormat("00000"));
+
+            Row header = sheet.createRow(0);
+            for (int col = 0; col < headers.size(); col++) {
+                header.createCell(col).setCellValue(headers.get(col));
+            }
+
+            for (int rowNum = 0; rowNum < values.size(); rowNum++) {
+                Row row = sheet.createRow(rowNum + 1);
+                List<String> rowValues = values.get(rowNum);
+                for (int col = 0; col < rowValues.size(); col++) {
+                    if (col == 3) {
+                        row.createCell(col).setCellValue(Integer.parseInt(rowValues.get(col)));
+                        row.getCell(col).setCellStyle(zipStyle);
+                    } else {
+                        row.createCell(col).setCellValue(rowValues.get(col));
+                    }
+                }
+            }
+
+            try (OutputStream out = new FileOutputStream(file)) {
+                wb.write(out);
+            }
+        }
+    }
+}
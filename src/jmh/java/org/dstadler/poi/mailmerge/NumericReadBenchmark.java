@@ -0,0 +1,56 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Reading Excel-files where all cells are numbers with ten different formats,
+ * 50000 rows result in 500000 formatted cells, so the formatting of the values
+ * dominates the measurement. With <code>cacheFormats=false</code> the
+ * formatter is looked up for each cell instead of once per cell-style.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NumericReadBenchmark {
+    @Param({"xls", "xlsx"})
+    public String format;
+
+    @Param({"50000"})
+    public int rows;
+
+    @Param({"true", "false"})
+    public boolean cacheFormats;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkData.disableLogging();
+        file = BenchmarkData.writeNumeric(format, rows);
+        RowSource.cacheFormats = cacheFormats;
+    }
+
+    @TearDown
+    public void tearDown() {
+        RowSource.cacheFormats = true;
+    }
+
+    @Benchmark
+    public Data read() throws IOException {
+        Data data = new Data();
+        data.read(file);
+        return data;
+    }
+}
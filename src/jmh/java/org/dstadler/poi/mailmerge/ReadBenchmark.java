@@ -0,0 +1,43 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Reading the data-file into memory for the supported file-formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReadBenchmark {
+    @Param({"csv", "xls", "xlsx"})
+    public String format;
+
+    @Param({"1000", "10000", "50000"})
+    public int rows;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkData.disableLogging();
+        file = BenchmarkData.write(format, rows);
+    }
+
+    @Benchmark
+    public Data read() throws IOException {
+        Data data = new Data();
+        data.read(file);
+        return data;
+    }
+}
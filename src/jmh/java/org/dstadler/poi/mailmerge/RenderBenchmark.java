@@ -0,0 +1,71 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Replacing the template-markers for one row, for a varying number of
+ * headers and size of the template.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RenderBenchmark {
+    @Param({"6", "20", "100"})
+    public int headers;
+
+    // how often the body of the sample template is repeated
+    @Param({"1", "10"})
+    public int templateCopies;
+
+    private String source;
+    private List<String> headerNames;
+    private CompiledTemplate template;
+    private List<String> row;
+    private final StringBuilder buffer = new StringBuilder();
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkData.disableLogging();
+
+        Data sample = BenchmarkData.readSample();
+        headerNames = new ArrayList<>(sample.getHeaders());
+        row = new ArrayList<>(sample.getData().get(0));
+
+        // additional columns are referenced by one paragraph each
+        StringBuilder extra = new StringBuilder();
+        for (int i = headerNames.size(); i < headers; i++) {
+            headerNames.add("Column" + i);
+            row.add("Value " + i);
+            extra.append("<w:p><w:r><w:t>${Column").append(i).append("}</w:t></w:r></w:p>");
+        }
+
+        String body = TemplatePackage.load(new File(BenchmarkData.SAMPLES, "Template.docx")).getBody();
+        source = (body + extra).repeat(templateCopies);
+        template = CompiledTemplate.compile(source, headerNames);
+    }
+
+    @Benchmark
+    public StringBuilder render() {
+        buffer.setLength(0);
+        template.render(row, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public CompiledTemplate compile() {
+        return CompiledTemplate.compile(source, headerNames);
+    }
+}
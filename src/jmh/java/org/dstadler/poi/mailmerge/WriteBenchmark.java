@@ -0,0 +1,49 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A full merge of the sample template with a growing number of rows,
+ * either by appending to the body of the template in memory or by
+ * streaming the document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WriteBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    private File template;
+    private File data;
+    private File output;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkData.disableLogging();
+
+        template = new File(BenchmarkData.SAMPLES, "Template.docx");
+        data = BenchmarkData.write("csv", rows);
+        output = new File(BenchmarkData.DIR, "Result-" + rows + "-" + streaming + ".docx");
+    }
+
+    @Benchmark
+    public File merge() throws IOException {
+        new MailMerge().setStreaming(streaming).merge(template, data, output);
+        return output;
+    }
+}
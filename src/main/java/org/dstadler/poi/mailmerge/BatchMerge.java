@@ -0,0 +1,357 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.function.IOSupplier;
+import org.apache.commons.lang3.StringUtils;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Runs many merges in one go, e.g. a nightly run of hundreds of
+ * combinations of template, data-file and output-file.
+ *
+ * Templates are loaded only once for all jobs which use them. Data-files
+ * which are used by more than one job are read into memory once and released
+ * again when the last of these jobs is finished, all other data-files are
+ * read as stream by their job.
+ *
+ * Jobs run concurrently on a fixed number of threads, a failing job is
+ * reported in its result and does not stop the other jobs.
+ *
+ * The jobs are read from a CSV manifest with the columns "template", "data"
+ * and "output", relative paths are resolved against the directory of the
+ * manifest, lines starting with '#' are ignored:
+ *
+ * <pre>
+ * template,data,output
+ * letters/Template.docx,customers.xlsx,out/Letters.docx
+ * letters/Template.docx,suppliers.csv,out/Suppliers.docx
+ * </pre>
+ *
+ * All merges use the options which are set via system properties,
+ * see {@link MailMerge}, the result is always streamed.
+ */
+public class BatchMerge {
+    private static final Logger log = LoggerFactory.make();
+
+    // the heap which is reserved for each concurrent job when choosing the number of threads
+    static final long MEMORY_PER_JOB = 64 * 1024 * 1024;
+
+    private static final List<String> COLUMNS = List.of("template", "data", "output");
+
+    private static final CSVFormat MANIFEST_FORMAT = CSVFormat.Builder.create(CSVRowSource.FORMAT).
+            setCommentMarker('#').
+            setHeader().
+            setSkipHeaderRecord(true).
+            get();
+
+    private final int threads;
+    private final Supplier<MailMerge> mergeFactory;
+
+    /**
+     * Use the number of threads from the system property
+     * "org.dstadler.poi.mailmerge.batch.threads", or as many threads as there
+     * are cores, but at most one per 64MB of maximum heap-size.
+     */
+    public BatchMerge() {
+        this(Integer.getInteger("org.dstadler.poi.mailmerge.batch.threads", defaultThreads()));
+    }
+
+    /**
+     * @param threads The number of jobs which are run concurrently
+     */
+    public BatchMerge(int threads) {
+        this(threads, MailMerge::new);
+    }
+
+    /**
+     * @param threads The number of jobs which are run concurrently
+     * @param mergeFactory Creates the configured instance which is used for one job
+     */
+    BatchMerge(int threads, Supplier<MailMerge> mergeFactory) {
+        Preconditions.checkArgument(threads > 0, "Need at least one thread, but had %s", threads);
+
+        this.threads = threads;
+        this.mergeFactory = mergeFactory;
+    }
+
+    static int defaultThreads() {
+        long byMemory = Runtime.getRuntime().maxMemory() / MEMORY_PER_JOB;
+        return (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), byMemory));
+    }
+
+    /**
+     * Main method to run a batch of merges
+     *
+     * @param args Expects one argument: the manifest-file
+     * @throws IOException If the manifest cannot be read or if any of the jobs failed
+     */
+    public static void main(String[] args) throws IOException {
+        LoggerFactory.initLogging();
+
+        if(args.length != 1) {
+            throw new IllegalArgumentException("Usage: BatchMerge <manifest-file>");
+        }
+
+        List<JobResult> results = new BatchMerge().run(readManifest(new File(args[0])));
+        long failed = results.stream().filter(result -> !result.isSuccess()).count();
+        if (failed > 0) {
+            throw new IOException(failed + " of " + results.size() + " merge-jobs failed, see the log for details");
+        }
+    }
+
+    /**
+     * Read the jobs from the given manifest.
+     *
+     * @param manifest A CSV file with the columns "template", "data" and "output"
+     * @return The jobs in the order of the manifest
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If a column is missing or empty
+     */
+    public static List<Job> readManifest(File manifest) throws IOException {
+        File baseDir = manifest.getAbsoluteFile().getParentFile();
+
+        List<Job> jobs = new ArrayList<>();
+        try (Reader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8);
+             CSVParser parser = CSVParser.parse(reader, MANIFEST_FORMAT)) {
+            Preconditions.checkArgument(parser.getHeaderNames().containsAll(COLUMNS),
+                    "Manifest %s needs the columns %s, had: %s", manifest, COLUMNS, parser.getHeaderNames());
+
+            for (CSVRecord record : parser) {
+                jobs.add(new Job(resolve(baseDir, record, "template"), resolve(baseDir, record, "data"),
+                        resolve(baseDir, record, "output")));
+            }
+        }
+        return jobs;
+    }
+
+    private static File resolve(File baseDir, CSVRecord record, String column) {
+        String path = record.isSet(column) ? record.get(column) : null;
+        Preconditions.checkArgument(StringUtils.isNotBlank(path),
+                "No %s set in line %s of the manifest", column, record.getRecordNumber() + 1);
+
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(baseDir, path);
+    }
+
+    /**
+     * Run all the given jobs and wait until they are finished.
+     *
+     * @param jobs The jobs to run
+     * @return The result of each job in the order of the jobs
+     * @throws IOException If the thread is interrupted while waiting
+     */
+    public List<JobResult> run(List<Job> jobs) throws IOException {
+        log.info("Running " + jobs.size() + " merge-jobs on " + threads + " threads");
+        long start = System.nanoTime();
+
+        // resources are created up-front, they are only loaded when a job needs them
+        Map<File, Shared<TemplatePackage>> templates = new HashMap<>();
+        Map<File, Shared<Data>> data = new HashMap<>();
+        Map<File, Integer> dataUses = new HashMap<>();
+        for (Job job : jobs) {
+            dataUses.merge(canonical(job.data()), 1, Integer::sum);
+        }
+
+        List<Resources> resources = new ArrayList<>();
+        for (Job job : jobs) {
+            Shared<TemplatePackage> template = templates.computeIfAbsent(canonical(job.template()),
+                    file -> new Shared<>(() -> load(file)));
+            template.uses++;
+
+            // data-files which are used once are read as stream by the job
+            File dataFile = canonical(job.data());
+            Shared<Data> shared = null;
+            if (dataUses.get(dataFile) > 1) {
+                shared = data.computeIfAbsent(dataFile, file -> new Shared<>(() -> read(file)));
+                shared.uses++;
+            }
+            resources.add(new Resources(template, shared));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().
+                setNameFormat("MailMerge-batch-%d").
+                setDaemon(true).
+                build());
+        try {
+            List<Future<JobResult>> futures = new ArrayList<>();
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                Resources shared = resources.get(i);
+                futures.add(executor.submit(() -> runJob(job, shared)));
+            }
+
+            List<JobResult> results = new ArrayList<>();
+            for (Future<JobResult> future : futures) {
+                results.add(get(future));
+            }
+
+            long failed = results.stream().filter(result -> !result.isSuccess()).count();
+            log.info("Finished " + jobs.size() + " merge-jobs in " + Duration.ofNanos(System.nanoTime() - start).toMillis() +
+                    " ms, loaded " + templates.size() + " templates and read " + data.size() + " shared data-files, " +
+                    failed + " jobs failed");
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private JobResult runJob(Job job, Resources shared) {
+        long start = System.nanoTime();
+        AtomicReference<MergeStatistics> statistics = new AtomicReference<>();
+        try {
+            MailMerge merge = mergeFactory.get().setListener(statistics::set);
+            TemplatePackage template = shared.template().get();
+            if (shared.data() == null) {
+                merge.merge(template, job.data(), job.output());
+            } else {
+                merge.merge(template, shared.data().get(), job.data(), job.output());
+            }
+
+            JobResult result = new JobResult(job, Duration.ofNanos(System.nanoTime() - start), statistics.get(), null);
+            log.info("Merged " + job.template() + " and " + job.data() + " into " + job.output() + ": " + statistics.get());
+            return result;
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Merge-job failed for " + job.template() + " and " + job.data(), e);
+            return new JobResult(job, Duration.ofNanos(System.nanoTime() - start), null, e);
+        } finally {
+            shared.template().release();
+            if (shared.data() != null) {
+                shared.data().release();
+            }
+        }
+    }
+
+    private static TemplatePackage load(File wordTemplate) throws IOException {
+        log.info("Loading template " + wordTemplate);
+        return TemplatePackage.load(wordTemplate);
+    }
+
+    private Data read(File dataFile) throws IOException {
+        log.info("Reading shared data-file " + dataFile);
+        return mergeFactory.get().readData(dataFile);
+    }
+
+    private static File canonical(File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (@SuppressWarnings("unused") IOException e) {
+            // the job reports that the file cannot be read
+            return file.getAbsoluteFile();
+        }
+    }
+
+    private static JobResult get(Future<JobResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for merge-jobs");
+        } catch (ExecutionException e) {
+            // jobs report failures in their result
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IOException("Running merge-job failed", e.getCause());
+        }
+    }
+
+    /**
+     * A template or data-file which is loaded once when it is first needed
+     * and released when the last job which uses it is finished.
+     */
+    private static final class Shared<T> {
+        private final IOSupplier<T> loader;
+
+        // the number of jobs which still need the resource
+        private int uses;
+
+        private T value;
+        private Exception failure;
+
+        private Shared(IOSupplier<T> loader) {
+            this.loader = loader;
+        }
+
+        synchronized T get() throws IOException {
+            if (value == null && failure == null) {
+                try {
+                    value = loader.get();
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+            }
+
+            // report the failure for each job which needs the resource
+            if (failure != null) {
+                throw new IOException("Could not load shared resource: " + failure.getMessage(), failure);
+            }
+            return value;
+        }
+
+        synchronized void release() {
+            uses--;
+            if (uses == 0) {
+                value = null;
+            }
+        }
+    }
+
+    private record Resources(Shared<TemplatePackage> template, Shared<Data> data) {
+    }
+
+    /**
+     * One merge of a batch.
+     *
+     * @param template The word-template to use
+     * @param data The Excel/CSV file which contains one row for each resulting page
+     * @param output The output word-document, or the target directory/zip-file when writing one document per row
+     */
+    public record Job(File template, File data, File output) {
+        public Job {
+            Preconditions.checkNotNull(template, "Need a template");
+            Preconditions.checkNotNull(data, "Need a data-file");
+            Preconditions.checkNotNull(output, "Need an output-file");
+        }
+    }
+
+    /**
+     * The outcome of one job.
+     *
+     * @param job The job which was run
+     * @param duration The time the job took, including loading shared resources
+     * @param statistics The statistics of the merge, null if the job failed
+     * @param failure The exception which stopped the job, null if it was successful
+     */
+    public record JobResult(Job job, Duration duration, MergeStatistics statistics, Exception failure) {
+        /**
+         * @return true if the job finished without failure
+         */
+        public boolean isSuccess() {
+            return failure == null;
+        }
+    }
+}
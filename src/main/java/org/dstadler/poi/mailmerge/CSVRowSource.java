@@ -0,0 +1,100 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Reads the rows of a CSV file with a header-row, comma as delimiter
+ * and double-quotes for quoting text.
+ */
+final class CSVRowSource extends RowSource {
+    private static final Logger log = LoggerFactory.make();
+
+    /**
+     * The format of the records, without the header-row.
+     */
+    static final CSVFormat FORMAT = CSVFormat.Builder.create().
+            setDelimiter(',').
+            setQuote('"').
+            setCommentMarker((char)0).
+            setIgnoreEmptyLines(true).
+            setIgnoreSurroundingSpaces(true).
+            get();
+
+    /**
+     * The format of the file, the first record is read as header-row.
+     */
+    static final CSVFormat FORMAT_WITH_HEADER = CSVFormat.Builder.create(FORMAT).
+            setHeader().
+            get();
+
+    private final Reader reader;
+    private final CSVParser parser;
+    private final Iterator<CSVRecord> records;
+
+    /**
+     * @param csvFile The file to read
+     * @param charset The encoding of the file
+     * @throws IOException If the file cannot be opened or the header-row cannot be read
+     */
+    CSVRowSource(File csvFile, Charset charset) throws IOException {
+        // open file
+        reader = new InputStreamReader(new FileInputStream(csvFile), charset);
+        try {
+            parser = CSVParser.builder().
+                    setReader(reader).
+                    setFormat(FORMAT_WITH_HEADER).
+                    get();
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+
+        Map<String, Integer> headerMap = parser.getHeaderMap();
+        for(Map.Entry<String,Integer> entry : headerMap.entrySet()) {
+            headers.add(entry.getKey());
+            log.info("Had header '" + entry.getKey() + "' for column " + entry.getValue());
+        }
+
+        records = parser.iterator();
+    }
+
+    @Override
+    boolean readRow(String[] values) {
+        if(!records.hasNext()) {
+            return false;
+        }
+
+        CSVRecord line = records.next();
+        for(int pos = 0;pos < values.length;pos++) {
+            if(line.size() <= pos || !isRead(pos)) {
+                values[pos] = null;
+            } else {
+                values[pos] = line.get(pos);
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            parser.close();
+        } finally {
+            reader.close();
+        }
+    }
+}
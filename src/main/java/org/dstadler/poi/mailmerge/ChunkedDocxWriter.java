@@ -0,0 +1,132 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FilenameUtils;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Streams rendered rows into a sequence of documents, a new document
+ * is started after a given number of rows or bytes of the main document.
+ *
+ * The documents are named after the output-file with a running number,
+ * e.g. Result-0001.docx, Result-0002.docx, ... Each document is finished
+ * and closed before the next one is started, so only the current
+ * fragment is held in memory.
+ *
+ * Rows are rendered before it is known which document they are written to,
+ * so the pictures which are referenced by the rows of a document are
+ * collected while writing and only those are added to the document.
+ */
+class ChunkedDocxWriter implements FragmentConsumer, Closeable {
+    private static final Logger log = LoggerFactory.make();
+
+    private final TemplatePackage template;
+    private final File outputFile;
+    private final int maxRows;
+    private final long maxBytes;
+    private final int level;
+    private final int threads;
+    private final MediaParts media;
+
+    private final List<File> files = new ArrayList<>();
+
+    private OutputStream out;
+    private StreamingDocxWriter writer;
+    private MediaParts chunkMedia;
+    private int rows;
+
+    /**
+     * @param template The template to copy into each document
+     * @param outputFile The file-name which is used as base for the names of the documents
+     * @param maxRows The number of rows after which a new document is started, 0 for no limit
+     * @param maxBytes The uncompressed size of the main document after which a new document is started, 0 for no limit
+     * @param level The compression-level of the documents, see {@link StreamingDocxWriter}
+     * @param threads The number of threads for compressing the main document
+     * @param media The pictures which are rendered into the rows, null if there are none
+     */
+    ChunkedDocxWriter(TemplatePackage template, File outputFile, int maxRows, long maxBytes, int level, int threads,
+            MediaParts media) {
+        this.template = template;
+        this.outputFile = outputFile;
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+        this.level = level;
+        this.threads = threads;
+        this.media = media;
+    }
+
+    @Override
+    public void accept(CharSequence fragment) throws IOException {
+        if (writer != null && ((maxRows > 0 && rows >= maxRows) || (maxBytes > 0 && writer.getDocumentBytes() >= maxBytes))) {
+            finishChunk();
+        }
+        if (writer == null) {
+            startChunk();
+        }
+
+        writer.write(fragment);
+        if (chunkMedia != null) {
+            chunkMedia.addReferenced(fragment, media);
+        }
+        rows++;
+    }
+
+    private void startChunk() throws IOException {
+        String extension = FilenameUtils.getExtension(outputFile.getName());
+        File file = new File(outputFile.getAbsoluteFile().getParentFile(),
+                FilenameUtils.getBaseName(outputFile.getName()) +
+                String.format(Locale.ROOT, "-%04d.", files.size() + 1) +
+                (extension.isEmpty() ? "docx" : extension));
+
+        log.info("Writing part " + (files.size() + 1) + " of the result to " + file);
+        out = new FileOutputStream(file);
+        chunkMedia = media == null ? null : media.select();
+        try {
+            writer = new StreamingDocxWriter(template, out, level, threads, chunkMedia);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+
+        files.add(file);
+        rows = 0;
+    }
+
+    private void finishChunk() throws IOException {
+        try {
+            writer.close();
+        } finally {
+            writer = null;
+            out.close();
+        }
+    }
+
+    /**
+     * @return The documents which were written so far
+     */
+    List<File> getFiles() {
+        return files;
+    }
+
+    /**
+     * Finish the current document, an empty document is written if there were no rows at all.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer == null && files.isEmpty()) {
+            startChunk();
+        }
+        if (writer != null) {
+            finishChunk();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.dstadler.poi.mailmerge;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores rows of data in a compact form: each column keeps a dictionary
+ * of its distinct values and one code per row, so repeated values like
+ * cities or salutations are only held in memory once.
+ *
+ * The codes are stored in byte-, short- or int-arrays depending on the
+ * number of distinct values of the column.
+ *
+ * The rows are returned as read-only views on the columns.
+ */
+class ColumnarTable extends AbstractList<List<String>> {
+    private final Column[] columns;
+    private int size;
+
+    /**
+     * @param columnCount The number of columns of each row
+     */
+    ColumnarTable(int columnCount) {
+        columns = new Column[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columns[i] = new Column();
+        }
+    }
+
+    /**
+     * Store the values of the given row, values beyond the number of columns are ignored.
+     *
+     * @param row The values to add, may be re-used by the caller afterwards
+     * @return always true
+     */
+    @Override
+    public boolean add(List<String> row) {
+        for (int i = 0; i < columns.length; i++) {
+            columns[i].add(size, i < row.size() ? row.get(i) : null);
+        }
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Release the memory which is only needed while adding rows.
+     */
+    void trim() {
+        for (Column column : columns) {
+            column.trim(size);
+        }
+    }
+
+    @Override
+    public List<String> get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " is out of range for " + size + " rows");
+        }
+        return new RowView(index);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param column The index of the column
+     * @return The number of distinct values in the given column, including null
+     */
+    int getDistinctValues(int column) {
+        return columns[column].values.size();
+    }
+
+    private final class RowView extends AbstractList<String> {
+        private final int row;
+
+        private RowView(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public String get(int index) {
+            return columns[index].get(row);
+        }
+
+        @Override
+        public int size() {
+            return columns.length;
+        }
+    }
+
+    /**
+     * The dictionary and the codes of one column, code 0 is used for null.
+     */
+    private static final class Column {
+        private final ArrayList<String> values = new ArrayList<>();
+
+        // only needed while adding rows, re-built if rows are added after trimming
+        private Map<String, Integer> codes = new HashMap<>();
+
+        // only one of these is used, depending on the number of distinct values
+        private byte[] bytes = new byte[16];
+        private short[] shorts;
+        private int[] ints;
+
+        private Column() {
+            values.add(null);
+        }
+
+        private void add(int row, String value) {
+            int code = 0;
+            if (value != null) {
+                if (codes == null) {
+                    codes = new HashMap<>();
+                    for (int i = 1; i < values.size(); i++) {
+                        codes.put(values.get(i), i);
+                    }
+                }
+
+                code = codes.computeIfAbsent(value, key -> {
+                    values.add(key);
+                    return values.size() - 1;
+                });
+            }
+
+            // switch to a wider array when the dictionary becomes too large
+            if (bytes != null && code > 0xFF) {
+                shorts = new short[bytes.length];
+                for (int i = 0; i < row; i++) {
+                    shorts[i] = (short) (bytes[i] & 0xFF);
+                }
+                bytes = null;
+            }
+            if (shorts != null && code > 0xFFFF) {
+                ints = new int[shorts.length];
+                for (int i = 0; i < row; i++) {
+                    ints[i] = shorts[i] & 0xFFFF;
+                }
+                shorts = null;
+            }
+
+            if (bytes != null) {
+                if (row >= bytes.length) {
+                    bytes = Arrays.copyOf(bytes, grow(bytes.length));
+                }
+                bytes[row] = (byte) code;
+            } else if (shorts != null) {
+                if (row >= shorts.length) {
+                    shorts = Arrays.copyOf(shorts, grow(shorts.length));
+                }
+                shorts[row] = (short) code;
+            } else {
+                if (row >= ints.length) {
+                    ints = Arrays.copyOf(ints, grow(ints.length));
+                }
+                ints[row] = code;
+            }
+        }
+
+        private static int grow(int length) {
+            return length + (length >> 1) + 16;
+        }
+
+        private String get(int row) {
+            final int code;
+            if (bytes != null) {
+                code = bytes[row] & 0xFF;
+            } else if (shorts != null) {
+                code = shorts[row] & 0xFFFF;
+            } else {
+                code = ints[row];
+            }
+            return values.get(code);
+        }
+
+        private void trim(int size) {
+            codes = null;
+            if (bytes != null) {
+                bytes = Arrays.copyOf(bytes, size);
+            } else if (shorts != null) {
+                shorts = Arrays.copyOf(shorts, size);
+            } else {
+                ints = Arrays.copyOf(ints, size);
+            }
+            values.trimToSize();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package org.dstadler.poi.mailmerge;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.text.StringEscapeUtils;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * A template which is parsed once into literal text-segments and
+ * placeholder-slots which are bound to the column-index of the matching
+ * header.
+ *
+ * Rendering a row then only appends the segments and the XML-escaped
+ * values to a buffer, instead of searching the whole template once
+ * for each header.
+ *
+ * Markers in the form of ${image:header} insert the picture from the
+ * file-path in the column, they need to be part of the text of a paragraph
+ * and are only rendered when the template is bound to the media-parts of
+ * the resulting document via {@link #withMedia(MediaParts)}.
+ */
+public class CompiledTemplate {
+    private static final Logger log = LoggerFactory.make();
+
+    static final String IMAGE_PREFIX = "image:";
+
+    // the last start-tag before an image-marker, it needs to be a text-element
+    private static final Pattern TEXT_START = Pattern.compile("<(\\w+:)?t(\\s[^>]*)?>[^<]*");
+
+    // literal text, there is always one more segment than slots
+    private final String[] segments;
+
+    // the column-index for each of the slots
+    private final int[] columns;
+
+    // the namespace-prefix of the enclosing text-element for image-slots, null for slots with text
+    private final String[] images;
+
+    // receives the pictures of image-slots, null if pictures are not rendered
+    private final MediaParts media;
+
+    // the overall length of all literal segments
+    private final int length;
+
+    // snippet of the first template-marker which does not match any header, null if all matched
+    private final String unresolved;
+
+    // if values are XML-escaped when they are rendered
+    private final boolean escapeXml;
+
+    private CompiledTemplate(String[] segments, int[] columns, String[] images, MediaParts media,
+            String unresolved, boolean escapeXml) {
+        this.segments = segments;
+        this.columns = columns;
+        this.images = images;
+        this.media = media;
+        this.unresolved = unresolved;
+        this.escapeXml = escapeXml;
+
+        int len = 0;
+        for (String segment : segments) {
+            len += segment.length();
+        }
+        this.length = len;
+    }
+
+    /**
+     * Parse the given template-text and bind all markers in the form
+     * of ${header} to the position of the header in the given list.
+     *
+     * Markers which are split across multiple text-elements because of
+     * formatting are joined first. Markers which do not match any of the
+     * headers are kept as-is and reported once.
+     *
+     * @param template The text of the template, usually the XML of the document-body
+     * @param headers The header-names as read from the data-file, may contain null for columns without header
+     * @return The compiled template which can be used to render rows of data
+     */
+    public static CompiledTemplate compile(String template, List<String> headers) {
+        return compile(template, headers, true);
+    }
+
+    /**
+     * Parse the given template-text and bind all markers in the form
+     * of ${header} to the position of the header in the given list.
+     *
+     * @param template The text of the template
+     * @param headers The header-names as read from the data-file, may contain null for columns without header
+     * @param escapeXml If the template is XML, i.e. values are XML-escaped and split markers are joined,
+     *      false allows to render plain text, e.g. file-names
+     * @return The compiled template which can be used to render rows of data
+     */
+    public static CompiledTemplate compile(String template, List<String> headers, boolean escapeXml) {
+        if (escapeXml) {
+            template = SplitMarkerNormalizer.normalize(template);
+        }
+
+        // the first column wins if a header-name is used multiple times
+        Map<String, Integer> columnsByName = new HashMap<>();
+        for (int fieldNr = 0; fieldNr < headers.size(); fieldNr++) {
+            String header = headers.get(fieldNr);
+
+            // ignore columns without headers as we cannot match them
+            if (header != null) {
+                columnsByName.putIfAbsent(header, fieldNr);
+            }
+        }
+
+        List<String> segments = new ArrayList<>();
+        List<Integer> columns = new ArrayList<>();
+        List<String> images = new ArrayList<>();
+        String unresolved = null;
+
+        int start = 0;
+        int pos = template.indexOf("${");
+        while (pos >= 0) {
+            int end = template.indexOf('}', pos + 2);
+            if (end < 0) {
+                break;
+            }
+
+            String name = template.substring(pos + 2, end);
+            String image = null;
+            if (escapeXml && name.startsWith(IMAGE_PREFIX)) {
+                int tag = template.lastIndexOf('<', pos);
+                Matcher matcher = TEXT_START.matcher(template.substring(Math.max(0, tag), pos));
+                if (tag >= 0 && matcher.matches()) {
+                    image = matcher.group(1) == null ? "" : matcher.group(1);
+                    name = name.substring(IMAGE_PREFIX.length());
+                }
+            }
+
+            Integer column = columnsByName.get(name);
+            if (column == null) {
+                if (unresolved == null) {
+                    unresolved = StringUtils.abbreviate(template.substring(pos), 200);
+                }
+
+                // keep the marker as literal text, but look for further markers inside it
+                pos = template.indexOf("${", pos + 2);
+                continue;
+            }
+
+            segments.add(template.substring(start, pos));
+            columns.add(column);
+            images.add(image);
+
+            start = end + 1;
+            pos = template.indexOf("${", start);
+        }
+        segments.add(template.substring(start));
+
+        // report markers which cannot be replaced once instead of for every row
+        if (unresolved != null) {
+            log.warning("Found template-marker which does not match any header, it is kept as-is: " + unresolved);
+        }
+
+        return new CompiledTemplate(segments.toArray(new String[0]),
+                columns.stream().mapToInt(Integer::intValue).toArray(), images.toArray(new String[0]),
+                null, unresolved, escapeXml);
+    }
+
+    /**
+     * Bind the template to the pictures of one resulting document, the
+     * compiled segments are shared with this template.
+     *
+     * @param media Receives the pictures which are rendered for image-markers
+     * @return A template which renders image-markers as drawings
+     */
+    CompiledTemplate withMedia(MediaParts media) {
+        return new CompiledTemplate(segments, columns, images, media, unresolved, escapeXml);
+    }
+
+    /**
+     * @return If the template contains image-markers which insert pictures
+     */
+    boolean hasImages() {
+        for (String image : images) {
+            if (image != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the names of all template-markers in the form of ${name} in the
+     * given template, e.g. to only read the columns which are actually used.
+     *
+     * Markers which are split across multiple text-elements because of
+     * formatting are joined first, in the same way as when compiling.
+     * For image-markers, the name of the column is returned.
+     *
+     * @param template The text of the template, usually the XML of the document-body
+     * @return The names of the markers in the order they are used first
+     */
+    public static Set<String> findMarkers(String template) {
+        template = SplitMarkerNormalizer.normalize(template);
+
+        Set<String> markers = new LinkedHashSet<>();
+        int pos = template.indexOf("${");
+        while (pos >= 0) {
+            int end = template.indexOf('}', pos + 2);
+            if (end < 0) {
+                break;
+            }
+
+            String name = template.substring(pos + 2, end);
+            markers.add(name.startsWith(IMAGE_PREFIX) ? name.substring(IMAGE_PREFIX.length()) : name);
+            pos = template.indexOf("${", pos + 2);
+        }
+        return markers;
+    }
+
+    /**
+     * Append the template with all markers replaced by the
+     * values of the given row to the buffer.
+     *
+     * @param data The values of one row, in the same order as the headers used for compiling
+     * @param out The buffer to append the result to
+     */
+    public void render(List<String> data, StringBuilder out) {
+        for (int slot = 0; slot < columns.length; slot++) {
+            out.append(segments[slot]);
+
+            int column = columns[slot];
+            String value = column < data.size() ? data.get(column) : null;
+
+            // use empty string for data-cells that have no value
+            if (images[slot] != null) {
+                if (value != null && media != null && !value.isBlank()) {
+                    media.render(value, images[slot], out);
+                }
+            } else if (value != null) {
+                out.append(escapeXml ? StringEscapeUtils.escapeXml11(value) : value);
+            }
+        }
+        out.append(segments[columns.length]);
+    }
+
+    /**
+     * Render the given row into a new String.
+     *
+     * @param data The values of one row, in the same order as the headers used for compiling
+     * @return The template with all markers replaced
+     */
+    public String render(List<String> data) {
+        StringBuilder out = new StringBuilder(length + 16 * columns.length);
+        render(data, out);
+        return out.toString();
+    }
+
+    /**
+     * @return A snippet of the first template-marker which does not match any header, null if all markers matched
+     */
+    public String getUnresolved() {
+        return unresolved;
+    }
+
+    /**
+     * @return The overall length of the literal text, useful for sizing buffers
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The number of placeholders which are replaced for each row
+     */
+    public int getSlotCount() {
+        return columns.length;
+    }
+}
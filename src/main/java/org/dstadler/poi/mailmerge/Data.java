@@ -1,39 +1,73 @@
 package org.dstadler.poi.mailmerge;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang3.StringUtils;
+import com.google.common.base.Preconditions;
 import org.apache.poi.EncryptedDocumentException;
-import org.apache.poi.ss.format.CellFormat;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
-import org.apache.poi.ss.util.CellReference;
 import org.dstadler.commons.logging.jdk.LoggerFactory;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Logger;
 
 /**
  * Helper class which handles reading the merge-file-data from
  * either a CSV or XLS/XLSX file.
+ *
+ * All rows are held in memory, use {@link RowSource} to process
+ * the rows one at a time instead.
  */
 public class Data {
     private static final Logger log = LoggerFactory.make();
 
     private final List<String> headers = new ArrayList<>();
-    private final List<List<String>> values = new ArrayList<>();
+    private final boolean compact;
+
+    private Charset charset = Charset.defaultCharset();
+    private int readThreads = 1;
+
+    private List<List<String>> values = new ArrayList<>();
+
+    /**
+     * Keep the rows as separate lists of values.
+     */
+    public Data() {
+        this(false);
+    }
+
+    /**
+     * @param compact true to store the rows column-wise with each distinct value
+     *      of a column only held once, this uses much less memory if values are
+     *      repeated, but the rows returned by {@link #getData()} are read-only
+     */
+    public Data(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * @param charset The encoding of CSV files, defaults to the default charset of the platform
+     * @return This instance to allow chaining calls
+     */
+    public Data setCharset(Charset charset) {
+        this.charset = Preconditions.checkNotNull(charset, "Cannot use null as charset");
+        return this;
+    }
+
+    /**
+     * Parse large CSV files on the given number of threads, the rows are
+     * still returned in the order of the file.
+     *
+     * @param readThreads The number of threads, defaults to 1
+     * @return This instance to allow chaining calls
+     */
+    public Data setReadThreads(int readThreads) {
+        Preconditions.checkArgument(readThreads > 0, "Need at least one thread, but had %s", readThreads);
+        this.readThreads = readThreads;
+        return this;
+    }
 
     /**
      * Read the given file either as .csv or .xls/.xlsx file, depending
@@ -44,132 +78,71 @@ public class Data {
      * @throws EncryptedDocumentException If the document is encrypted (passwords are not supported currently)
      */
     public void read(File dataFile) throws IOException, EncryptedDocumentException {
-        // read the lines from the data-file
-        if(FilenameUtils.getExtension(dataFile.getName()).equalsIgnoreCase("csv")) {
-            readCSVFile(dataFile);
-        } else {
-            readExcelFile(dataFile);
-        }
-
-        removeEmptyLines();
+        read(dataFile, null);
     }
 
-    private void removeEmptyLines() {
-        Iterator<List<String>> it = values.iterator();
-        while(it.hasNext()) {
-            List<String> line = it.next();
-            boolean empty = true;
-            for(String item : line) {
-                if(StringUtils.isNotBlank(item)) {
-                    empty = false;
-                    break;
-                }
-            }
-
-            // remove empty line
-            if(empty) {
-                log.info("Removing an empty data line");
-                it.remove();
-            }
-        }
+    /**
+     * Read the rows of the given file which match the filter-expression,
+     * other rows are skipped while reading and are not kept in memory.
+     *
+     * @param dataFile The merge-file to read. Can have extension .csv, .xls or .xlsx
+     * @param filter The filter-expression, see {@link RowFilter}, or null to read all rows
+     * @throws IOException If an error occurs while reading the file
+     * @throws EncryptedDocumentException If the document is encrypted (passwords are not supported currently)
+     * @throws IllegalArgumentException If the filter is invalid
+     */
+    public void read(File dataFile, String filter) throws IOException, EncryptedDocumentException {
+        read(dataFile, filter, null);
     }
 
-    private void readCSVFile(File csvFile) throws IOException {
-        // open file
-        try (Reader reader = new FileReader(csvFile)) {
-            CSVFormat strategy = CSVFormat.Builder.create().
-                    setHeader().
-                    setDelimiter(',').
-                    setQuote('"').
-                    setCommentMarker((char)0).
-                    setIgnoreEmptyLines(true).
-                    setIgnoreSurroundingSpaces(true).
-                    get();
-
-            try (CSVParser parser = CSVParser.builder().
-                    setReader(reader).
-                    setFormat(strategy).
-                    get()) {
-                Map<String, Integer> headerMap = parser.getHeaderMap();
-                for(Map.Entry<String,Integer> entry : headerMap.entrySet()) {
-                    headers.add(entry.getKey());
-                    log.info("Had header '" + entry.getKey() + "' for column " + entry.getValue());
-                }
-
-                List<CSVRecord> lines = parser.getRecords();
-                log.info("Found " + lines.size() + " lines");
-                for(CSVRecord line : lines) {
-                    List<String> data = new ArrayList<>();
-                    for(int pos = 0;pos < headerMap.size();pos++) {
-                        if(line.size() <= pos) {
-                            data.add(null);
-                        } else {
-                            data.add(line.get(pos));
-                        }
-                    }
-
-                    values.add(data);
-                }
-            }
+    /**
+     * Read the rows of the given file which match the filter-expression and
+     * only the given columns, the values of other columns are not converted
+     * and are null in the resulting rows.
+     *
+     * @param dataFile The merge-file to read. Can have extension .csv, .xls or .xlsx
+     * @param filter The filter-expression, see {@link RowFilter}, or null to read all rows
+     * @param columns The header-names of the columns to read, e.g. the markers of the
+     *      template via {@link CompiledTemplate#findMarkers(String)}, or null to read all columns
+     * @throws IOException If an error occurs while reading the file
+     * @throws EncryptedDocumentException If the document is encrypted (passwords are not supported currently)
+     * @throws IllegalArgumentException If the filter is invalid
+     */
+    public void read(File dataFile, String filter, Collection<String> columns) throws IOException, EncryptedDocumentException {
+        // read the lines from the data-file
+        try (RowSource source = RowSource.open(dataFile, charset, readThreads)) {
+            source.setFilter(filter);
+            source.setColumns(columns);
+            read(source);
+        } catch (UncheckedIOException e) {
+            // reading rows can only report failures as unchecked exception
+            throw e.getCause();
         }
     }
 
-    private void readExcelFile(File excelFile) throws EncryptedDocumentException, IOException {
-        try (Workbook wb = WorkbookFactory.create(excelFile, null, true)) {
-            Sheet sheet = wb.getSheetAt(0);
-
-            final int start;
-            final int end;
-            { // read headers
-                Row row = sheet.getRow(0);
-                if(row == null) {
-                    throw new IllegalArgumentException("Provided Microsoft Excel file " + excelFile + " does not have data in the first row in the first sheet, "
-                            + "but we expect the header data to be located there");
-                }
-
-                start = row.getFirstCellNum();
-                end = row.getLastCellNum();
-                for(int cellNum = start;cellNum <= end;cellNum++) {
-                    Cell cell = row.getCell(cellNum);
-                    if(cell == null) {
-                        // add null to the headers if there are columns without title in the sheet
-                        headers.add(null);
-                        log.info("Had empty header for column " + CellReference.convertNumToColString(cellNum));
-                    } else {
-                        String value = cell.toString();
-                        headers.add(value);
-                        log.info("Had header '" + value + "' for column " + CellReference.convertNumToColString(cellNum));
-                    }
-                }
-            }
+    /**
+     * Read all rows of the given source, empty lines are removed.
+     *
+     * @param source The source to read headers and rows from
+     */
+    public void read(RowSource source) {
+        headers.addAll(source.getHeaders());
 
-            for(int rowNum = 1; rowNum <= sheet.getLastRowNum();rowNum++) {
-                Row row = sheet.getRow(rowNum);
-                if(row == null) {
-                    // ignore missing rows
-                    continue;
-                }
-
-                List<String> data = new ArrayList<>();
-                for(int colNum = start;colNum <= end;colNum++) {
-                    Cell cell = row.getCell(colNum);
-                    if(cell == null) {
-                        // store null-data for empty/missing cells
-                        data.add(null);
-                    } else {
-                        //noinspection SwitchStatementWithTooFewBranches
-                        final String value = switch (cell.getCellType()) {
-                            case NUMERIC -> CellFormat.getInstance(cell.getCellStyle().getDataFormatString()).apply(cell).text;
-                            default -> cell.toString();
-                        };
-
-                        data.add(value);
-                    }
-                }
-
-                values.add(data);
+        if(compact) {
+            ColumnarTable table = values instanceof ColumnarTable existing ? existing : new ColumnarTable(headers.size());
+            for(List<String> row : source) {
+                table.add(row);
+            }
+            table.trim();
+            values = table;
+        } else {
+            for(List<String> row : source) {
+                // the source re-uses the row-instance, so we need a copy here
+                values.add(new ArrayList<>(row));
             }
         }
+
+        log.info("Found " + values.size() + " lines");
     }
 
     /**
@@ -0,0 +1,43 @@
+package org.dstadler.poi.mailmerge;
+
+import java.util.List;
+
+/**
+ * Provides the rows of a data-file which was already read into memory
+ * via {@link Data}, e.g. to merge the same data into multiple templates
+ * without reading the file again.
+ *
+ * The rows are not copied, so the same data can be used by multiple
+ * sources concurrently. Filters and the include-indicator are applied
+ * by each source separately.
+ */
+final class DataRowSource extends RowSource {
+    private final List<List<String>> rows;
+    private int next;
+
+    /**
+     * @param data The data which was read before, it is not changed
+     */
+    DataRowSource(Data data) {
+        this.rows = data.getData();
+        headers.addAll(data.getHeaders());
+    }
+
+    @Override
+    boolean readRow(String[] values) {
+        if (next >= rows.size()) {
+            return false;
+        }
+
+        List<String> row = rows.get(next++);
+        for (int pos = 0; pos < values.length; pos++) {
+            values[pos] = pos < row.size() && isRead(pos) ? row.get(pos) : null;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // nothing to close, the data is held in memory
+    }
+}
@@ -0,0 +1,142 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A part of a deflate-stream which was compressed independently of the
+ * other parts, together with the CRC-32 and the length of its uncompressed data.
+ *
+ * Segments end with a sync-flush and do not set the final-flag, so writing
+ * segments one after another and {@link #FINAL_BLOCK} at the end produces a
+ * valid deflate-stream of the concatenated data. This allows to keep and
+ * re-use compressed parts of a document or to compress parts in parallel.
+ *
+ * @param data The compressed bytes
+ * @param crc The CRC-32 of the uncompressed bytes
+ * @param length The number of uncompressed bytes
+ */
+record DeflateSegment(byte[] data, int crc, long length) {
+    /**
+     * An empty block with the final-flag set, which ends a deflate-stream.
+     */
+    static final byte[] FINAL_BLOCK = { 0x03, 0x00 };
+
+    // polynomial of CRC-32 in reversed bit-order
+    private static final long POLYNOMIAL = 0xEDB88320L;
+
+    /**
+     * Compress the given bytes as a segment.
+     *
+     * @param input The uncompressed bytes
+     * @param level The compression-level, see {@link Deflater}
+     * @return The compressed segment
+     */
+    static DeflateSegment compress(byte[] input, int level) {
+        return compress(input, input.length, null, level);
+    }
+
+    /**
+     * Compress the first bytes of the given array as a segment.
+     *
+     * The data which precedes the segment in the deflate-stream can be used
+     * as dictionary, matches are then also found across the start of the
+     * segment, which gives almost the same compression-ratio as compressing
+     * all data at once.
+     *
+     * @param input The uncompressed bytes
+     * @param length The number of bytes of the array to compress
+     * @param dictionary Up to 32KB of uncompressed data which directly precede this segment, null if there are none
+     * @param level The compression-level, see {@link Deflater}
+     * @return The compressed segment
+     */
+    static DeflateSegment compress(byte[] input, int length, byte[] dictionary, int level) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input, 0, length);
+
+            // flush all input with a sync-flush, the output is then aligned to a byte-boundary
+            byte[] buffer = new byte[Math.max(512, Math.min(length, 64 * 1024))];
+            int count;
+            do {
+                count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, count);
+            } while (count == buffer.length);
+        } finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(input, 0, length);
+        return new DeflateSegment(out.toByteArray(), (int) crc.getValue(), length);
+    }
+
+    /**
+     * Compute the CRC-32 of two concatenated pieces of data from their separate
+     * CRC-32 values, in the same way as crc32_combine() of zlib.
+     *
+     * @param crc1 The CRC-32 of the first piece
+     * @param crc2 The CRC-32 of the second piece
+     * @param length2 The length of the second piece
+     * @return The CRC-32 of both pieces together
+     */
+    static int combine(int crc1, int crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        // operators for shifting in one zero-bit and two zero-bits
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);
+        square(odd, even);
+
+        // apply the operator for one zero-byte, two, four, ... depending on the bits of the length
+        long crc = crc1 & 0xFFFFFFFFL;
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc = times(even, crc);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return (int) (crc ^ (crc2 & 0xFFFFFFFFL));
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
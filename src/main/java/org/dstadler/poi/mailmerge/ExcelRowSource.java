@@ -0,0 +1,131 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.ss.format.CellFormat;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.ss.util.CellReference;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Reads the rows of one sheet of a XLS/XLSX file, the
+ * first row is expected to contain the headers.
+ */
+final class ExcelRowSource extends RowSource {
+    private static final Logger log = LoggerFactory.make();
+
+    private final Workbook wb;
+    private final Sheet sheet;
+    private final int start;
+
+    private int rowNum = 1;
+
+    // the formatter for each cell-style, indexed by the style-index, a sheet usually only uses a few styles
+    private CellFormat[] formats = new CellFormat[0];
+
+    ExcelRowSource(File excelFile) throws EncryptedDocumentException, IOException {
+        this(excelFile, null);
+    }
+
+    /**
+     * @param excelFile The file to read
+     * @param sheetName The name of the sheet to read, null for the first sheet
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If there is no such sheet or it does not have a header-row
+     */
+    ExcelRowSource(File excelFile, String sheetName) throws EncryptedDocumentException, IOException {
+        wb = WorkbookFactory.create(excelFile, null, true);
+        try {
+            sheet = sheetName == null ? wb.getSheetAt(0) : wb.getSheet(sheetName);
+            if(sheet == null) {
+                throw new IllegalArgumentException("Provided Microsoft Excel file " + excelFile + " does not have a sheet '" + sheetName + "'");
+            }
+
+            // read headers
+            Row row = sheet.getRow(0);
+            if(row == null) {
+                throw new IllegalArgumentException("Provided Microsoft Excel file " + excelFile + " does not have data in the first row in the " +
+                        (sheetName == null ? "first sheet" : "sheet '" + sheetName + "'") + ", but we expect the header data to be located there");
+            }
+
+            start = row.getFirstCellNum();
+            int end = row.getLastCellNum();
+            for(int cellNum = start;cellNum <= end;cellNum++) {
+                Cell cell = row.getCell(cellNum);
+                if(cell == null) {
+                    // add null to the headers if there are columns without title in the sheet
+                    headers.add(null);
+                    log.info("Had empty header for column " + CellReference.convertNumToColString(cellNum));
+                } else {
+                    String value = cell.toString();
+                    headers.add(value);
+                    log.info("Had header '" + value + "' for column " + CellReference.convertNumToColString(cellNum));
+                }
+            }
+        } catch (RuntimeException e) {
+            wb.close();
+            throw e;
+        }
+    }
+
+    @Override
+    boolean readRow(String[] values) {
+        while(rowNum <= sheet.getLastRowNum()) {
+            Row row = sheet.getRow(rowNum++);
+            if(row == null) {
+                // ignore missing rows
+                continue;
+            }
+
+            for(int pos = 0;pos < values.length;pos++) {
+                Cell cell = isRead(pos) ? row.getCell(start + pos) : null;
+                if(cell == null) {
+                    // store null-data for empty/missing cells and columns which are not read
+                    values[pos] = null;
+                } else {
+                    //noinspection SwitchStatementWithTooFewBranches
+                    values[pos] = switch (cell.getCellType()) {
+                        case NUMERIC -> getFormat(cell.getCellStyle()).apply(cell).text;
+                        default -> cell.toString();
+                    };
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private CellFormat getFormat(CellStyle style) {
+        if(!cacheFormats) {
+            return CellFormat.getInstance(style.getDataFormatString());
+        }
+
+        int index = style.getIndex() & 0xFFFF;
+        if(index >= formats.length) {
+            formats = Arrays.copyOf(formats, index + 1);
+        }
+
+        CellFormat format = formats[index];
+        if(format == null) {
+            format = CellFormat.getInstance(style.getDataFormatString());
+            formats[index] = format;
+        }
+        return format;
+    }
+
+    @Override
+    public void close() throws IOException {
+        wb.close();
+    }
+}
@@ -0,0 +1,250 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Keeps the compressed content of blocks of rows on disk, so that merging
+ * the same template again only needs to render and compress the blocks which
+ * contain added or changed rows, see {@link IncrementalDocxWriter}.
+ *
+ * There is one file per template, headers and compression-level in the
+ * cache-directory, it contains the key of each block and the compressed segment.
+ * Only the index of the previous run is held in memory, the segments are read
+ * from the file when they are needed. Each run writes a temporary file with the
+ * blocks of this run, which replaces the previous one when the run is committed,
+ * so blocks which are not used any more are removed from the cache. Runs which
+ * fail are discarded and keep the previous file.
+ */
+class FragmentCache implements Closeable {
+    private static final Logger log = LoggerFactory.make();
+
+    // key, CRC-32, uncompressed and compressed length
+    private static final int HEADER_LENGTH = 16 + 4 + 8 + 4;
+
+    private final File file;
+    private final File newFile;
+    private boolean committed;
+
+    // the segments of the previous run
+    private final Map<HashCode, Entry> index = new HashMap<>();
+    private final FileChannel previous;
+
+    private final DataOutputStream out;
+
+    private int hits;
+    private int misses;
+
+    /**
+     * @param directory The directory for the cache-files, it is created if necessary
+     * @param template The text of the template, usually the XML of the document-body
+     * @param headers The header-names as read from the data-file
+     * @param level The compression-level of the segments, see {@link java.util.zip.Deflater}
+     * @throws IOException If the cache-file cannot be read or created
+     */
+    FragmentCache(File directory, String template, List<String> headers, int level) throws IOException {
+        Preconditions.checkArgument(directory.isDirectory() || directory.mkdirs(),
+                "Could not create directory %s for the fragment-cache", directory);
+
+        Hasher hasher = Hashing.sha256().newHasher().
+                putString(template, StandardCharsets.UTF_8).
+                putInt(level);
+        putValues(hasher, headers);
+        String name = "fragments-" + hasher.hash() + ".bin";
+
+        file = new File(directory, name);
+
+        // a separate file for each run, so concurrent merges of the same template do not mix their blocks
+        newFile = Files.createTempFile(directory.toPath(), name, ".new").toFile();
+
+        if (file.exists()) {
+            readIndex();
+            previous = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            log.info("Found " + index.size() + " cached blocks in " + file);
+        } else {
+            previous = null;
+        }
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)));
+        } catch (IOException e) {
+            if (previous != null) {
+                previous.close();
+            }
+            Files.deleteIfExists(newFile.toPath());
+            throw e;
+        }
+    }
+
+    private void readIndex() throws IOException {
+        long size = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long offset = 0;
+            while (true) {
+                byte[] key = new byte[16];
+                in.readFully(key);
+                int crc = in.readInt();
+                long length = in.readLong();
+                int compressed = in.readInt();
+
+                offset += HEADER_LENGTH;
+                if (offset + compressed > size) {
+                    // the last segment was not written completely
+                    break;
+                }
+                in.skipNBytes(compressed);
+
+                index.put(HashCode.fromBytes(key), new Entry(offset, crc, length, compressed));
+                offset += compressed;
+            }
+        } catch (@SuppressWarnings("unused") EOFException e) {
+            // end of the file
+        }
+    }
+
+    /**
+     * @param key The key of a block of rows
+     * @return The compressed segment of the block from the previous run, null if it is not cached
+     * @throws IOException If reading the cache-file fails
+     */
+    DeflateSegment get(HashCode key) throws IOException {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(entry.compressed());
+        while (bytes.hasRemaining()) {
+            if (previous.read(bytes, entry.offset() + bytes.position()) < 0) {
+                throw new EOFException("Could not read cached segment at " + entry.offset() + " from " + file);
+            }
+        }
+
+        hits++;
+        return new DeflateSegment(bytes.array(), entry.crc(), entry.length());
+    }
+
+    /**
+     * Store the segment of a block for the next run, this needs to be called
+     * for all blocks which are used in this run, also for the cached ones.
+     *
+     * @param key The key of a block of rows
+     * @param segment The compressed segment of the block
+     * @throws IOException If writing the cache-file fails
+     */
+    void put(HashCode key, DeflateSegment segment) throws IOException {
+        out.write(key.asBytes());
+        out.writeInt(segment.crc());
+        out.writeLong(segment.length());
+        out.writeInt(segment.data().length);
+        out.write(segment.data());
+    }
+
+    /**
+     * Add the given values to the hash, null and empty values are distinguished.
+     *
+     * @param hasher The hash to update
+     * @param values The values, e.g. headers or one row
+     */
+    static void putValues(Hasher hasher, List<String> values) {
+        for (String value : values) {
+            // include the length to distinguish e.g. ["ab", "c"] and ["a", "bc"]
+            if (value == null) {
+                hasher.putInt(-1);
+            } else {
+                hasher.putInt(value.length());
+                hasher.putUnencodedChars(value);
+            }
+        }
+    }
+
+    /**
+     * @return The number of blocks which were found in the cache
+     */
+    int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of blocks which were not found in the cache
+     */
+    int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Replace the cache-file of the previous run with the one of this run,
+     * this should be called after the result was written successfully.
+     *
+     * @throws IOException If writing the cache-file fails
+     */
+    void commit() throws IOException {
+        Preconditions.checkState(!committed, "The fragment-cache %s was already committed", file);
+
+        closeFiles();
+        Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        committed = true;
+
+        log.info("Found " + hits + " blocks in the cache, " + misses + " blocks were not cached");
+    }
+
+    /**
+     * Discard the blocks of this run if it was not committed, the cache-file
+     * of the previous run is kept in this case.
+     *
+     * @throws IOException If closing the cache-files fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) {
+            return;
+        }
+
+        try {
+            closeFiles();
+        } finally {
+            Files.deleteIfExists(newFile.toPath());
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        try {
+            out.close();
+        } finally {
+            if (previous != null) {
+                previous.close();
+            }
+        }
+    }
+
+    /**
+     * The position of a segment in the cache-file and the values to re-create it.
+     */
+    private record Entry(long offset, int crc, long length, int compressed) {
+    }
+}
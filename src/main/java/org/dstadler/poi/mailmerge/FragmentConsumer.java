@@ -0,0 +1,14 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.IOException;
+
+/**
+ * Receives the rendered body-content of rows in the order of the data-rows.
+ */
+interface FragmentConsumer {
+    /**
+     * @param fragment The rendered content, only valid during the call as the buffer may be re-used
+     * @throws IOException If processing the fragment fails
+     */
+    void accept(CharSequence fragment) throws IOException;
+}
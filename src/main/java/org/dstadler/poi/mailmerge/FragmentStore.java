@@ -0,0 +1,168 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import org.apache.commons.io.input.SequenceReader;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Collects the rendered rows until the resulting document is assembled,
+ * while keeping the used memory within a budget.
+ *
+ * Rows are kept in memory until the budget is used up, all further rows
+ * are appended to a compressed temporary file. When assembling, the rows
+ * are read back in their original order, rows in memory are released as
+ * soon as they were read.
+ */
+class FragmentStore implements FragmentConsumer, Closeable {
+    private static final Logger log = LoggerFactory.make();
+
+    // the estimated memory of a String in addition to its characters
+    private static final int OVERHEAD = 40;
+
+    private final long budget;
+    private final File directory;
+
+    private final Deque<String> fragments = new ArrayDeque<>();
+    private long memoryBytes;
+
+    private File spillFile;
+    private Writer spill;
+    private int spilled;
+
+    private Reader reader;
+
+    /**
+     * @param budget The estimated number of bytes which may be used for keeping rows in memory
+     * @param directory The directory for the temporary file, e.g. the one of the output-file
+     */
+    FragmentStore(long budget, File directory) {
+        Preconditions.checkArgument(budget >= 0, "Need a non-negative memory-budget, but had %s", budget);
+
+        this.budget = budget;
+        this.directory = directory;
+    }
+
+    @Override
+    public void accept(CharSequence fragment) throws IOException {
+        Preconditions.checkState(reader == null, "Cannot add rows after reading started");
+
+        // assume two bytes per character, as rows may contain characters which are not Latin-1
+        long size = OVERHEAD + 2L * fragment.length();
+        if (spill == null && memoryBytes + size <= budget) {
+            fragments.add(fragment.toString());
+            memoryBytes += size;
+            return;
+        }
+
+        if (spill == null) {
+            startSpill();
+        }
+        spill.append(fragment);
+        spilled++;
+    }
+
+    private void startSpill() throws IOException {
+        spillFile = File.createTempFile("MailMerge-", ".fragments.gz", directory);
+        log.info("Keeping " + fragments.size() + " rows in memory, writing all further rows to " + spillFile);
+
+        // rows are only read back once, so the fastest compression is used
+        spill = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(spillFile), 64 * 1024) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        }, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    /**
+     * Read the given prefix, all rows in their original order and the suffix.
+     * The reader can only be opened once, rows cannot be added afterwards.
+     *
+     * @param prefix The text before the rows, e.g. the start of the document
+     * @param suffix The text after the rows
+     * @return A reader which provides the overall text, it is closed when this store is closed
+     * @throws IOException If finishing or opening the temporary file fails
+     */
+    Reader openReader(String prefix, String suffix) throws IOException {
+        Preconditions.checkState(reader == null, "The rows can only be read once");
+
+        List<Reader> spilledRows = Collections.emptyList();
+        if (spill != null) {
+            spill.close();
+            spill = null;
+            spilledRows = Collections.singletonList(new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new FileInputStream(spillFile), 64 * 1024), StandardCharsets.UTF_8), 64 * 1024));
+        }
+
+        // rows in memory are removed while they are read
+        Iterable<Reader> rows = () -> Iterators.transform(Iterators.consumingIterator(fragments.iterator()),
+                StringReader::new);
+
+        reader = new SequenceReader(Iterables.concat(
+                Collections.singletonList(new StringReader(prefix)),
+                rows,
+                spilledRows,
+                Collections.singletonList(new StringReader(suffix))));
+        return reader;
+    }
+
+    /**
+     * @return The number of rows which are kept in memory
+     */
+    int getMemoryRows() {
+        return fragments.size();
+    }
+
+    /**
+     * @return The number of rows which were written to the temporary file
+     */
+    int getSpilledRows() {
+        return spilled;
+    }
+
+    /**
+     * Close the reader and remove the temporary file.
+     *
+     * @throws IOException If closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        fragments.clear();
+        try {
+            if (spill != null) {
+                spill.close();
+            }
+            if (reader != null) {
+                reader.close();
+            }
+        } finally {
+            if (spillFile != null) {
+                Files.deleteIfExists(spillFile.toPath());
+            }
+        }
+    }
+}
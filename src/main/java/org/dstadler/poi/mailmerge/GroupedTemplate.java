@@ -0,0 +1,266 @@
+package org.dstadler.poi.mailmerge;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * A template which is rendered once for a group of rows, e.g. one
+ * invoice for all line-items with the same invoice-number.
+ *
+ * Table-rows of the template which contain the marker ${repeat} are
+ * repeated for each row of the group, all other parts of the template
+ * are rendered with the values of the first row of the group.
+ *
+ * Rows are grouped by the value of one column in a single pass, groups
+ * keep the order in which their first row appears in the data-file, so
+ * the data does not need to be sorted.
+ */
+final class GroupedTemplate {
+    private static final Logger log = LoggerFactory.make();
+
+    static final String REPEAT_MARKER = "${repeat}";
+
+    // start- and end-tags of table-rows like <w:tr> or </w:tr>, but not <w:trPr>
+    private static final Pattern ROW_TAG = Pattern.compile("<(/?)(?:\\w+:)?tr(?=[\\s/>])[^>]*?(/?)>");
+
+    // the parts of the template, alternating between parts which are rendered once and repeated table-rows
+    private final CompiledTemplate[] parts;
+    private final boolean[] repeated;
+
+    // the index of the column which is used to group rows
+    private final int keyColumn;
+
+    // the number of values which are stored for each row
+    private final int columnCount;
+
+    private GroupedTemplate(CompiledTemplate[] parts, boolean[] repeated, int keyColumn, int columnCount) {
+        this.parts = parts;
+        this.repeated = repeated;
+        this.keyColumn = keyColumn;
+        this.columnCount = columnCount;
+    }
+
+    /**
+     * Split the given template into the table-rows which contain the
+     * marker ${repeat} and the parts in between and compile each of them.
+     *
+     * Markers which are not inside a table-row are kept as-is.
+     *
+     * @param template The XML of the document-body
+     * @param headers The header-names as read from the data-file
+     * @param groupBy The name of the column which contains the key of the groups
+     * @return The compiled template which can be used to render groups of rows
+     * @throws IllegalArgumentException If no header matches the group-by column
+     */
+    static GroupedTemplate compile(String template, List<String> headers, String groupBy) {
+        int keyColumn = headers.indexOf(groupBy);
+        Preconditions.checkArgument(keyColumn >= 0,
+                "Could not find column '%s' for grouping rows, had headers: %s", groupBy, headers);
+
+        template = SplitMarkerNormalizer.normalize(template);
+
+        List<CompiledTemplate> parts = new ArrayList<>();
+        List<Boolean> repeated = new ArrayList<>();
+        int start = 0;
+        for (int[] row : findRepeatedRows(template)) {
+            parts.add(CompiledTemplate.compile(template.substring(start, row[0]), headers));
+            repeated.add(false);
+            parts.add(CompiledTemplate.compile(template.substring(row[0], row[1]).replace(REPEAT_MARKER, ""), headers));
+            repeated.add(true);
+            start = row[1];
+        }
+        parts.add(CompiledTemplate.compile(template.substring(start), headers));
+        repeated.add(false);
+
+        if (parts.size() == 1) {
+            log.warning("Did not find a table-row with the marker " + REPEAT_MARKER +
+                    ", only the first row of each group is rendered");
+        }
+
+        boolean[] repeatedParts = new boolean[repeated.size()];
+        for (int i = 0; i < repeatedParts.length; i++) {
+            repeatedParts[i] = repeated.get(i);
+        }
+        return new GroupedTemplate(parts.toArray(new CompiledTemplate[0]), repeatedParts, keyColumn, headers.size());
+    }
+
+    /**
+     * Find the innermost table-row around each repeat-marker.
+     *
+     * @return The start and end of each row in the order of the template, rows do not overlap
+     */
+    static List<int[]> findRepeatedRows(String template) {
+        List<int[]> rows = new ArrayList<>();
+
+        // the start of all table-rows which are open at the current position
+        Deque<Integer> open = new ArrayDeque<>();
+
+        int marker = template.indexOf(REPEAT_MARKER);
+        int rowStart = -1;
+        int rowDepth = 0;
+        int previousEnd = 0;
+        Matcher tag = ROW_TAG.matcher(template);
+        while ((marker >= 0 || rowStart >= 0) && tag.find()) {
+            // markers before this tag are inside the innermost open row
+            while (marker >= 0 && marker < tag.start()) {
+                if (rowStart < 0 && !open.isEmpty() && open.peek() >= previousEnd) {
+                    rowStart = open.peek();
+                    rowDepth = open.size();
+                }
+                marker = template.indexOf(REPEAT_MARKER, marker + REPEAT_MARKER.length());
+            }
+
+            if (!tag.group(1).isEmpty()) {
+                if (rowStart >= 0 && open.size() == rowDepth) {
+                    rows.add(new int[] { rowStart, tag.end() });
+                    previousEnd = tag.end();
+                    rowStart = -1;
+                }
+                open.poll();
+            } else if (tag.group(2).isEmpty()) {
+                open.push(tag.start());
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * Collect the rows of each group in a single pass over the data.
+     *
+     * The rows are copied into a compact column-wise table, as the source may
+     * re-use the row-instance and values of the group like names or addresses
+     * are repeated for each row, each group only keeps the indexes of its rows.
+     *
+     * @param rows The rows of the data-file
+     * @return The rows of each group, in the order in which the groups appear first
+     */
+    Collection<List<List<String>>> group(Iterable<List<String>> rows) {
+        ColumnarTable table = new ColumnarTable(columnCount);
+        Map<String, Group> groups = new LinkedHashMap<>();
+        for (List<String> row : rows) {
+            // rows without a key form their own group, separate from rows with an empty key
+            String key = keyColumn < row.size() ? row.get(keyColumn) : null;
+            groups.computeIfAbsent(key, k -> new Group(table)).add(table.size());
+            table.add(row);
+        }
+        table.trim();
+
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    /**
+     * Bind the template to the pictures of one resulting document.
+     *
+     * @param media Receives the pictures which are rendered for image-markers
+     * @return A template which renders image-markers as drawings
+     */
+    GroupedTemplate withMedia(MediaParts media) {
+        CompiledTemplate[] bound = new CompiledTemplate[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            bound[i] = parts[i].withMedia(media);
+        }
+        return new GroupedTemplate(bound, repeated, keyColumn, columnCount);
+    }
+
+    /**
+     * Append the template for one group to the buffer, repeated table-rows are
+     * rendered for each row, all other parts with the values of the first row.
+     *
+     * @param rows The rows of one group, at least one
+     * @param out The buffer to append the result to
+     */
+    void render(List<List<String>> rows, StringBuilder out) {
+        List<String> first = rows.get(0);
+        for (int i = 0; i < parts.length; i++) {
+            if (repeated[i]) {
+                for (List<String> row : rows) {
+                    parts[i].render(row, out);
+                }
+            } else {
+                parts[i].render(first, out);
+            }
+        }
+    }
+
+    /**
+     * @return The overall length of the literal text of one group with one row, useful for sizing buffers
+     */
+    int getLength() {
+        int length = 0;
+        for (CompiledTemplate part : parts) {
+            length += part.getLength();
+        }
+        return length;
+    }
+
+    /**
+     * @return If any part of the template contains image-markers which insert pictures
+     */
+    boolean hasImages() {
+        for (CompiledTemplate part : parts) {
+            if (part.hasImages()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of table-rows which are repeated for each row of a group
+     */
+    int getRepeatedRows() {
+        int count = 0;
+        for (boolean row : repeated) {
+            if (row) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The indexes of the rows of one group, which are returned as views on the stored rows.
+     */
+    private static final class Group extends AbstractList<List<String>> {
+        private final ColumnarTable table;
+        private int[] rows = new int[1];
+        private int size;
+
+        private Group(ColumnarTable table) {
+            this.table = table;
+        }
+
+        private void add(int row) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+
+        @Override
+        public List<String> get(int index) {
+            Preconditions.checkElementIndex(index, size);
+            return table.get(rows[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
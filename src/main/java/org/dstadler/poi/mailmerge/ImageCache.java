@@ -0,0 +1,129 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.google.common.hash.Hashing;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Probes the image-files which are referenced in the data, each file is
+ * read once to compute the hash of its content and to decode the size of
+ * the image, the result is kept for all further rows which use the same file.
+ *
+ * The content of the files is not held in memory, it is read again when
+ * the image is written into the resulting document.
+ *
+ * Files which do not exist, are not a supported image-format or are
+ * not allowed are reported once and ignored.
+ */
+final class ImageCache {
+    private static final Logger log = LoggerFactory.make();
+
+    private final File baseDir;
+    private final Predicate<File> allowed;
+    private final ConcurrentMap<String, Optional<Image>> images = new ConcurrentHashMap<>();
+
+    /**
+     * @param baseDir The directory which relative paths are resolved against, usually the one of the data-file
+     */
+    ImageCache(File baseDir) {
+        this(baseDir, file -> true);
+    }
+
+    /**
+     * @param baseDir The directory which relative paths are resolved against, usually the one of the data-file
+     * @param allowed Checks the resolved path of each image-file before it is read
+     */
+    ImageCache(File baseDir, Predicate<File> allowed) {
+        this.baseDir = baseDir;
+        this.allowed = allowed;
+    }
+
+    /**
+     * @param path The path of the image-file as found in the data
+     * @return The probed image, null if the file cannot be read as image
+     */
+    Image get(String path) {
+        return images.computeIfAbsent(path.trim(), this::probe).orElse(null);
+    }
+
+    private Optional<Image> probe(String path) {
+        File file = new File(path);
+        if (!file.isAbsolute() && baseDir != null) {
+            file = new File(baseDir, path);
+        }
+
+        if (!allowed.test(file)) {
+            log.warning("Ignoring image " + file + " as it is not inside the allowed directories");
+            return Optional.empty();
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+                if (!readers.hasNext()) {
+                    log.warning("Ignoring image " + file + " as it has an unsupported format");
+                    return Optional.empty();
+                }
+
+                ImageReader reader = readers.next();
+                try {
+                    // only the header is decoded to get the size
+                    reader.setInput(stream, true, true);
+                    String extension = reader.getFormatName().toLowerCase(Locale.ROOT);
+                    if (extension.equals("tif")) {
+                        extension = "tiff";
+                    }
+
+                    return Optional.of(new Image(file, Hashing.sha256().hashBytes(bytes).toString(), extension,
+                            reader.getWidth(0), reader.getHeight(0)));
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            log.warning("Ignoring image " + file + " as it cannot be read: " + e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return The number of distinct paths which were probed
+     */
+    int size() {
+        return images.size();
+    }
+
+    /**
+     * An image-file which was probed.
+     *
+     * @param file The resolved file
+     * @param hash The SHA-256 hash of the content as hex-string
+     * @param extension The file-extension of the format, e.g. "png" or "jpeg"
+     * @param width The width in pixels
+     * @param height The height in pixels
+     */
+    record Image(File file, String hash, String extension, int width, int height) {
+        /**
+         * @return The MIME content-type of the format
+         */
+        String contentType() {
+            return "image/" + extension;
+        }
+    }
+}
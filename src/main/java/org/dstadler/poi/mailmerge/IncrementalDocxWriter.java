@@ -0,0 +1,147 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Writes a merged Microsoft Word document and re-uses the compressed
+ * content of unchanged rows from a previous run via a {@link FragmentCache}.
+ *
+ * Rows are grouped into blocks, each block is rendered and compressed
+ * as one {@link DeflateSegment} and stored in the cache under a hash of
+ * the values of its rows. Blocks which were already written in the previous
+ * run are copied from the cache without rendering or compressing them.
+ *
+ * The end of a block is chosen based on the hash of a row, not on the
+ * number of rows, so inserting or removing a row only changes the block
+ * which contains it and the following blocks are still found in the cache.
+ */
+class IncrementalDocxWriter implements Closeable {
+    private static final Logger log = LoggerFactory.make();
+
+    // a block ends after a row where the lowest bits of the hash are zero, i.e. on average every 256 rows
+    private static final int BOUNDARY_MASK = 0xFF;
+    private static final int MIN_BLOCK_ROWS = 64;
+    private static final int MAX_BLOCK_ROWS = 1024;
+
+    private final TemplatePackage templatePackage;
+    private final CompiledTemplate template;
+    private final FragmentCache cache;
+    private final int level;
+    private final SegmentedDocxWriter writer;
+
+    private final List<List<String>> block = new ArrayList<>();
+    private final StringBuilder buffer = new StringBuilder();
+    private Hasher blockHash = Hashing.murmur3_128().newHasher();
+
+    private int renderedRows;
+    private int cachedRows;
+
+    /**
+     * @param template The package of the template, used for all other parts of the document
+     * @param compiled The compiled body of the template
+     * @param cache The cache of the blocks, it is not closed by this writer
+     * @param out The stream to write the resulting .docx to, it is closed when this writer is closed
+     * @param level The compression-level for rendered blocks and the other parts, see {@link Deflater}
+     * @throws IOException If writing fails
+     */
+    IncrementalDocxWriter(TemplatePackage template, CompiledTemplate compiled, FragmentCache cache, OutputStream out,
+            int level) throws IOException {
+        this.templatePackage = template;
+        this.template = compiled;
+        this.cache = cache;
+        this.level = level;
+        this.writer = new SegmentedDocxWriter(template, out, level);
+        writer.write(DeflateSegment.compress(template.getPrefix().getBytes(StandardCharsets.UTF_8), level));
+    }
+
+    /**
+     * Add one row to the document.
+     *
+     * @param row The values of the row, may be re-used by the caller afterwards
+     * @throws IOException If writing fails
+     */
+    void write(List<String> row) throws IOException {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        FragmentCache.putValues(hasher, row);
+        HashCode rowHash = hasher.hash();
+
+        block.add(new ArrayList<>(row));
+        blockHash.putBytes(rowHash.asBytes());
+
+        if ((block.size() >= MIN_BLOCK_ROWS && (rowHash.asInt() & BOUNDARY_MASK) == 0) ||
+                block.size() >= MAX_BLOCK_ROWS) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (block.isEmpty()) {
+            return;
+        }
+
+        HashCode key = blockHash.hash();
+        DeflateSegment segment = cache.get(key);
+        if (segment == null) {
+            buffer.setLength(0);
+            for (List<String> row : block) {
+                template.render(row, buffer);
+            }
+            segment = DeflateSegment.compress(buffer.toString().getBytes(StandardCharsets.UTF_8), level);
+            renderedRows += block.size();
+        } else {
+            cachedRows += block.size();
+        }
+
+        cache.put(key, segment);
+        writer.write(segment);
+
+        block.clear();
+        blockHash = Hashing.murmur3_128().newHasher();
+    }
+
+    /**
+     * @return The number of rows which were rendered
+     */
+    int getRenderedRows() {
+        return renderedRows;
+    }
+
+    /**
+     * @return The number of rows which were taken from the cache
+     */
+    int getCachedRows() {
+        return cachedRows;
+    }
+
+    /**
+     * Write the remaining rows and finish the document.
+     *
+     * The document is finished also when writing the rows failed, so it should be
+     * written to a temporary file which only replaces the result on success.
+     *
+     * @throws IOException If writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+            writer.write(DeflateSegment.compress(templatePackage.getSuffix().getBytes(StandardCharsets.UTF_8), level));
+        } finally {
+            writer.close();
+        }
+
+        log.info("Took " + cachedRows + " rows from the cache and rendered " + renderedRows + " rows");
+    }
+}
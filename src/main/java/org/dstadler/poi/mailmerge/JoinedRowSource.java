@@ -0,0 +1,215 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.StringUtils;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Adds the values of matching rows from other data-files or other sheets
+ * to the rows of a source, e.g. the orders of a customer.
+ *
+ * The columns of a lookup are added as additional headers in the form
+ * "name.header", so they can be used as template-marker like
+ * <code>${orders.total}</code> and in filter-expressions.
+ *
+ * Each lookup is read once when reading the rows starts and held in memory
+ * in a hash-index on its key-column, so joining needs one hash-lookup per
+ * row and lookup. Only the columns which are read according to
+ * {@link #setColumns(java.util.Collection)} are kept in memory. If a key
+ * occurs multiple times in a lookup, the first row is used. Rows without
+ * matching row in a lookup are still returned, with null values for the
+ * columns of the lookup.
+ */
+final class JoinedRowSource extends RowSource {
+    private static final Logger log = LoggerFactory.make();
+
+    private final RowSource source;
+    private final List<Lookup> lookups;
+    private final List<RowSource> lookupSources = new ArrayList<>();
+
+    // position of the key-column in the rows of the source, for each lookup
+    private final int[] keyColumns;
+
+    // position of the first column of each lookup in the joined rows
+    private final int[] offsets;
+
+    private final List<Map<String, String[]>> indexes = new ArrayList<>();
+    private Iterator<List<String>> rows;
+
+    /**
+     * Open all lookups and read their headers, the rows are read when
+     * reading the rows of this source starts.
+     *
+     * @param source The source of the rows which are merged, it is closed when this source is closed
+     * @param dataFile The data-file of the source, used for lookups which read another sheet of it
+     * @param charset The encoding of CSV files
+     * @param lookups The lookups to join
+     * @throws IOException If a lookup cannot be opened
+     * @throws IllegalArgumentException If a key-column does not exist
+     */
+    JoinedRowSource(RowSource source, File dataFile, Charset charset, List<Lookup> lookups) throws IOException {
+        this.source = source;
+        this.lookups = lookups;
+        this.keyColumns = new int[lookups.size()];
+        this.offsets = new int[lookups.size()];
+
+        headers.addAll(source.getHeaders());
+        try {
+            for (int i = 0; i < lookups.size(); i++) {
+                Lookup lookup = lookups.get(i);
+
+                keyColumns[i] = source.getHeaders().indexOf(lookup.column());
+                Preconditions.checkArgument(keyColumns[i] >= 0,
+                        "Cannot join %s on column %s as there is no such column, had: %s",
+                        lookup.name(), lookup.column(), source.getHeaders());
+
+                RowSource lookupSource = RowSource.open(lookup.dataFile() == null ? dataFile : lookup.dataFile(),
+                        lookup.sheet(), charset, 1);
+                lookupSources.add(lookupSource);
+                Preconditions.checkArgument(lookupSource.getHeaders().contains(lookup.keyColumn()),
+                        "Cannot join %s on key-column %s as there is no such column, had: %s",
+                        lookup.name(), lookup.keyColumn(), lookupSource.getHeaders());
+
+                offsets[i] = headers.size();
+                for (String header : lookupSource.getHeaders()) {
+                    // columns without header cannot be used in the template
+                    headers.add(header == null ? null : lookup.name() + "." + header);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    boolean readRow(String[] values) throws IOException {
+        if (rows == null) {
+            start();
+        }
+
+        if (!rows.hasNext()) {
+            return false;
+        }
+
+        // key-columns are read from the source also if they are not read in this source
+        List<String> row = rows.next();
+        for (int pos = 0; pos < row.size(); pos++) {
+            values[pos] = isRead(pos) ? row.get(pos) : null;
+        }
+
+        for (int i = 0; i < lookups.size(); i++) {
+            String key = row.get(keyColumns[i]);
+            String[] match = key == null ? null : indexes.get(i).get(key);
+
+            int width = lookupSources.get(i).getHeaders().size();
+            for (int pos = 0; pos < width; pos++) {
+                values[offsets[i] + pos] = match == null || !isRead(offsets[i] + pos) ? null : match[pos];
+            }
+        }
+
+        return true;
+    }
+
+    private void start() {
+        // the key-columns are always needed for joining
+        List<String> keys = new ArrayList<>();
+        for (Lookup lookup : lookups) {
+            keys.add(lookup.column());
+        }
+        setColumns(source, 0, source.getHeaders(), keys);
+
+        for (int i = 0; i < lookups.size(); i++) {
+            Lookup lookup = lookups.get(i);
+            RowSource lookupSource = lookupSources.get(i);
+            setColumns(lookupSource, offsets[i], lookupSource.getHeaders(), List.of(lookup.keyColumn()));
+
+            int keyColumn = lookupSource.getHeaders().indexOf(lookup.keyColumn());
+            Map<String, String[]> index = new HashMap<>();
+            int duplicates = 0;
+            for (List<String> row : lookupSource) {
+                String key = row.get(keyColumn);
+                if (StringUtils.isEmpty(key)) {
+                    continue;
+                }
+
+                // the first row wins if a key is used multiple times
+                if (index.putIfAbsent(key, row.toArray(new String[0])) != null) {
+                    duplicates++;
+                }
+            }
+            indexes.add(index);
+
+            log.info("Read " + index.size() + " rows for lookup " + lookup.name() + " on column " + lookup.column() +
+                    (duplicates > 0 ? ", ignored " + duplicates + " rows with duplicate key" : ""));
+        }
+
+        rows = source.iterator();
+    }
+
+    /**
+     * Only read the columns of the given source which are read in this source,
+     * plus the given key-columns.
+     */
+    private void setColumns(RowSource rowSource, int offset, List<String> sourceHeaders, List<String> keys) {
+        List<String> columns = new ArrayList<>(keys);
+        boolean all = true;
+        for (int pos = 0; pos < sourceHeaders.size(); pos++) {
+            if (isRead(offset + pos)) {
+                columns.add(sourceHeaders.get(pos));
+            } else {
+                all = false;
+            }
+        }
+
+        if (!all) {
+            rowSource.setColumns(columns);
+        }
+    }
+
+    @Override
+    int getSkippedRows() {
+        // empty rows are already skipped while reading the source
+        return super.getSkippedRows() + source.getSkippedRows();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (RowSource lookupSource : lookupSources) {
+                lookupSource.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * A data-file or sheet which is joined with the rows of the merged data.
+     *
+     * @param name The prefix for the headers of the lookup, e.g. "orders" for markers like ${orders.total}
+     * @param dataFile The CSV or Excel file to read, null to read another sheet of the merged data-file
+     * @param sheet The name of the sheet of an Excel file, null for the first sheet or for CSV files
+     * @param column The column of the merged data which contains the key
+     * @param keyColumn The column of the lookup which is matched with the key
+     */
+    record Lookup(String name, File dataFile, String sheet, String column, String keyColumn) {
+        Lookup {
+            Preconditions.checkArgument(StringUtils.isNotBlank(name), "Need a name for the lookup");
+            Preconditions.checkArgument(dataFile != null || sheet != null,
+                    "Need either a data-file or a sheet for lookup %s", name);
+            Preconditions.checkNotNull(column, "Need a column for lookup %s", name);
+            Preconditions.checkNotNull(keyColumn, "Need a key-column for lookup %s", name);
+        }
+    }
+}
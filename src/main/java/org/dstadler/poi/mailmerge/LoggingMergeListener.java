@@ -0,0 +1,17 @@
+package org.dstadler.poi.mailmerge;
+
+import java.util.logging.Logger;
+
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * The default listener which logs a short summary of each merge.
+ */
+class LoggingMergeListener implements MergeListener {
+    private static final Logger log = LoggerFactory.make();
+
+    @Override
+    public void mergeFinished(MergeStatistics statistics) {
+        log.info(statistics.toString());
+    }
+}
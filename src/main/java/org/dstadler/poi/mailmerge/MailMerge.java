@@ -1,26 +1,34 @@
 package org.dstadler.poi.mailmerge;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 import com.google.common.base.Preconditions;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.text.StringEscapeUtils;
+import com.google.common.collect.Iterables;
 import org.apache.poi.xwpf.usermodel.XWPFDocument;
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
-import org.apache.xmlbeans.XmlOptions;
 import org.dstadler.commons.logging.jdk.LoggerFactory;
 import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTBody;
 import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTDocument1;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.DocumentDocument;
 
 /**
  * Simple application which performs a "mail-merge" of a Microsoft Word template
@@ -34,6 +42,31 @@ import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTDocument1;
 public class MailMerge {
     private static final Logger log = LoggerFactory.make();
 
+    // batches of rows per render-thread which are queued up when pipelined
+    private static final int PIPELINE_CAPACITY = 4;
+
+    private boolean streaming = Boolean.getBoolean("org.dstadler.poi.mailmerge.streaming");
+    private boolean pipelined = Boolean.getBoolean("org.dstadler.poi.mailmerge.pipelined");
+    private int renderThreads = Integer.getInteger("org.dstadler.poi.mailmerge.renderthreads", 1);
+    private String splitPattern = System.getProperty("org.dstadler.poi.mailmerge.split");
+    private int rolloverRows = Integer.getInteger("org.dstadler.poi.mailmerge.rolloverrows", 0);
+    private long rolloverBytes = Long.getLong("org.dstadler.poi.mailmerge.rolloverbytes", 0);
+    private boolean logRows = Boolean.getBoolean("org.dstadler.poi.mailmerge.logrows");
+    private String filter = System.getProperty("org.dstadler.poi.mailmerge.filter");
+    private String groupBy = System.getProperty("org.dstadler.poi.mailmerge.groupby");
+    private boolean projectColumns = Boolean.getBoolean("org.dstadler.poi.mailmerge.projectcolumns");
+    private Charset charset = Charset.forName(System.getProperty("org.dstadler.poi.mailmerge.charset",
+            Charset.defaultCharset().name()));
+    private int readThreads = Integer.getInteger("org.dstadler.poi.mailmerge.readthreads", 1);
+    private int compressionLevel = Integer.getInteger("org.dstadler.poi.mailmerge.compressionlevel", Deflater.DEFAULT_COMPRESSION);
+    private int compressThreads = Integer.getInteger("org.dstadler.poi.mailmerge.compressthreads", 1);
+    private long memoryBudget = Long.getLong("org.dstadler.poi.mailmerge.memorybudget", defaultMemoryBudget());
+    private File fragmentCache = System.getProperty("org.dstadler.poi.mailmerge.fragmentcache") == null ?
+            null : new File(System.getProperty("org.dstadler.poi.mailmerge.fragmentcache"));
+    private final List<JoinedRowSource.Lookup> lookups = new ArrayList<>();
+    private MergeListener listener = new LoggingMergeListener();
+    private Predicate<File> allowedImages = file -> true;
+
     /**
      * Main method to run Mail-Merge as application
      *
@@ -61,125 +94,809 @@ public class MailMerge {
         new MailMerge().merge(wordTemplate, excelFile, new File(outputFile));
     }
 
+    /**
+     * Write the main document of the result as a stream while the rows
+     * are rendered, instead of building it in memory and parsing it into
+     * the document of the template before writing.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.streaming".
+     *
+     * @param streaming true to stream the result
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    /**
+     * Read, render and write rows at the same time: the rows are read on a
+     * separate thread and rendered on the number of threads set via
+     * {@link #setRenderThreads(int)}, while the calling thread writes the result.
+     * The stages are connected by a bounded queue, so only a limited number
+     * of rows is held in memory.
+     *
+     * This implies streaming the result. The time of reading, rendering and
+     * writing is then measured on the different threads, so the sum of the
+     * phases can be larger than the overall time.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.pipelined".
+     *
+     * @param pipelined true to run reading, rendering and writing concurrently
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        return this;
+    }
+
+    /**
+     * Render the rows on the given number of threads, the resulting
+     * document still contains the rows in the order of the data-file.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.renderthreads"
+     * or 1 for rendering on the calling thread.
+     *
+     * @param renderThreads The number of threads, use Runtime.getRuntime().availableProcessors() to use all cores
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setRenderThreads(int renderThreads) {
+        Preconditions.checkArgument(renderThreads > 0, "Need at least one thread, but had %s", renderThreads);
+        this.renderThreads = renderThreads;
+        return this;
+    }
+
+    /**
+     * Write one separate document for each row instead of one document
+     * with all rows concatenated.
+     *
+     * The output-file is then used as directory for the documents, or,
+     * if it has the extension .zip, the documents are bundled into one
+     * zip-file. The documents are written with the number of threads
+     * set via {@link #setRenderThreads(int)}.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.split".
+     *
+     * @param splitPattern The pattern for the file-names, e.g. "Letter-${Name}.docx", or null to produce a single document
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setSplitPattern(String splitPattern) {
+        this.splitPattern = splitPattern;
+        return this;
+    }
+
+    /**
+     * Write the result into a sequence of documents and start a new one
+     * after the given number of rows, e.g. Result-0001.docx, Result-0002.docx, ...
+     * for an output-file Result.docx.
+     *
+     * This implies streaming the result, each document is finished before
+     * the next one is started.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.rolloverrows".
+     *
+     * @param rolloverRows The maximum number of rows per document, 0 for no limit
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setRolloverRows(int rolloverRows) {
+        Preconditions.checkArgument(rolloverRows >= 0, "Cannot use a negative number of rows, had %s", rolloverRows);
+        this.rolloverRows = rolloverRows;
+        return this;
+    }
+
+    /**
+     * Write the result into a sequence of documents and start a new one
+     * as soon as the uncompressed main document of the current one reaches
+     * the given number of bytes.
+     *
+     * This implies streaming the result, each document is finished before
+     * the next one is started.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.rolloverbytes".
+     *
+     * @param rolloverBytes The size of the main document per document, 0 for no limit
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setRolloverBytes(long rolloverBytes) {
+        Preconditions.checkArgument(rolloverBytes >= 0, "Cannot use a negative size, had %s", rolloverBytes);
+        this.rolloverBytes = rolloverBytes;
+        return this;
+    }
+
+    /**
+     * Log the values of each row while merging, this is disabled by
+     * default as it slows down merging many rows considerably.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.logrows".
+     *
+     * @param logRows true to log each row
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setLogRows(boolean logRows) {
+        this.logRows = logRows;
+        return this;
+    }
+
+    /**
+     * Only merge the rows which match the given filter-expression, e.g.
+     * <code>Country == "AT" &amp;&amp; Amount &gt; 100</code>, see {@link RowFilter}
+     * for the supported syntax.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.filter".
+     *
+     * @param filter The filter-expression or null to merge all rows
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setFilter(String filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Render the template once per group of rows which have the same value in the
+     * given column instead of once per row, e.g. one invoice with all its line-items.
+     *
+     * Table-rows of the template which contain the marker ${repeat} are repeated
+     * for each row of the group, all other markers use the values of the first
+     * row of the group. Rows are grouped in a single pass, so the data-file does
+     * not need to be sorted, but all rows are held in memory while merging. The
+     * groups are rendered on the calling thread in the order of their first row.
+     *
+     * Cannot be used when writing one document per row.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.groupby".
+     *
+     * @param groupBy The header of the column which contains the key of the groups, or null to merge each row separately
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setGroupBy(String groupBy) {
+        this.groupBy = groupBy;
+        return this;
+    }
+
+    /**
+     * Only read the columns of the data-file which are used as template-markers,
+     * in the file-name pattern, as include-indicator or in the filter. The
+     * values of other columns are not converted, which makes reading data-files
+     * with many unused columns faster.
+     *
+     * Rows which only have values in columns that are not used are then skipped
+     * like empty rows.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.projectcolumns".
+     *
+     * @param projectColumns true to only read the columns which are used
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setProjectColumns(boolean projectColumns) {
+        this.projectColumns = projectColumns;
+        return this;
+    }
+
+    /**
+     * Set the encoding of CSV data-files.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.charset"
+     * or the default charset of the platform.
+     *
+     * @param charset The charset to decode CSV files with
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setCharset(Charset charset) {
+        this.charset = Preconditions.checkNotNull(charset, "Cannot use null as charset");
+        return this;
+    }
+
+    /**
+     * Parse CSV data-files on the given number of threads, this speeds up
+     * reading very large files, the rows are still merged in the order of
+     * the file.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.readthreads"
+     * or 1 for reading on the calling thread.
+     *
+     * @param readThreads The number of threads
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setReadThreads(int readThreads) {
+        Preconditions.checkArgument(readThreads > 0, "Need at least one thread, but had %s", readThreads);
+        this.readThreads = readThreads;
+        return this;
+    }
+
+    /**
+     * Set the compression-level of the resulting documents, e.g.
+     * {@link Deflater#BEST_SPEED} for faster merging or {@link Deflater#NO_COMPRESSION}
+     * for intermediate files which are processed further.
+     *
+     * This implies streaming the result unless one document per row is written.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.compressionlevel"
+     * or {@link Deflater#DEFAULT_COMPRESSION}.
+     *
+     * @param compressionLevel The level from 0 (no compression) to 9 (best compression) or -1 for the default
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setCompressionLevel(int compressionLevel) {
+        Preconditions.checkArgument(compressionLevel == Deflater.DEFAULT_COMPRESSION ||
+                (compressionLevel >= Deflater.NO_COMPRESSION && compressionLevel <= Deflater.BEST_COMPRESSION),
+                "Invalid compression-level %s", compressionLevel);
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * Compress the main document of the result on the given number of threads,
+     * it is split into blocks which are compressed in parallel and written in
+     * order, the result is still a standard .docx file.
+     *
+     * This implies streaming the result. It is not used when writing one document
+     * per row, as the documents are written on multiple threads already.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.compressthreads"
+     * or 1 for compressing on the thread which writes the result.
+     *
+     * @param compressThreads The number of threads
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setCompressThreads(int compressThreads) {
+        Preconditions.checkArgument(compressThreads > 0, "Need at least one thread, but had %s", compressThreads);
+        this.compressThreads = compressThreads;
+        return this;
+    }
+
+    /**
+     * Limit the memory which is used for keeping the rendered rows until they
+     * are parsed into the resulting document. If the rows need more memory, all
+     * further rows are written to a compressed temporary file next to the output-file
+     * and the result is streamed into the template instead of building it in memory,
+     * so large merges do not fail with an OutOfMemoryError.
+     *
+     * The used memory is estimated with two bytes per character of the rendered XML,
+     * parsing the rows into the document needs multiple times this amount.
+     *
+     * With a budget, rows are rendered from the XML of the template-file, so
+     * that they fit into the streamed result as well as into the document.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.memorybudget",
+     * or one 16th of the maximum heap-size of the JVM, as parsing the rows needs
+     * multiple times the budget.
+     *
+     * @param memoryBudget The number of bytes for rendered rows, 0 to always stream the result,
+     *          {@link Long#MAX_VALUE} to always keep all rows in memory
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setMemoryBudget(long memoryBudget) {
+        Preconditions.checkArgument(memoryBudget >= 0, "Need a non-negative memory-budget, but had %s", memoryBudget);
+
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    static long defaultMemoryBudget() {
+        return Runtime.getRuntime().maxMemory() / 16;
+    }
+
+    /**
+     * Keep the compressed content of blocks of rows in the given directory, merging
+     * the same template again then only renders and compresses rows which were
+     * added or changed in the data-file and copies all others from the cache.
+     *
+     * This implies streaming the result, rows are rendered on the calling thread.
+     * The cache is not used when writing one document per row or when starting
+     * new documents after a number of rows or bytes.
+     *
+     * Defaults to the system property "org.dstadler.poi.mailmerge.fragmentcache".
+     *
+     * @param fragmentCache The directory for the cache-files, or null to render all rows
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setFragmentCache(File fragmentCache) {
+        this.fragmentCache = fragmentCache;
+        return this;
+    }
+
+    /**
+     * Join the rows of the data-file with the rows of another data-file or sheet
+     * which have the same value in the key-column, e.g. to add the orders of a
+     * customer without joining the files beforehand.
+     *
+     * The columns of the lookup can then be used as template-markers in the form
+     * ${name.header}, e.g. ${orders.total}, and in the filter. The lookup is read
+     * into memory once per merge and indexed by the key-column, if a key is used
+     * multiple times, the first row is used. Rows without matching row in the
+     * lookup are merged with empty values.
+     *
+     * @param name The prefix for the columns of the lookup, e.g. "orders"
+     * @param dataFile The CSV or Excel file to read, null to read another sheet of the merged data-file
+     * @param sheet The name of the sheet of an Excel file, null for the first sheet or for CSV files
+     * @param column The column of the merged data-file which contains the key
+     * @param keyColumn The column of the lookup which is matched with the key
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge addLookup(String name, File dataFile, String sheet, String column, String keyColumn) {
+        lookups.add(new JoinedRowSource.Lookup(name, dataFile, sheet, column, keyColumn));
+        return this;
+    }
+
+    /**
+     * Set the listener which is notified with the statistics of each
+     * merge, by default a short summary is logged.
+     *
+     * @param listener The listener to use
+     * @return This instance to allow chaining calls
+     */
+    public MailMerge setListener(MergeListener listener) {
+        this.listener = Preconditions.checkNotNull(listener, "Cannot use null as listener");
+        return this;
+    }
+
+    /**
+     * Restrict the image-files which are inserted for image-markers, e.g. when
+     * the data comes from a client of {@link MailMergeServer}. Other files are
+     * reported and left out like files which cannot be read.
+     *
+     * @param allowedImages Checks the resolved path of each image-file
+     * @return This instance to allow chaining calls
+     */
+    MailMerge setAllowedImages(Predicate<File> allowedImages) {
+        this.allowedImages = Preconditions.checkNotNull(allowedImages, "Cannot use null for allowed images");
+        return this;
+    }
+
     /**
      * Invoke mail-merge with the given input and output files.
      *
      * @param wordTemplate The word-template to use
      * @param dataFile The Excel/CSV file which contains one row for each resulting page
-     * @param outputFile The output word-document
+     * @param outputFile The output word-document, or the target directory/zip-file when writing one document per row
      * @throws IOException If processing fails
      */
     public void merge(File wordTemplate, File dataFile, File outputFile) throws IOException {
         log.info("Merging data from " + wordTemplate + " and " + dataFile + " into " + outputFile);
 
-        // read the data-rows from the CSV or XLS(X) file
-        Data data = new Data();
+        merge(wordTemplate, null, dataFile, null, outputFile);
+    }
+
+    /**
+     * Invoke mail-merge with a template which was loaded before, e.g. to
+     * merge the same template many times without reading it again.
+     *
+     * The result is always streamed, see {@link #setStreaming(boolean)}.
+     *
+     * @param template The word-template to use
+     * @param dataFile The Excel/CSV file which contains one row for each resulting page
+     * @param outputFile The output word-document, or the target directory/zip-file when writing one document per row
+     * @throws IOException If processing fails
+     */
+    public void merge(TemplatePackage template, File dataFile, File outputFile) throws IOException {
+        log.info("Merging data from " + dataFile + " into " + outputFile);
+
+        merge(null, template, dataFile, null, outputFile);
+    }
+
+    /**
+     * Invoke mail-merge with a template and data which were read before, e.g. to
+     * merge the same data-file into multiple templates without reading it again.
+     * The result is always streamed.
+     *
+     * @param template The word-template to use
+     * @param data The rows read via {@link #readData(File)}, they are not changed
+     * @param dataFile The file which the data was read from, used for lookups and relative paths of pictures
+     * @param outputFile The output word-document, or the target directory/zip-file when writing one document per row
+     * @throws IOException If processing fails
+     */
+    void merge(TemplatePackage template, Data data, File dataFile, File outputFile) throws IOException {
+        log.info("Merging data from " + dataFile + " into " + outputFile);
+
+        merge(null, template, dataFile, data, outputFile);
+    }
+
+    /**
+     * Read all rows of the given data-file into memory with the charset and
+     * threads of this instance, stored column-wise to use less memory.
+     *
+     * @param dataFile The Excel/CSV file to read
+     * @return The rows of the file, including the ones which do not match the filter
+     * @throws IOException If reading fails
+     */
+    Data readData(File dataFile) throws IOException {
+        Data data = new Data(true).setCharset(charset).setReadThreads(readThreads);
         data.read(dataFile);
+        return data;
+    }
+
+    private void merge(File wordTemplate, TemplatePackage template, File dataFile, Data rows,
+            File outputFile) throws IOException {
+        Preconditions.checkState(groupBy == null || splitPattern == null,
+                "Cannot group rows by %s when writing one document per row", groupBy);
 
+        MergeStatistics statistics = new MergeStatistics();
+        statistics.start();
+        try {
+            // open the CSV or XLS(X) file, the data-rows are read while merging
+            // relative paths of pictures are resolved against the directory of the data-file
+            ImageCache images = new ImageCache(dataFile.getAbsoluteFile().getParentFile(), allowedImages);
+
+            long start = System.nanoTime();
+            try (RowSource data = openData(dataFile, rows)) {
+                statistics.readNanos = System.nanoTime() - start;
+
+                // small hack to not having to rework the commandline parsing just now
+                data.setIncludeIndicator(System.getProperty("org.dstadler.poi.mailmerge.includeindicator"));
+                data.setFilter(filter);
+
+                if (splitPattern != null) {
+                    mergeSplit(loadTemplate(wordTemplate, template, statistics), data, outputFile, images, statistics);
+                } else if (rolloverRows > 0 || rolloverBytes > 0) {
+                    mergeChunked(loadTemplate(wordTemplate, template, statistics), data, outputFile, images, statistics);
+                } else if (fragmentCache != null) {
+                    mergeIncremental(loadTemplate(wordTemplate, template, statistics), data, outputFile, images, statistics);
+                } else if (streaming || pipelined || template != null ||
+                        compressionLevel != Deflater.DEFAULT_COMPRESSION || compressThreads > 1) {
+                    mergeStreaming(loadTemplate(wordTemplate, template, statistics), data, outputFile, images, statistics);
+                } else {
+                    mergeDocument(wordTemplate, dataFile, data, outputFile, images, statistics);
+                }
+
+                statistics.addRows(data);
+            } catch (UncheckedIOException e) {
+                // reading rows can only report failures as unchecked exception
+                throw e.getCause();
+            }
+        } finally {
+            // also stops sampling the heap-usage when the merge fails
+            statistics.finish();
+        }
+        listener.mergeFinished(statistics);
+    }
+
+    private RowSource openData(File dataFile, Data rows) throws IOException {
+        RowSource data = rows == null ? RowSource.open(dataFile, charset, readThreads) : new DataRowSource(rows);
+        if (lookups.isEmpty()) {
+            return data;
+        }
+
+        // the data-file is closed if opening the lookups fails
+        return new JoinedRowSource(data, dataFile, charset, lookups);
+    }
+
+    private static TemplatePackage loadTemplate(File wordTemplate, TemplatePackage template,
+            MergeStatistics statistics) throws IOException {
+        if (template != null) {
+            return template;
+        }
+
+        long start = System.nanoTime();
+        TemplatePackage loaded = TemplatePackage.load(wordTemplate);
+        statistics.templateNanos = System.nanoTime() - start;
+        return loaded;
+    }
+
+    private void mergeDocument(File wordTemplate, File dataFile, RowSource data, File outputFile,
+            ImageCache images, MergeStatistics statistics) throws IOException {
         // now open the document template and apply the changes
-        try (InputStream is = new FileInputStream(wordTemplate)) {
-            try (XWPFDocument doc = new XWPFDocument(is)) {
-                // apply the lines and concatenate the results into the document
+        long start = System.nanoTime();
+
+        // without a limit the rows are parsed into the document, otherwise they may be streamed into the
+        // template-file, so they are rendered from its XML
+        TemplatePackage template = memoryBudget == Long.MAX_VALUE ? null : TemplatePackage.load(wordTemplate);
+        try (InputStream is = template == null ? new FileInputStream(wordTemplate) : new ByteArrayInputStream(template.getBytes());
+             XWPFDocument doc = new XWPFDocument(is);
+             FragmentStore store = new FragmentStore(memoryBudget, outputFile.getAbsoluteFile().getParentFile())) {
+            statistics.templateNanos = System.nanoTime() - start;
+
+            CTBody body = doc.getDocument().getBody();
+
+            final String prefix;
+            final String templateBody;
+            final String suffix;
+            if (template == null) {
+                // read the current full Body text
+                String srcString = body.xmlText();
+
+                // only the content of the enclosing xml-fragment is repeated for each row
+                prefix = srcString.substring(0, srcString.indexOf(">") + 1);
+                suffix = srcString.substring(srcString.lastIndexOf("<"));
+                templateBody = srcString.substring(prefix.length(), srcString.length() - suffix.length());
+            } else {
+                // the whole main document is parsed, it declares the namespaces of the rows
+                prefix = template.getPrefix();
+                templateBody = template.getBody();
+                suffix = template.getSuffix();
+            }
+
+            // apply the lines and collect the results within the memory-budget
+            MediaParts media = applyLines(data, templateBody, images, store, statistics);
+
+            if (store.getSpilledRows() > 0) {
+                // the document would not fit into memory, so the rows are streamed into the template instead
+                log.info("Rows exceed the memory-budget of " + memoryBudget + " bytes, streaming overall result to " + outputFile);
+                start = System.nanoTime();
+                try (PendingFile result = new PendingFile(outputFile)) {
+                    try (Reader rows = store.openReader("", "");
+                         OutputStream out = new FileOutputStream(result.getFile());
+                         StreamingDocxWriter writer = new StreamingDocxWriter(template, out,
+                                 compressionLevel, compressThreads, media)) {
+                        char[] chars = new char[64 * 1024];
+                        int count;
+                        while ((count = rows.read(chars)) >= 0) {
+                            writer.write(CharBuffer.wrap(chars, 0, count));
+                        }
+                    }
+                    result.commit();
+                }
+                statistics.writeNanos += System.nanoTime() - start;
+            } else {
+                // concatenate the results into the document
+                start = System.nanoTime();
                 try {
-                    applyLines(data, doc);
+                    appendBody(body, store.openReader(prefix, suffix), template != null);
                 } catch (XmlException e) {
-                    throw new IOException("Merging failed for template " + doc + " and data-file " + data, e);
+                    throw new IOException("Merging failed for template " + wordTemplate + " and data-file " + dataFile, e);
                 }
+                if (media != null) {
+                    media.addTo(doc);
+                }
+                statistics.rebuildNanos += System.nanoTime() - start;
 
                 log.info("Writing overall result to " + outputFile);
+                start = System.nanoTime();
                 try (OutputStream out = new FileOutputStream(outputFile)) {
                     doc.write(out);
                 }
+                statistics.writeNanos += System.nanoTime() - start;
             }
+
+            logImages(media);
+            statistics.bytesWritten = outputFile.length();
         }
     }
 
-    private void applyLines(Data dataIn, XWPFDocument doc) throws XmlException {
-        // small hack to not having to rework the commandline parsing just now
-        String includeIndicator = System.getProperty("org.dstadler.poi.mailmerge.includeindicator");
+    private void mergeStreaming(TemplatePackage template, RowSource data, File outputFile,
+            ImageCache images, MergeStatistics statistics) throws IOException {
+        GroupedTemplate grouped = compileGroups(template.getBody(), data.getHeaders());
+        CompiledTemplate compiled = grouped == null ? template.compile(data.getHeaders()) : null;
+        MediaParts media = newMedia(compiled, grouped, images);
+        projectColumns(data, template.getMarkers());
 
-        CTBody body = doc.getDocument().getBody();
-
-        // read the current full Body text
-        String srcString = body.xmlText();
+        log.info("Streaming result to " + outputFile);
+        long closeStart;
+        try (PendingFile result = new PendingFile(outputFile)) {
+            // the writer always finishes the document, so it only replaces the output-file if all rows were written
+            try (OutputStream out = new FileOutputStream(result.getFile());
+                 StreamingDocxWriter writer = new StreamingDocxWriter(template, out, compressionLevel, compressThreads, media)) {
+                render(data, compiled, grouped, media, writer::write, statistics);
+                closeStart = System.nanoTime();
+            }
+            result.commit();
+        }
+        logImages(media);
 
-        // apply the replacements line-by-line
-        List<String> headers = dataIn.getHeaders();
-        List<String> replacedDocs = new ArrayList<>();
-        for(List<String> data : dataIn.getData()) {
-            log.info("Applying to template: " + data);
+        // finishing the document writes the suffix and the central directory of the zip
+        statistics.writeNanos += System.nanoTime() - closeStart;
+        statistics.bytesWritten = outputFile.length();
+    }
 
-            // if the option is set ignore lines which do not have the indicator set
-            if(includeIndicator != null) {
-                int indicatorPos = headers.indexOf(includeIndicator);
-                Preconditions.checkState(indicatorPos >= 0,
-                        "An include-indicator is set via system properties as %s, but there is no such column, had: %s",
-                        includeIndicator, headers);
+    private void mergeIncremental(TemplatePackage template, RowSource data, File outputFile,
+            ImageCache images, MergeStatistics statistics) throws IOException {
+        if (groupBy != null || template.compile(data.getHeaders()).hasImages()) {
+            // cached blocks do not record which pictures they use and contain single rows
+            log.info("The template contains image-markers or rows are grouped, the fragment-cache is not used");
+            mergeStreaming(template, data, outputFile, images, statistics);
+            return;
+        }
+        CompiledTemplate compiled = template.compile(data.getHeaders());
+        projectColumns(data, template.getMarkers());
 
-                if(!StringUtils.equalsAnyIgnoreCase(data.get(indicatorPos), "1", "true")) {
-                    log.info("Skipping line " + data + " because include-indicator was not set");
-                    continue;
+        log.info("Writing result to " + outputFile + " with unchanged rows from the cache in " + fragmentCache);
+        long start = System.nanoTime();
+        long readBefore = data.getReadNanos();
+        long closeStart;
+        try (FragmentCache cache = new FragmentCache(fragmentCache, template.getBody(), data.getHeaders(), compressionLevel);
+             PendingFile result = new PendingFile(outputFile)) {
+            try (OutputStream out = new FileOutputStream(result.getFile());
+                 IncrementalDocxWriter writer = new IncrementalDocxWriter(template, compiled, cache, out, compressionLevel)) {
+                for (List<String> row : logRows(data)) {
+                    writer.write(row);
                 }
+                closeStart = System.nanoTime();
             }
 
-            String replaced = replaceDataItems(data, srcString, headers);
-            replacedDocs.add(replaced);
+            // only keep the result and the blocks of this run if the result was written completely
+            result.commit();
+            cache.commit();
         }
 
-        appendBody(body, replacedDocs);
+        // blocks of rows are rendered, compressed and written together while reading
+        statistics.renderNanos += closeStart - start - (data.getReadNanos() - readBefore);
+        statistics.writeNanos += System.nanoTime() - closeStart;
+        statistics.bytesWritten = outputFile.length();
     }
 
-    private static String replaceDataItems(List<String> data, String srcString, List<String> headers) {
-        String replaced = srcString;
-        for(int fieldNr = 0; fieldNr < headers.size(); fieldNr++) {
-            String header = headers.get(fieldNr);
-            String value = data.get(fieldNr);
+    private void mergeChunked(TemplatePackage template, RowSource data, File outputFile,
+            ImageCache images, MergeStatistics statistics) throws IOException {
+        GroupedTemplate grouped = compileGroups(template.getBody(), data.getHeaders());
+        CompiledTemplate compiled = grouped == null ? template.compile(data.getHeaders()) : null;
+        MediaParts media = newMedia(compiled, grouped, images);
+        projectColumns(data, template.getMarkers());
 
-            // ignore columns without headers as we cannot match them
-            if(header == null) {
-                continue;
-            }
+        ChunkedDocxWriter writer = new ChunkedDocxWriter(template, outputFile, rolloverRows, rolloverBytes,
+                compressionLevel, compressThreads, media);
+        long closeStart;
+        try (writer) {
+            render(data, compiled, grouped, media, writer, statistics);
+            closeStart = System.nanoTime();
+        }
+        logImages(media);
+        statistics.writeNanos += System.nanoTime() - closeStart;
 
-            // use empty string for data-cells that have no value
-            if(value == null) {
-                value = "";
-            }
+        for (File file : writer.getFiles()) {
+            statistics.bytesWritten += file.length();
+        }
+    }
 
-            replaced = replaced.replace("${" + header + "}", StringEscapeUtils.escapeXml11(value));
+    private void mergeSplit(TemplatePackage template, RowSource data, File target,
+            ImageCache images, MergeStatistics statistics) throws IOException {
+        CompiledTemplate body = template.compile(data.getHeaders());
+        CompiledTemplate fileName = CompiledTemplate.compile(splitPattern, data.getHeaders(), false);
+        if (projectColumns) {
+            Set<String> columns = new LinkedHashSet<>(template.getMarkers());
+            columns.addAll(CompiledTemplate.findMarkers(splitPattern));
+            projectColumns(data, columns);
         }
 
-        // check for missed replacements or formatting which interferes
-        if(replaced.contains("${")) {
-            log.warning("Still found template-marker after doing replacement: " +
-                    StringUtils.abbreviate(StringUtils.substring(replaced, replaced.indexOf("${")), 200));
+        log.info("Writing one document per row to " + target);
+        long start = System.nanoTime();
+        long readBefore = data.getReadNanos();
+        SplitWriter writer = new SplitWriter(template, body, fileName, target, renderThreads, compressionLevel, images);
+        try (writer) {
+            writer.write(logRows(data));
         }
-        return replaced;
+
+        // documents are rendered and written together on the worker-threads
+        statistics.renderNanos += System.nanoTime() - start - (data.getReadNanos() - readBefore);
+        statistics.bytesWritten = target.isFile() ? target.length() : writer.getBytesWritten();
     }
 
-    private static void appendBody(CTBody src, List<String> appendDocs) throws XmlException {
-        XmlOptions optionsOuter = new XmlOptions();
-        optionsOuter.setSaveOuter();
-        String srcString = src.xmlText();
+    private MediaParts applyLines(RowSource dataIn, String templateBody, ImageCache images,
+            FragmentStore store, MergeStatistics statistics) throws IOException {
+        // parse the template once, rows are then rendered in a single pass each
+        GroupedTemplate grouped = compileGroups(templateBody, dataIn.getHeaders());
+        CompiledTemplate template = grouped == null ? CompiledTemplate.compile(templateBody, dataIn.getHeaders()) : null;
+        MediaParts media = newMedia(template, grouped, images);
+        if (projectColumns) {
+            projectColumns(dataIn, CompiledTemplate.findMarkers(templateBody));
+        }
 
-        // exclude template itself in first appending
-        String prefix = srcString.substring(0,srcString.indexOf(">")+1);
-        String suffix = srcString.substring( srcString.lastIndexOf("<") );
+        render(dataIn, template, grouped, media, store, statistics);
+        return media;
+    }
+
+    /**
+     * @return The template for groups of rows, null if rows are not grouped
+     */
+    private GroupedTemplate compileGroups(String templateBody, List<String> headers) {
+        // the plain template is not compiled in this case, it would report the repeat-marker as unknown
+        return groupBy == null ? null : GroupedTemplate.compile(templateBody, headers, groupBy);
+    }
 
-        // rebuild the XML by adding prefix, new main part and suffix together
-        StringBuilder document = new StringBuilder(prefix);
-        Iterator<String> it = appendDocs.iterator();
-        while (it.hasNext()) {
-            String append = it.next();
+    private static MediaParts newMedia(CompiledTemplate template, GroupedTemplate grouped, ImageCache images) {
+        boolean hasImages = grouped == null ? template.hasImages() : grouped.hasImages();
+        return hasImages ? new MediaParts(images) : null;
+    }
 
-            document.append(append, append.indexOf(">") + 1, append.lastIndexOf("<"));
+    private static void logImages(MediaParts media) {
+        if (media != null) {
+            log.info("Inserted " + media.getDrawings() + " pictures, stored " + media.getImages().size() + " distinct images");
+        }
+    }
 
-            // remove original item from the list to free memory early
-            it.remove();
+    private void render(RowSource dataIn, CompiledTemplate template, GroupedTemplate grouped, MediaParts media,
+            FragmentConsumer consumer, MergeStatistics statistics) throws IOException {
+        if (grouped == null) {
+            renderLines(dataIn, media == null ? template : template.withMedia(media), consumer, statistics);
+            return;
         }
-        document.append(suffix);
 
-        // produce resulting XML-structure
-        XmlObject makeBody = CTDocument1.Factory.parse(document.toString());
+        renderGroups(dataIn, media == null ? grouped : grouped.withMedia(media), consumer, statistics);
+    }
+
+    private void renderGroups(RowSource dataIn, GroupedTemplate template,
+            FragmentConsumer consumer, MergeStatistics statistics) throws IOException {
+        long start = System.nanoTime();
+        long readBefore = dataIn.getReadNanos();
+        long writeBefore = statistics.writeNanos;
+
+        // collect the rows of all groups first, the data does not need to be sorted by the group
+        Collection<List<List<String>>> groups = template.group(logRows(dataIn));
+        log.info("Applying " + groups.size() + " groups of rows to template, grouped by " + groupBy +
+                " with " + template.getRepeatedRows() + " repeated table-rows");
+
+        StringBuilder buffer = new StringBuilder(template.getLength() * 2);
+        for (List<List<String>> rows : groups) {
+            buffer.setLength(0);
+            template.render(rows, buffer);
+
+            long consumeStart = System.nanoTime();
+            consumer.accept(buffer);
+            statistics.writeNanos += System.nanoTime() - consumeStart;
+        }
+
+        statistics.renderNanos += System.nanoTime() - start -
+                (dataIn.getReadNanos() - readBefore) - (statistics.writeNanos - writeBefore);
+    }
+
+    private void renderLines(RowSource dataIn, CompiledTemplate template,
+            FragmentConsumer consumer, MergeStatistics statistics) throws IOException {
+        long start = System.nanoTime();
+        long readBefore = dataIn.getReadNanos();
+        long writeBefore = statistics.writeNanos;
+
+        // measure the time which is spent in the consumer as time for writing
+        FragmentConsumer timed = fragment -> {
+            long consumeStart = System.nanoTime();
+            consumer.accept(fragment);
+            statistics.writeNanos += System.nanoTime() - consumeStart;
+        };
+
+        if (pipelined) {
+            log.info("Applying rows to template with a separate thread for reading and " + renderThreads + " threads for rendering");
+            try (PipelinedRenderer renderer = new PipelinedRenderer(template, renderThreads, PIPELINE_CAPACITY * renderThreads)) {
+                renderer.render(logRows(dataIn), timed);
+
+                // the stages run concurrently, so the time of each is measured on its own threads
+                statistics.renderNanos += renderer.getRenderNanos();
+            }
+            return;
+        }
+
+        if (renderThreads > 1) {
+            log.info("Applying rows to template with " + renderThreads + " threads");
+            try (ParallelRenderer renderer = new ParallelRenderer(template, renderThreads)) {
+                renderer.render(logRows(dataIn), timed);
+            }
+        } else {
+            // apply the replacements line-by-line
+            StringBuilder buffer = new StringBuilder(template.getLength() * 2);
+            for(List<String> data : logRows(dataIn)) {
+                buffer.setLength(0);
+                template.render(data, buffer);
+                timed.accept(buffer);
+            }
+        }
+
+        // reading and writing is done on this thread in between rendering the rows
+        statistics.renderNanos += System.nanoTime() - start -
+                (dataIn.getReadNanos() - readBefore) - (statistics.writeNanos - writeBefore);
+    }
+
+    private void projectColumns(RowSource dataIn, Set<String> columns) {
+        if (projectColumns) {
+            if (groupBy != null) {
+                columns = new LinkedHashSet<>(columns);
+                columns.add(groupBy);
+            }
+            dataIn.setColumns(columns);
+        }
+    }
+
+    private Iterable<List<String>> logRows(RowSource dataIn) {
+        if (!logRows) {
+            return dataIn;
+        }
+
+        return Iterables.transform(dataIn, data -> {
+            log.info("Applying to template: " + data);
+            return data;
+        });
+    }
+
+    private static void appendBody(CTBody src, Reader document, boolean mainDocument) throws XmlException, IOException {
+        // produce resulting XML-structure, the rows are read in order and released while parsing
+        XmlObject makeBody = mainDocument ?
+                DocumentDocument.Factory.parse(document).getDocument().getBody() :
+                CTDocument1.Factory.parse(document);
         src.set(makeBody);
     }
 }
@@ -0,0 +1,441 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang3.StringUtils;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+import org.dstadler.commons.util.SuppressForbidden;
+
+/**
+ * Runs mail-merge as long-running service which accepts merge-jobs via
+ * HTTP on the loopback-interface, so that the startup of the JVM and
+ * loading of templates is not necessary for each merge.
+ *
+ * A job is started with a POST-request to /merge with the parameters
+ * template, data and output, which are paths of local files:
+ *
+ * <pre>
+ * curl -X POST -H "X-MailMerge-Token: $(cat ~/.poi-mail-merge/server.token)" \
+ *     "http://127.0.0.1:8080/merge?template=samples/Template.docx&amp;data=samples/Lines.xlsx&amp;output=build/Result.docx"
+ * </pre>
+ *
+ * As the service reads and writes local files, each request needs to send
+ * the token of the server in the header "X-MailMerge-Token". Requests from
+ * web-pages, i.e. with an "Origin" header, and requests for other hosts than
+ * the loopback-interface are rejected. The files can be restricted to some
+ * base-directories via {@link #setBaseDirectories(List)}, this also applies
+ * to the pictures which are inserted for image-markers.
+ *
+ * The response is sent when the merge is finished and contains a summary
+ * of the merge. Jobs run concurrently on a fixed number of threads, a limited
+ * number of further requests wait until a thread is available, others are
+ * answered with status 503.
+ *
+ * The result is always streamed, other options like the charset or the
+ * compression-level cannot be set per request. They are taken from the
+ * system properties as for {@link MailMerge}, so they apply to all requests
+ * of the JVM alike and need to be set when starting the server.
+ */
+@SuppressForbidden(reason = "The HTTP server of the JDK is a supported API in module jdk.httpserver")
+public class MailMergeServer implements Closeable {
+    private static final Logger log = LoggerFactory.make();
+
+    /**
+     * The header which needs to contain the token of the server.
+     */
+    public static final String TOKEN_HEADER = "X-MailMerge-Token";
+
+    // host-names which are accepted in the Host-header, with an optional port
+    private static final List<String> LOOPBACK_HOSTS = List.of("127.0.0.1", "localhost", "[::1]");
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+    private final TemplateCache templates;
+
+    private volatile String token;
+    private volatile List<File> baseDirectories;
+
+    /**
+     * Create the server, it is bound to the loopback-interface only. Up to
+     * four requests per thread wait for a free thread.
+     *
+     * @param port The port to listen on, 0 to use any free port
+     * @param threads The number of merges which are run concurrently
+     * @param cachedTemplates The number of templates which are kept in memory
+     * @throws IOException If the port cannot be opened
+     */
+    public MailMergeServer(int port, int threads, int cachedTemplates) throws IOException {
+        this(port, threads, threads * 4, cachedTemplates);
+    }
+
+    /**
+     * Create the server, it is bound to the loopback-interface only and uses
+     * a random token, see {@link #getToken()}.
+     *
+     * @param port The port to listen on, 0 to use any free port
+     * @param threads The number of merges which are run concurrently
+     * @param queueSize The number of requests which wait for a free thread, further requests are rejected
+     * @param cachedTemplates The number of templates which are kept in memory
+     * @throws IOException If the port cannot be opened
+     */
+    public MailMergeServer(int port, int threads, int queueSize, int cachedTemplates) throws IOException {
+        Preconditions.checkArgument(threads > 0, "Need at least one thread, but had %s", threads);
+        Preconditions.checkArgument(queueSize > 0, "Need a queue for at least one request, but had %s", queueSize);
+
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        token = HexFormat.of().formatHex(random);
+
+        templates = new TemplateCache(cachedTemplates);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new ThreadFactoryBuilder().
+                setNameFormat("MailMergeServer-%d").
+                build());
+
+        // requests are checked on the thread of the server, only merges are run on the executor
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/merge", this::handleMerge);
+    }
+
+    /**
+     * Main method to run Mail-Merge as service
+     *
+     * The number of threads, waiting requests and templates can be set via the
+     * system properties "org.dstadler.poi.mailmerge.server.threads",
+     * "org.dstadler.poi.mailmerge.server.queue" and "org.dstadler.poi.mailmerge.server.templates".
+     *
+     * The token is taken from the system property "org.dstadler.poi.mailmerge.server.token",
+     * otherwise a random token is written to the file in the system property
+     * "org.dstadler.poi.mailmerge.server.tokenfile", by default ~/.poi-mail-merge/server.token,
+     * which only the current user can read.
+     *
+     * Files are restricted to the directories in the system property
+     * "org.dstadler.poi.mailmerge.server.basedirs", separated by the path-separator,
+     * by default the current working directory.
+     *
+     * @param args Expects one argument: the port to listen on
+     * @throws IOException If the port cannot be opened or the token cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        LoggerFactory.initLogging();
+
+        if(args.length != 1) {
+            throw new IllegalArgumentException("Usage: MailMergeServer <port>");
+        }
+
+        int threads = Integer.getInteger("org.dstadler.poi.mailmerge.server.threads", Runtime.getRuntime().availableProcessors());
+        MailMergeServer server = new MailMergeServer(Integer.parseInt(args[0]), threads,
+                Integer.getInteger("org.dstadler.poi.mailmerge.server.queue", threads * 4),
+                Integer.getInteger("org.dstadler.poi.mailmerge.server.templates", 20));
+
+        String token = System.getProperty("org.dstadler.poi.mailmerge.server.token");
+        if (token != null) {
+            server.setToken(token);
+        } else {
+            File tokenFile = new File(System.getProperty("org.dstadler.poi.mailmerge.server.tokenfile",
+                    new File(System.getProperty("user.home"), ".poi-mail-merge/server.token").getPath()));
+            writeToken(tokenFile, server.getToken());
+            log.info("Wrote the token for requests to " + tokenFile);
+        }
+
+        List<File> baseDirectories = new ArrayList<>();
+        for (String dir : StringUtils.split(System.getProperty("org.dstadler.poi.mailmerge.server.basedirs", "."),
+                File.pathSeparator)) {
+            baseDirectories.add(new File(dir));
+        }
+        server.setBaseDirectories(baseDirectories);
+
+        server.start();
+    }
+
+    /**
+     * Write the token to the given file which only the current user can read.
+     */
+    static void writeToken(File tokenFile, String token) throws IOException {
+        Path path = tokenFile.toPath();
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Files.deleteIfExists(path);
+
+        boolean posix = path.toAbsolutePath().getParent().getFileSystem().supportedFileAttributeViews().contains("posix");
+        try {
+            if (posix) {
+                // create the file with restricted permissions, so the token is never readable by others
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(path);
+                if (!tokenFile.setReadable(false, false) || !tokenFile.setReadable(true, true) ||
+                        !tokenFile.setWritable(false, false) || !tokenFile.setWritable(true, true)) {
+                    log.warning("Could not restrict the permissions of " + tokenFile);
+                }
+            }
+        } catch (FileAlreadyExistsException e) {
+            throw new IOException("Token-file was created concurrently: " + tokenFile, e);
+        }
+
+        Files.writeString(path, token, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Use the given token instead of a random one.
+     *
+     * @param token The value which requests need to send in the header "X-MailMerge-Token"
+     * @return This instance to allow chaining calls
+     */
+    public MailMergeServer setToken(String token) {
+        Preconditions.checkArgument(StringUtils.length(token) >= 16,
+                "Need a token with at least 16 characters");
+        this.token = token;
+        return this;
+    }
+
+    /**
+     * @return The value which requests need to send in the header "X-MailMerge-Token"
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Only allow templates, data-, output- and image-files in the given
+     * directories or their sub-directories, other images are left out.
+     *
+     * @param baseDirectories The allowed directories, null to allow all files
+     * @return This instance to allow chaining calls
+     * @throws IOException If the directories cannot be resolved
+     */
+    public MailMergeServer setBaseDirectories(List<File> baseDirectories) throws IOException {
+        if (baseDirectories == null) {
+            this.baseDirectories = null;
+            return this;
+        }
+
+        List<File> canonical = new ArrayList<>();
+        for (File dir : baseDirectories) {
+            canonical.add(dir.getCanonicalFile());
+        }
+        this.baseDirectories = canonical;
+        return this;
+    }
+
+    /**
+     * Start accepting requests.
+     */
+    public void start() {
+        server.start();
+        log.info("Accepting merge-jobs on port " + getPort());
+    }
+
+    /**
+     * @return The port which the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return The cache of templates, visible for tests
+     */
+    TemplateCache getTemplates() {
+        return templates;
+    }
+
+    /**
+     * @return The executor which runs the merges, visible for tests
+     */
+    ThreadPoolExecutor getExecutor() {
+        return executor;
+    }
+
+    private void handleMerge(HttpExchange exchange) throws IOException {
+        boolean submitted = false;
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Only POST is supported");
+                return;
+            }
+
+            // browsers send an Origin for cross-origin requests and the Host of a DNS-rebinding attack
+            if (exchange.getRequestHeaders().containsKey("Origin") ||
+                    !isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"))) {
+                log.warning("Rejected request from a web-page or for another host: " +
+                        exchange.getRequestHeaders().getFirst("Origin") + ", " + exchange.getRequestHeaders().getFirst("Host"));
+                respond(exchange, 403, "Requests from web-pages or for other hosts are not allowed");
+                return;
+            }
+
+            String requestToken = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+            if (requestToken == null || !MessageDigest.isEqual(
+                    requestToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+                respond(exchange, 401, "Need a valid token in header " + TOKEN_HEADER);
+                return;
+            }
+
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String template = params.get("template");
+            String data = params.get("data");
+            String output = params.get("output");
+            if (StringUtils.isAnyBlank(template, data, output)) {
+                respond(exchange, 400, "Need parameters template, data and output, had: " + params.keySet());
+                return;
+            }
+
+            File wordTemplate = new File(template);
+            File dataFile = new File(data);
+            File outputFile = new File(output);
+            for (File file : new File[] { wordTemplate, dataFile, outputFile }) {
+                if (!isAllowed(file)) {
+                    respond(exchange, 403, "File is not inside the allowed directories: " + file);
+                    return;
+                }
+            }
+
+            try {
+                executor.execute(() -> runMerge(exchange, wordTemplate, dataFile, outputFile));
+                submitted = true;
+            } catch (RejectedExecutionException e) {
+                log.warning("Rejected merge-job for " + template + " and " + data + ", all threads are busy: " + e);
+                respond(exchange, 503, "Too many merge-jobs, try again later");
+            }
+        } finally {
+            // the exchange is closed by the merge-job when it was submitted
+            if (!submitted) {
+                exchange.close();
+            }
+        }
+    }
+
+    private void runMerge(HttpExchange exchange, File wordTemplate, File dataFile, File outputFile) {
+        try (exchange) {
+            try {
+                respond(exchange, 200, merge(wordTemplate, dataFile, outputFile));
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                log.log(Level.WARNING, "Invalid merge-job for " + wordTemplate + " and " + dataFile, e);
+                respond(exchange, 400, e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                log.log(Level.WARNING, "Merge-job failed for " + wordTemplate + " and " + dataFile, e);
+                respond(exchange, 500, e.toString());
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not send response for " + wordTemplate + " and " + dataFile, e);
+        }
+    }
+
+    private static boolean isLoopbackHost(String host) {
+        if (host == null) {
+            return false;
+        }
+
+        // strip the port, IPv6-addresses are enclosed in brackets
+        int colon = host.lastIndexOf(':');
+        if (colon > host.lastIndexOf(']')) {
+            host = host.substring(0, colon);
+        }
+        return LOOPBACK_HOSTS.contains(host.toLowerCase(Locale.ROOT));
+    }
+
+    private boolean isAllowed(File file) throws IOException {
+        if (baseDirectories == null) {
+            return true;
+        }
+
+        // resolves ".." and symbolic links, also for files which do not exist yet
+        Path path = file.getCanonicalFile().toPath();
+        for (File dir : baseDirectories) {
+            if (path.startsWith(dir.toPath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAllowedImage(File file) {
+        try {
+            return isAllowed(file);
+        } catch (IOException e) {
+            log.warning("Could not resolve image " + file + ": " + e);
+            return false;
+        }
+    }
+
+    private String merge(File wordTemplate, File dataFile, File outputFile) throws IOException {
+        if(!wordTemplate.isFile()) {
+            throw new IllegalArgumentException("Could not read Microsoft Word template " + wordTemplate);
+        }
+        if(!dataFile.isFile()) {
+            throw new IllegalArgumentException("Could not read data file " + dataFile);
+        }
+
+        AtomicReference<MergeStatistics> result = new AtomicReference<>();
+        new MailMerge().setListener(result::set).
+                setAllowedImages(this::isAllowedImage).
+                merge(templates.get(wordTemplate), dataFile, outputFile);
+
+        log.info(result.get().toString());
+        return result.get().toString();
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+
+        for (String param : query.split("&")) {
+            int pos = param.indexOf('=');
+            if (pos > 0) {
+                params.put(URLDecoder.decode(param.substring(0, pos), StandardCharsets.UTF_8),
+                        URLDecoder.decode(param.substring(pos + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stop accepting requests, running merges are interrupted.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,255 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackagePartName;
+import org.apache.poi.openxml4j.opc.PackagingURIHelper;
+import org.apache.poi.openxml4j.opc.TargetMode;
+import org.apache.poi.util.Units;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+
+/**
+ * The pictures which are inserted into one resulting document for
+ * image-markers like <code>${image:Logo}</code>.
+ *
+ * Pictures are stored once per distinct content, the name of the media-part
+ * and the relationship-id are derived from the hash of the content, so rows
+ * which use the same picture, also via different paths, reference the same
+ * part. Rendering is thread-safe, so rows can be rendered on multiple threads.
+ */
+final class MediaParts {
+    static final String RELATIONSHIP_TYPE = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/image";
+
+    // larger pictures are scaled down to the width of a page with default margins
+    static final long MAX_WIDTH = 6 * Units.EMU_PER_INCH;
+
+    // start with high ids to not collide with drawings in the template
+    private static final int FIRST_ID = 100_000;
+
+    // the number of characters of the hash which are used for names
+    private static final int HASH_LENGTH = 16;
+
+    private static final Pattern REFERENCE = Pattern.compile("r:embed=\"(rIdMm[0-9a-f]{" + HASH_LENGTH + "})\"");
+
+    private final ImageCache cache;
+    // keyed by the relationship-id, so the pictures referenced by drawings can be looked up
+    private final Map<String, ImageCache.Image> images = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger(FIRST_ID);
+
+    /**
+     * @param cache Provides the probed image-files, it can be shared by multiple documents
+     */
+    MediaParts(ImageCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Append a drawing of the given picture. The marker is located in a text-element,
+     * so the text-element is closed before the drawing and opened again afterwards.
+     *
+     * @param path The path of the image-file as found in the data
+     * @param prefix The namespace-prefix of the enclosing text-element including the colon, e.g. "w:"
+     * @param out The buffer to append to, nothing is appended if the file cannot be read as image
+     */
+    void render(String path, String prefix, StringBuilder out) {
+        ImageCache.Image image = cache.get(path);
+        if (image == null) {
+            return;
+        }
+        images.putIfAbsent(relationshipId(image), image);
+
+        long width = (long) image.width() * Units.EMU_PER_PIXEL;
+        long height = (long) image.height() * Units.EMU_PER_PIXEL;
+        if (width > MAX_WIDTH) {
+            height = height * MAX_WIDTH / width;
+            width = MAX_WIDTH;
+        }
+
+        int id = ids.getAndIncrement();
+        String name = StringEscapeUtils.escapeXml11(image.file().getName());
+        out.append("</").append(prefix).append("t><").append(prefix).append("drawing>").
+                append("<wp:inline distT=\"0\" distB=\"0\" distL=\"0\" distR=\"0\" ").
+                append("xmlns:wp=\"http://schemas.openxmlformats.org/drawingml/2006/wordprocessingDrawing\">").
+                append("<wp:extent cx=\"").append(width).append("\" cy=\"").append(height).append("\"/>").
+                append("<wp:docPr id=\"").append(id).append("\" name=\"Picture ").append(id).append("\"/>").
+                append("<a:graphic xmlns:a=\"http://schemas.openxmlformats.org/drawingml/2006/main\">").
+                append("<a:graphicData uri=\"http://schemas.openxmlformats.org/drawingml/2006/picture\">").
+                append("<pic:pic xmlns:pic=\"http://schemas.openxmlformats.org/drawingml/2006/picture\">").
+                append("<pic:nvPicPr><pic:cNvPr id=\"0\" name=\"").append(name).append("\"/><pic:cNvPicPr/></pic:nvPicPr>").
+                append("<pic:blipFill><a:blip r:embed=\"").append(relationshipId(image)).append("\" ").
+                append("xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\"/>").
+                append("<a:stretch><a:fillRect/></a:stretch></pic:blipFill>").
+                append("<pic:spPr><a:xfrm><a:off x=\"0\" y=\"0\"/>").
+                append("<a:ext cx=\"").append(width).append("\" cy=\"").append(height).append("\"/></a:xfrm>").
+                append("<a:prstGeom prst=\"rect\"><a:avLst/></a:prstGeom></pic:spPr></pic:pic>").
+                append("</a:graphicData></a:graphic></wp:inline>").
+                append("</").append(prefix).append("drawing><").append(prefix).append("t xml:space=\"preserve\">");
+    }
+
+    /**
+     * @return Empty media-parts which only receive the pictures which are
+     *      added via {@link #addReferenced(CharSequence, MediaParts)}, e.g.
+     *      for one of several documents which are written from the same rows
+     */
+    MediaParts select() {
+        return new MediaParts(cache);
+    }
+
+    /**
+     * Add the pictures which are referenced by the drawings in the given fragment.
+     *
+     * @param fragment A fragment of the main document which was rendered via the given media-parts
+     * @param rendered The media-parts which rendered the drawings and know their pictures
+     */
+    void addReferenced(CharSequence fragment, MediaParts rendered) {
+        if (rendered.images.isEmpty()) {
+            return;
+        }
+
+        Matcher matcher = REFERENCE.matcher(fragment);
+        while (matcher.find()) {
+            ImageCache.Image image = rendered.images.get(matcher.group(1));
+            if (image != null) {
+                images.putIfAbsent(matcher.group(1), image);
+            }
+        }
+    }
+
+    static String relationshipId(ImageCache.Image image) {
+        return "rIdMm" + image.hash().substring(0, HASH_LENGTH);
+    }
+
+    /**
+     * @return The name of the media-part relative to the directory of the main document
+     */
+    static String partName(ImageCache.Image image) {
+        return "media/mm-" + image.hash().substring(0, HASH_LENGTH) + "." + image.extension();
+    }
+
+    /**
+     * @param documentEntry The name of the zip-entry of the main document, e.g. "word/document.xml"
+     * @return The name of the zip-entry which holds the relationships of the main document
+     */
+    static String relationshipsEntry(String documentEntry) {
+        int pos = documentEntry.lastIndexOf('/') + 1;
+        return documentEntry.substring(0, pos) + "_rels/" + documentEntry.substring(pos) + ".rels";
+    }
+
+    /**
+     * @return The distinct pictures which were rendered or added so far, ordered by their hash
+     */
+    List<ImageCache.Image> getImages() {
+        return new ArrayList<>(new TreeMap<>(images).values());
+    }
+
+    /**
+     * @return The number of drawings which were rendered so far
+     */
+    int getDrawings() {
+        return ids.get() - FIRST_ID;
+    }
+
+    /**
+     * Write the media-parts and the relationships and content-types of the
+     * template extended by the entries for the pictures.
+     *
+     * @param documentEntry The name of the zip-entry of the main document
+     * @param relationships The relationships of the main document in the template, null if there are none
+     * @param contentTypes The content-types of the template
+     * @param writer Receives the zip-entries
+     * @throws IOException If reading an image-file or writing fails
+     */
+    void writeParts(String documentEntry, String relationships, String contentTypes, PartWriter writer) throws IOException {
+        String directory = documentEntry.substring(0, documentEntry.lastIndexOf('/') + 1);
+        List<ImageCache.Image> list = getImages();
+        for (ImageCache.Image image : list) {
+            writer.write(directory + partName(image), Files.readAllBytes(image.file().toPath()));
+        }
+
+        writer.write(relationshipsEntry(documentEntry), addRelationships(relationships, list).getBytes(StandardCharsets.UTF_8));
+        writer.write("[Content_Types].xml", addContentTypes(contentTypes, list).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String addRelationships(String relationships, List<ImageCache.Image> list) {
+        int end = relationships == null ? -1 : relationships.lastIndexOf("</Relationships>");
+        if (end < 0) {
+            // a template without relationships cannot reference anything which needs to be kept
+            relationships = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" +
+                    "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\"></Relationships>";
+            end = relationships.lastIndexOf("</Relationships>");
+        }
+
+        StringBuilder result = new StringBuilder(relationships.length() + list.size() * 160);
+        result.append(relationships, 0, end);
+        for (ImageCache.Image image : list) {
+            result.append("<Relationship Id=\"").append(relationshipId(image)).
+                    append("\" Type=\"").append(RELATIONSHIP_TYPE).
+                    append("\" Target=\"").append(partName(image)).append("\"/>");
+        }
+        return result.append(relationships.substring(end)).toString();
+    }
+
+    static String addContentTypes(String contentTypes, List<ImageCache.Image> list) {
+        int end = contentTypes.lastIndexOf("</Types>");
+        StringBuilder result = new StringBuilder(contentTypes.length() + 200);
+        result.append(contentTypes, 0, end);
+
+        String lower = contentTypes.toLowerCase(Locale.ROOT);
+        for (ImageCache.Image image : list) {
+            String extension = "extension=\"" + image.extension() + "\"";
+            if (!lower.contains(extension)) {
+                result.append("<Default Extension=\"").append(image.extension()).
+                        append("\" ContentType=\"").append(image.contentType()).append("\"/>");
+                lower += extension;
+            }
+        }
+        return result.append(contentTypes.substring(end)).toString();
+    }
+
+    /**
+     * Add the media-parts and relationships to a document which is held in memory.
+     *
+     * @param doc The document which contains the rendered drawings
+     * @throws IOException If reading an image-file or adding the part fails
+     */
+    void addTo(XWPFDocument doc) throws IOException {
+        PackagePart document = doc.getPackagePart();
+        String directory = document.getPartName().getName();
+        directory = directory.substring(0, directory.lastIndexOf('/') + 1);
+
+        for (ImageCache.Image image : getImages()) {
+            try {
+                PackagePartName name = PackagingURIHelper.createPartName(directory + partName(image));
+                PackagePart part = doc.getPackage().createPart(name, image.contentType());
+                try (OutputStream out = part.getOutputStream()) {
+                    Files.copy(image.file().toPath(), out);
+                }
+                document.addRelationship(name, TargetMode.INTERNAL, RELATIONSHIP_TYPE, relationshipId(image));
+            } catch (InvalidFormatException e) {
+                throw new IOException("Could not add image " + image.file() + " to the document", e);
+            }
+        }
+    }
+
+    /**
+     * Receives the parts which are added to the zip-package.
+     */
+    interface PartWriter {
+        void write(String name, byte[] data) throws IOException;
+    }
+}
@@ -0,0 +1,15 @@
+package org.dstadler.poi.mailmerge;
+
+/**
+ * Is notified about the outcome of a merge, e.g. to collect metrics
+ * about the duration of the different phases.
+ */
+@FunctionalInterface
+public interface MergeListener {
+    /**
+     * Called after a merge was finished successfully.
+     *
+     * @param statistics Timings, number of rows and sizes of the merge
+     */
+    void mergeFinished(MergeStatistics statistics);
+}
@@ -0,0 +1,208 @@
+package org.dstadler.poi.mailmerge;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Timings and sizes which are collected while merging.
+ *
+ * Depending on the mode of the merge, some of the phases overlap or
+ * are not used at all: when streaming, the rows are read, rendered and
+ * written one after the other, so the time of each phase is summed up.
+ * When pipelined, the phases run concurrently on different threads and
+ * the time of rendering is summed up over all render-threads. When writing
+ * one document per row, the render-time also contains writing the documents.
+ */
+public class MergeStatistics {
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    // how often the heap-usage is sampled while merges are running
+    private static final long SAMPLE_MILLIS = 10;
+
+    // the merges which are currently running, they share one thread for sampling the heap-usage
+    private static final Set<MergeStatistics> RUNNING = ConcurrentHashMap.newKeySet();
+    private static ScheduledExecutorService sampler;
+
+    private long startNanos;
+    private final AtomicLong heapUsed = new AtomicLong();
+
+    long templateNanos;
+    long readNanos;
+    long renderNanos;
+    long rebuildNanos;
+    long writeNanos;
+    long totalNanos;
+
+    int rows;
+    int skippedRows;
+    long bytesWritten;
+    long peakHeap;
+
+    MergeStatistics() {
+    }
+
+    /**
+     * Start measuring and sampling the heap-usage until {@link #finish()} is called.
+     *
+     * The peak-usage of the memory pools is not used, as resetting it would
+     * affect other merges which run concurrently.
+     */
+    void start() {
+        startNanos = System.nanoTime();
+        sample(MEMORY.getHeapMemoryUsage().getUsed());
+
+        synchronized (RUNNING) {
+            RUNNING.add(this);
+            if (sampler == null) {
+                sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().
+                        setNameFormat("MailMerge-HeapSampler-%d").
+                        setDaemon(true).
+                        build());
+                sampler.scheduleAtFixedRate(MergeStatistics::sampleRunning, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Take the overall duration and the peak heap-usage since {@link #start()}.
+     */
+    void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+
+        synchronized (RUNNING) {
+            RUNNING.remove(this);
+            if (RUNNING.isEmpty() && sampler != null) {
+                sampler.shutdownNow();
+                sampler = null;
+            }
+        }
+
+        sample(MEMORY.getHeapMemoryUsage().getUsed());
+        peakHeap = heapUsed.get();
+    }
+
+    private static void sampleRunning() {
+        long used = MEMORY.getHeapMemoryUsage().getUsed();
+        for (MergeStatistics statistics : RUNNING) {
+            statistics.sample(used);
+        }
+    }
+
+    private void sample(long used) {
+        heapUsed.accumulateAndGet(used, Math::max);
+    }
+
+    /**
+     * Take the number of rows and the time for reading them from the source.
+     */
+    void addRows(RowSource source) {
+        rows += source.getRows();
+        skippedRows += source.getSkippedRows();
+        readNanos += source.getReadNanos();
+    }
+
+    /**
+     * @return The time for loading the template-document
+     */
+    public Duration getTemplateLoadTime() {
+        return Duration.ofNanos(templateNanos);
+    }
+
+    /**
+     * @return The time for reading the headers and rows from the data-file
+     */
+    public Duration getReadTime() {
+        return Duration.ofNanos(readNanos);
+    }
+
+    /**
+     * @return The time for replacing the template-markers with the data of the rows
+     */
+    public Duration getRenderTime() {
+        return Duration.ofNanos(renderNanos);
+    }
+
+    /**
+     * @return The time for parsing the rendered rows back into the body of the document, zero when streaming
+     */
+    public Duration getBodyRebuildTime() {
+        return Duration.ofNanos(rebuildNanos);
+    }
+
+    /**
+     * @return The time for writing the resulting document(s)
+     */
+    public Duration getWriteTime() {
+        return Duration.ofNanos(writeNanos);
+    }
+
+    /**
+     * @return The overall time of the merge
+     */
+    public Duration getTotalTime() {
+        return Duration.ofNanos(totalNanos);
+    }
+
+    /**
+     * @return The number of rows which were merged
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of rows which were skipped because they were empty or not included
+     */
+    public int getSkippedRows() {
+        return skippedRows;
+    }
+
+    /**
+     * @return The number of merged rows per second, based on the overall time
+     */
+    public double getRowsPerSecond() {
+        return totalNanos == 0 ? 0 : rows * (double) TimeUnit.SECONDS.toNanos(1) / totalNanos;
+    }
+
+    /**
+     * @return The size of the resulting file(s) in bytes
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * The used heap of the whole JVM is sampled every few milliseconds while
+     * merging, so it also includes memory used by other threads, e.g. merges
+     * which run concurrently, and short peaks between two samples are missed.
+     *
+     * @return The highest sampled heap-usage of the JVM in bytes
+     */
+    public long getPeakHeap() {
+        return peakHeap;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "Merged %d rows (%d skipped) in %d ms, %.1f rows/s, template %d ms, read %d ms, render %d ms, " +
+                "rebuild %d ms, write %d ms, %d bytes written, peak heap %d MB",
+                rows, skippedRows, toMillis(totalNanos), getRowsPerSecond(), toMillis(templateNanos),
+                toMillis(readNanos), toMillis(renderNanos), toMillis(rebuildNanos), toMillis(writeNanos),
+                bytesWritten, peakHeap / (1024 * 1024));
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
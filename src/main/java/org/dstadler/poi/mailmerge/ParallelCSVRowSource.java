@@ -0,0 +1,272 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Reads the rows of a large CSV file on multiple threads, in the same
+ * format as {@link CSVRowSource}.
+ *
+ * The file is memory-mapped and split into chunks at the end of records,
+ * line-breaks inside quoted values are not used for splitting. The chunks
+ * are decoded and parsed on a pool of worker-threads and the rows are
+ * returned in the original order. Only a limited number of chunks is in
+ * flight at any time, so memory usage does not grow with the size of the file.
+ *
+ * Splitting works on the bytes of the file, so only charsets which encode
+ * the delimiter, quote and line-breaks as single ASCII-bytes are supported,
+ * see {@link #isSupported(Charset)}.
+ */
+final class ParallelCSVRowSource extends RowSource {
+    private static final Logger log = LoggerFactory.make();
+
+    // small enough that the parsed rows of the chunks in flight do not put much pressure on the garbage collector
+    static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    // states while looking for the end of a record
+    private static final int FIELD_START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    private static final int QUOTE_IN_QUOTED = 3;
+
+    private final FileChannel channel;
+    private final long size;
+    private final Charset charset;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+
+    private final Deque<Future<List<String[]>>> inFlight = new ArrayDeque<>();
+    private final byte[] scanBuffer = new byte[64 * 1024];
+
+    // the start of the next chunk which is not submitted yet
+    private long next;
+
+    private List<String[]> records = List.of();
+    private int recordIndex;
+
+    /**
+     * @param csvFile The file to read
+     * @param charset The encoding of the file, needs to be supported according to {@link #isSupported(Charset)}
+     * @param threads The number of threads used for parsing
+     * @param chunkSize The approximate number of bytes which are parsed as one unit of work
+     * @throws IOException If the file cannot be opened or the header-row cannot be read
+     */
+    ParallelCSVRowSource(File csvFile, Charset charset, int threads, int chunkSize) throws IOException {
+        Preconditions.checkArgument(isSupported(charset), "Charset %s cannot be read in parallel", charset);
+        Preconditions.checkArgument(threads > 0, "Need at least one thread, but had %s", threads);
+        Preconditions.checkArgument(chunkSize > 0, "Need a positive chunk-size, but had %s", chunkSize);
+
+        this.charset = charset;
+        this.chunkSize = chunkSize;
+        this.maxInFlight = threads * 2;
+
+        channel = FileChannel.open(csvFile.toPath(), StandardOpenOption.READ);
+        try {
+            size = channel.size();
+            readHeaders();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().
+                setNameFormat("MailMerge-csv-%d").
+                setDaemon(true).
+                build());
+    }
+
+    /**
+     * @param charset The encoding of a file
+     * @return true if the delimiter, quote, whitespace and line-breaks are encoded as
+     *      single ASCII-bytes which do not occur inside other characters, e.g. UTF-8 or ISO-8859-1
+     */
+    static boolean isSupported(Charset charset) {
+        String special = "\",\r\n \t";
+        return charset.canEncode() &&
+                Arrays.equals(special.getBytes(StandardCharsets.US_ASCII), special.getBytes(charset));
+    }
+
+    private void readHeaders() throws IOException {
+        // the first record which is not empty is the header-row, like commons-csv does it
+        while (next < size) {
+            long end = findRecordEnd(next, 1);
+            String text = decode(next, end);
+            next = end;
+
+            if (!text.isBlank()) {
+                try (CSVParser parser = CSVParser.builder().
+                        setReader(new StringReader(text)).
+                        setFormat(CSVRowSource.FORMAT_WITH_HEADER).
+                        get()) {
+                    for (Map.Entry<String, Integer> entry : parser.getHeaderMap().entrySet()) {
+                        headers.add(entry.getKey());
+                        log.info("Had header '" + entry.getKey() + "' for column " + entry.getValue());
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Find the end of the first record which ends at least the given number
+     * of bytes after the start, i.e. the position after its line-break.
+     *
+     * @param start The start of a record
+     * @param minLength The minimum number of bytes to include
+     * @return The position after the line-break, or the size of the file
+     */
+    private long findRecordEnd(long start, long minLength) throws IOException {
+        int state = FIELD_START;
+        long pos = start;
+        while (pos < size) {
+            // scan a copy of the bytes, this is faster than accessing the mapped buffer byte by byte
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(size - pos, 2L * chunkSize));
+            while (window.hasRemaining()) {
+                long offset = pos + window.position();
+                int length = Math.min(window.remaining(), scanBuffer.length);
+                window.get(scanBuffer, 0, length);
+
+                for (int i = 0; i < length; i++) {
+                    byte b = scanBuffer[i];
+                    switch (state) {
+                        case FIELD_START:
+                            if (b == '"') {
+                                state = QUOTED;
+                            } else if (b != ' ' && b != '\t' && b != ',' && b != '\r' && b != '\n') {
+                                state = UNQUOTED;
+                            }
+                            break;
+                        case QUOTED:
+                            if (b == '"') {
+                                state = QUOTE_IN_QUOTED;
+                            }
+                            break;
+                        case QUOTE_IN_QUOTED:
+                            // two quotes are an escaped quote inside the value
+                            state = b == '"' ? QUOTED : UNQUOTED;
+                            break;
+                        default:
+                            break;
+                    }
+
+                    if (state == UNQUOTED && (b == ',' || b == '\r' || b == '\n')) {
+                        state = FIELD_START;
+                    }
+
+                    if (b == '\n' && state == FIELD_START && offset + i + 1 - start >= minLength) {
+                        return offset + i + 1;
+                    }
+                }
+            }
+            pos += window.limit();
+        }
+        return size;
+    }
+
+    private String decode(long start, long end) throws IOException {
+        // copy the mapped bytes once, decoding a byte-array is much faster than decoding a mapped buffer
+        byte[] bytes = new byte[Math.toIntExact(end - start)];
+        channel.map(FileChannel.MapMode.READ_ONLY, start, bytes.length).get(bytes);
+
+        // invalid input is replaced in the same way as a Reader does
+        return new String(bytes, charset);
+    }
+
+    private List<String[]> parse(long start, long end) throws IOException {
+        List<String[]> result = new ArrayList<>();
+        try (CSVParser parser = CSVParser.builder().
+                setReader(new StringReader(decode(start, end))).
+                setFormat(CSVRowSource.FORMAT).
+                get()) {
+            for (CSVRecord record : parser) {
+                result.add(record.values());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    boolean readRow(String[] values) throws IOException {
+        while (recordIndex >= records.size()) {
+            // keep enough chunks queued up for all threads
+            while (inFlight.size() < maxInFlight && next < size) {
+                long start = next;
+                long end = findRecordEnd(start, chunkSize);
+                inFlight.add(executor.submit(() -> parse(start, end)));
+                next = end;
+            }
+
+            if (inFlight.isEmpty()) {
+                return false;
+            }
+
+            records = take(inFlight.removeFirst());
+            recordIndex = 0;
+        }
+
+        String[] record = records.get(recordIndex);
+
+        // release the record early as chunks can be large
+        records.set(recordIndex++, null);
+
+        for (int pos = 0; pos < values.length; pos++) {
+            values[pos] = pos < record.length && isRead(pos) ? record[pos] : null;
+        }
+        return true;
+    }
+
+    private static List<String[]> take(Future<List<String[]>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for parsing rows");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IOException("Parsing rows failed", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            executor.shutdownNow();
+        } finally {
+            channel.close();
+        }
+    }
+}
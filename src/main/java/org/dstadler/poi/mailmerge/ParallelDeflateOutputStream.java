@@ -0,0 +1,151 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Compresses the main document of a {@link SegmentedDocxWriter} on multiple
+ * threads, in the same way as pigz does it for gzip-files.
+ *
+ * The data is split into blocks which are compressed as {@link DeflateSegment}s
+ * on a pool of worker-threads, the last 32KB of the previous block are used as
+ * dictionary, so the result is almost as small as when compressing on one thread.
+ * The segments are written in order, only a limited number of blocks is in
+ * flight at any time.
+ *
+ * Flushing does not write anything, data is only compressed in full blocks
+ * and when the stream is closed.
+ */
+class ParallelDeflateOutputStream extends OutputStream {
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    // the maximum distance of a match in deflate
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final SegmentedDocxWriter writer;
+    private final int level;
+    private final int blockSize;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final Deque<Future<DeflateSegment>> inFlight = new ArrayDeque<>();
+
+    private byte[] block;
+    private int count;
+    private byte[] dictionary;
+    private boolean closed;
+
+    /**
+     * @param writer Receives the compressed segments, it is not closed by this stream
+     * @param level The compression-level, see {@link java.util.zip.Deflater}
+     * @param threads The number of threads used for compressing
+     * @param blockSize The number of bytes which are compressed as one unit of work
+     */
+    ParallelDeflateOutputStream(SegmentedDocxWriter writer, int level, int threads, int blockSize) {
+        Preconditions.checkArgument(threads > 0, "Need at least one thread, but had %s", threads);
+        Preconditions.checkArgument(blockSize > 0, "Need a positive block-size, but had %s", blockSize);
+
+        this.writer = writer;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+        this.maxInFlight = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().
+                setNameFormat("MailMerge-deflate-%d").
+                setDaemon(true).
+                build());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[count++] = (byte) b;
+        if (count == blockSize) {
+            submit();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int copy = Math.min(length, blockSize - count);
+            System.arraycopy(bytes, offset, block, count, copy);
+            count += copy;
+            offset += copy;
+            length -= copy;
+
+            if (count == blockSize) {
+                submit();
+            }
+        }
+    }
+
+    private void submit() throws IOException {
+        byte[] input = block;
+        int length = count;
+        byte[] preceding = dictionary;
+        inFlight.add(executor.submit(() -> DeflateSegment.compress(input, length, preceding, level)));
+
+        dictionary = Arrays.copyOfRange(input, Math.max(0, length - DICTIONARY_SIZE), length);
+        block = new byte[blockSize];
+        count = 0;
+
+        // wait for the oldest block if enough work is queued up already
+        if (inFlight.size() >= maxInFlight) {
+            writeSegment(inFlight.removeFirst());
+        }
+    }
+
+    private void writeSegment(Future<DeflateSegment> future) throws IOException {
+        final DeflateSegment segment;
+        try {
+            segment = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compressing data");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IOException("Compressing data failed", e.getCause());
+        }
+
+        writer.write(segment);
+    }
+
+    /**
+     * Compress the remaining data and write all segments, the writer is not closed.
+     *
+     * @throws IOException If writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (count > 0) {
+                submit();
+            }
+            while (!inFlight.isEmpty()) {
+                writeSegment(inFlight.removeFirst());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Renders rows on a pool of worker-threads and passes the results
+ * on in the original order of the rows.
+ *
+ * Rows are rendered in batches and only a limited number of batches
+ * is in flight at any time, so memory usage stays bounded even if
+ * the consumer is slower than rendering.
+ */
+class ParallelRenderer implements Closeable {
+    private static final int BATCH_SIZE = 256;
+
+    private final CompiledTemplate template;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+
+    /**
+     * @param template The template to render rows with
+     * @param threads The number of worker-threads to use
+     */
+    ParallelRenderer(CompiledTemplate template, int threads) {
+        Preconditions.checkArgument(threads > 0, "Need at least one thread, but had %s", threads);
+
+        this.template = template;
+        this.maxInFlight = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().
+                setNameFormat("MailMerge-render-%d").
+                setDaemon(true).
+                build());
+    }
+
+    /**
+     * Render all the given rows and pass the results to the consumer
+     * in the order of the rows.
+     *
+     * @param rows The rows to render, the row-instances may be re-used by the iterator
+     * @param consumer Receives the rendered rows on the calling thread
+     * @throws IOException If the consumer fails or the thread is interrupted
+     */
+    void render(Iterable<List<String>> rows, FragmentConsumer consumer) throws IOException {
+        Deque<Future<String[]>> inFlight = new ArrayDeque<>();
+
+        List<List<String>> batch = new ArrayList<>(BATCH_SIZE);
+        for (List<String> row : rows) {
+            // rows may be re-used by the source, so the values are copied here
+            batch.add(new ArrayList<>(row));
+
+            if (batch.size() == BATCH_SIZE) {
+                inFlight.add(submit(batch));
+                batch = new ArrayList<>(BATCH_SIZE);
+
+                // wait for the oldest batch if enough work is queued up already
+                if (inFlight.size() >= maxInFlight) {
+                    deliver(inFlight.removeFirst(), consumer);
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            inFlight.add(submit(batch));
+        }
+
+        while (!inFlight.isEmpty()) {
+            deliver(inFlight.removeFirst(), consumer);
+        }
+    }
+
+    private Future<String[]> submit(List<List<String>> batch) {
+        return executor.submit(() -> {
+            String[] fragments = new String[batch.size()];
+            StringBuilder buffer = new StringBuilder(template.getLength() * 2);
+            for (int i = 0; i < fragments.length; i++) {
+                buffer.setLength(0);
+                template.render(batch.get(i), buffer);
+                fragments[i] = buffer.toString();
+            }
+            return fragments;
+        });
+    }
+
+    private static void deliver(Future<String[]> future, FragmentConsumer consumer) throws IOException {
+        final String[] fragments;
+        try {
+            fragments = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for rendering rows");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IOException("Rendering rows failed", e.getCause());
+        }
+
+        for (String fragment : fragments) {
+            consumer.accept(fragment);
+        }
+    }
+
+    /**
+     * Stop the worker-threads, rendering which is still in progress is cancelled.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,68 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * A result which is written to a temporary file next to the target and
+ * only replaces the target when it is committed, so a merge which fails
+ * part-way does not leave a truncated document behind and keeps the
+ * result of a previous run.
+ */
+class PendingFile implements Closeable {
+    private static final Logger log = LoggerFactory.make();
+
+    private final File target;
+    private final File file;
+    private boolean committed;
+
+    /**
+     * @param target The file which is replaced when the result is committed
+     * @throws IOException If the temporary file cannot be created
+     */
+    PendingFile(File target) throws IOException {
+        this.target = target;
+
+        // in the same directory, so the file can be moved without copying
+        this.file = File.createTempFile("MailMerge-", ".docx.tmp", target.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * @return The temporary file to write the result to
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Replace the target with the written result, this should be called
+     * after the result was written and closed successfully.
+     *
+     * @throws IOException If the file cannot be moved
+     */
+    void commit() throws IOException {
+        Preconditions.checkState(!committed, "The result %s was already committed", target);
+
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        committed = true;
+    }
+
+    /**
+     * Remove the temporary file if the result was not committed.
+     *
+     * @throws IOException If the file cannot be deleted
+     */
+    @Override
+    public void close() throws IOException {
+        if (!committed && Files.deleteIfExists(file.toPath())) {
+            log.info("Removed incomplete result for " + target);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reads, renders and writes rows at the same time: a reader-thread
+ * iterates the rows and submits batches to a pool of render-threads,
+ * the calling thread passes the rendered batches on in the original
+ * order of the rows, e.g. to write them.
+ *
+ * The stages are connected by a bounded queue, the reader waits when
+ * the given number of batches is queued up, so memory usage is limited
+ * by the capacity of the queue, even if writing is slower than reading
+ * or rendering.
+ */
+class PipelinedRenderer implements Closeable {
+    static final int BATCH_SIZE = 256;
+
+    // marks the end of the rows in the queue
+    private static final Future<String[]> END = CompletableFuture.completedFuture(new String[0]);
+
+    private final CompiledTemplate template;
+    private final ExecutorService reader;
+    private final ExecutorService renderers;
+    private final BlockingQueue<Future<String[]>> queue;
+
+    // the time spent rendering, summed up over all render-threads
+    private final AtomicLong renderNanos = new AtomicLong();
+
+    /**
+     * @param template The template to render rows with
+     * @param threads The number of render-threads to use
+     * @param capacity The maximum number of batches of {@link #BATCH_SIZE} rows which are read but not written yet
+     */
+    PipelinedRenderer(CompiledTemplate template, int threads, int capacity) {
+        Preconditions.checkArgument(threads > 0, "Need at least one thread, but had %s", threads);
+        Preconditions.checkArgument(capacity > 0, "Need a capacity of at least one batch, but had %s", capacity);
+
+        this.template = template;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.reader = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().
+                setNameFormat("MailMerge-read-%d").
+                setDaemon(true).
+                build());
+        this.renderers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().
+                setNameFormat("MailMerge-render-%d").
+                setDaemon(true).
+                build());
+    }
+
+    /**
+     * Render all the given rows and pass the results to the consumer
+     * in the order of the rows.
+     *
+     * @param rows The rows to render, they are iterated on a separate thread, the row-instances may be re-used by the iterator
+     * @param consumer Receives the rendered rows on the calling thread
+     * @throws IOException If the consumer fails or the thread is interrupted
+     */
+    void render(Iterable<List<String>> rows, FragmentConsumer consumer) throws IOException {
+        Future<?> reading = reader.submit(() -> {
+            read(rows);
+            return null;
+        });
+
+        while (true) {
+            final Future<String[]> batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for rendering rows");
+            }
+            if (batch == END) {
+                break;
+            }
+
+            for (String fragment : get(batch, "rendering")) {
+                consumer.accept(fragment);
+            }
+        }
+
+        // report a failure while reading the rows
+        get(reading, "reading");
+    }
+
+    private void read(Iterable<List<String>> rows) throws InterruptedException {
+        // when the pipeline is closed, the thread is interrupted and nobody waits for the end any more
+        try {
+            List<List<String>> batch = new ArrayList<>(BATCH_SIZE);
+            for (List<String> row : rows) {
+                // rows may be re-used by the source, so the values are copied here
+                batch.add(new ArrayList<>(row));
+
+                if (batch.size() == BATCH_SIZE) {
+                    // blocks if enough batches are queued up already
+                    queue.put(submit(batch));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                queue.put(submit(batch));
+            }
+        } catch (RuntimeException | Error e) {
+            // let the writer stop, the failure is reported via the future of the reader
+            queue.put(END);
+            throw e;
+        }
+        queue.put(END);
+    }
+
+    private Future<String[]> submit(List<List<String>> batch) {
+        return renderers.submit(() -> {
+            long start = System.nanoTime();
+            String[] fragments = new String[batch.size()];
+            StringBuilder buffer = new StringBuilder(template.getLength() * 2);
+            for (int i = 0; i < fragments.length; i++) {
+                buffer.setLength(0);
+                template.render(batch.get(i), buffer);
+                fragments[i] = buffer.toString();
+            }
+            renderNanos.addAndGet(System.nanoTime() - start);
+            return fragments;
+        });
+    }
+
+    private static <T> T get(Future<T> future, String stage) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + stage + " rows");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IOException("Failed " + stage + " rows", e.getCause());
+        }
+    }
+
+    /**
+     * @return The time spent rendering rows, summed up over all render-threads
+     */
+    long getRenderNanos() {
+        return renderNanos.get();
+    }
+
+    /**
+     * Stop all threads, reading and rendering which is still in progress is
+     * cancelled. Waits until the reader-thread stopped, so the rows can be
+     * closed afterwards.
+     *
+     * @throws IOException If the thread is interrupted while waiting
+     */
+    @Override
+    public void close() throws IOException {
+        reader.shutdownNow();
+        renderers.shutdownNow();
+        try {
+            if (!reader.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Reading rows did not stop after closing the pipeline");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for reading rows to stop");
+        }
+    }
+}
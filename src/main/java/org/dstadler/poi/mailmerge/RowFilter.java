@@ -0,0 +1,369 @@
+package org.dstadler.poi.mailmerge;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+/**
+ * A filter-expression which selects the rows of the data-file that are merged,
+ * e.g. <code>Country == "AT" &amp;&amp; Amount &gt; 100</code>.
+ *
+ * The expression is parsed once and bound to the position of the columns,
+ * so evaluating it for a row only compares the values of the row.
+ *
+ * Supported are the comparisons ==, !=, &lt;, &lt;=, &gt; and &gt;=, combined
+ * with &amp;&amp;, || and ! and grouped with parentheses. Columns are referenced
+ * by their header-name, either directly if it only consists of letters, digits,
+ * '_' and '.', or in the form ${Header with spaces}. A column on its own is true
+ * if it contains "1" or "true", like the include-indicator.
+ *
+ * Values are compared as numbers if a number-literal is used or if both values
+ * are numbers, otherwise they are compared as text. Values of Excel-files are
+ * read as formatted, so numbers may contain grouping-separators, currency-symbols,
+ * a trailing '%' or parentheses for negative amounts, e.g. "1,234.50", "€ 120",
+ * "12%" or "(100.00)". These are compared as the number which is shown,
+ * i.e. "12%" is compared as 12. Besides spaces, only ',' is supported as
+ * grouping-separator and '.' as decimal-separator.
+ */
+public class RowFilter {
+    // digits with ',' as grouping-separator every three digits, e.g. 1,234,567.89
+    private static final Pattern GROUPED_NUMBER = Pattern.compile("-?\\d{1,3}(,\\d{3})+(\\.\\d+)?");
+
+    private final String expression;
+    private final Node root;
+    private final BitSet columns;
+
+    private RowFilter(String expression, Node root, BitSet columns) {
+        this.expression = expression;
+        this.root = root;
+        this.columns = columns;
+    }
+
+    /**
+     * Parse the given expression and bind it to the given headers.
+     *
+     * @param expression The filter-expression
+     * @param headers The header-names as read from the data-file
+     * @return The compiled filter
+     * @throws IllegalArgumentException If the expression is invalid or uses a column which does not exist
+     */
+    public static RowFilter compile(String expression, List<String> headers) {
+        Parser parser = new Parser(expression, headers);
+        Node root = parser.parseOr();
+        if (parser.pos < parser.tokens.size()) {
+            throw parser.error("Unexpected " + parser.tokens.get(parser.pos).text);
+        }
+
+        return new RowFilter(expression, root, parser.columns);
+    }
+
+    /**
+     * @param row The values of one row, in the same order as the headers used for compiling
+     * @return true if the row should be merged
+     */
+    public boolean matches(List<String> row) {
+        return root.matches(row);
+    }
+
+    /**
+     * @param column The index of a column
+     * @return true if the expression uses the value of the given column
+     */
+    boolean uses(int column) {
+        return columns.get(column);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private interface Node {
+        boolean matches(List<String> row);
+    }
+
+    /**
+     * One side of a comparison, either a column or a literal value.
+     */
+    private record Operand(int column, String literal, boolean number) {
+        String value(List<String> row) {
+            if (column < 0) {
+                return literal;
+            }
+
+            String value = column < row.size() ? row.get(column) : null;
+            return value == null ? "" : value;
+        }
+    }
+
+    private static boolean compare(Operand left, String operator, Operand right, List<String> row) {
+        String leftValue = left.value(row);
+        String rightValue = right.value(row);
+
+        Double leftNumber = toNumber(leftValue);
+        Double rightNumber = toNumber(rightValue);
+
+        final int result;
+        if (left.number() || right.number() || (leftNumber != null && rightNumber != null)) {
+            // values which are no numbers never match a number
+            if (leftNumber == null || rightNumber == null) {
+                return "!=".equals(operator);
+            }
+            result = Double.compare(leftNumber, rightNumber);
+        } else {
+            result = leftValue.compareTo(rightValue);
+        }
+
+        return switch (operator) {
+            case "==" -> result == 0;
+            case "!=" -> result != 0;
+            case "<" -> result < 0;
+            case "<=" -> result <= 0;
+            case ">" -> result > 0;
+            case ">=" -> result >= 0;
+            default -> throw new IllegalStateException("Unexpected operator " + operator);
+        };
+    }
+
+    /**
+     * Read a plain or formatted number, see the description of the class.
+     *
+     * @param value The value of a column or literal
+     * @return The number which is shown by the value, null if it is no number
+     */
+    static Double toNumber(String value) {
+        if (NumberUtils.isParsable(value)) {
+            return Double.parseDouble(value);
+        }
+
+        // remove spaces, also non-breaking ones which are used e.g. between amount and currency
+        StringBuilder text = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!Character.isWhitespace(c) && !Character.isSpaceChar(c)) {
+                text.append(c);
+            }
+        }
+
+        boolean negative = false;
+        if (text.length() > 2 && text.charAt(0) == '(' && text.charAt(text.length() - 1) == ')') {
+            negative = true;
+            text.deleteCharAt(text.length() - 1).deleteCharAt(0);
+        }
+        if (!text.isEmpty() && text.charAt(text.length() - 1) == '%') {
+            text.setLength(text.length() - 1);
+        }
+
+        // the currency-symbol can be placed before or after the amount and also after the sign
+        while (!text.isEmpty() && Character.getType(text.charAt(text.length() - 1)) == Character.CURRENCY_SYMBOL) {
+            text.setLength(text.length() - 1);
+        }
+        int start = !text.isEmpty() && text.charAt(0) == '-' ? 1 : 0;
+        while (text.length() > start && Character.getType(text.charAt(start)) == Character.CURRENCY_SYMBOL) {
+            text.deleteCharAt(start);
+        }
+
+        String number = text.toString();
+        if (GROUPED_NUMBER.matcher(number).matches()) {
+            number = number.replace(",", "");
+        }
+        if (!NumberUtils.isParsable(number)) {
+            return null;
+        }
+
+        double result = Double.parseDouble(number);
+        return negative ? -result : result;
+    }
+
+    private enum Type {
+        OPERATOR, STRING, NUMBER, COLUMN
+    }
+
+    private record Token(Type type, String text, int pos) {
+    }
+
+    /**
+     * A simple recursive-descent parser, operators bind in the order
+     * !, comparisons, &amp;&amp;, ||.
+     */
+    private static final class Parser {
+        private final String expression;
+        private final List<String> headers;
+        private final List<Token> tokens;
+        private final BitSet columns = new BitSet();
+        private int pos;
+
+        private Parser(String expression, List<String> headers) {
+            this.expression = expression;
+            this.headers = headers;
+            this.tokens = tokenize(expression);
+        }
+
+        private Node parseOr() {
+            Node left = parseAnd();
+            while (accept("||")) {
+                Node first = left;
+                Node second = parseAnd();
+                left = row -> first.matches(row) || second.matches(row);
+            }
+            return left;
+        }
+
+        private Node parseAnd() {
+            Node left = parseNot();
+            while (accept("&&")) {
+                Node first = left;
+                Node second = parseNot();
+                left = row -> first.matches(row) && second.matches(row);
+            }
+            return left;
+        }
+
+        private Node parseNot() {
+            if (accept("!")) {
+                Node node = parseNot();
+                return row -> !node.matches(row);
+            }
+
+            if (accept("(")) {
+                Node node = parseOr();
+                if (!accept(")")) {
+                    throw error("Missing closing parenthesis");
+                }
+                return node;
+            }
+
+            return parseComparison();
+        }
+
+        private Node parseComparison() {
+            Operand left = parseOperand();
+
+            Token token = pos < tokens.size() ? tokens.get(pos) : null;
+            if (token == null || token.type() != Type.OPERATOR || !isComparison(token.text())) {
+                // a column on its own is used like an include-indicator
+                if (left.column() < 0) {
+                    throw error("Expected a comparison after " + left.literal());
+                }
+                return row -> {
+                    String value = left.value(row);
+                    return "1".equals(value) || "true".equalsIgnoreCase(value);
+                };
+            }
+
+            pos++;
+            String operator = token.text();
+            Operand right = parseOperand();
+            return row -> compare(left, operator, right, row);
+        }
+
+        private static boolean isComparison(String operator) {
+            return switch (operator) {
+                case "==", "!=", "<", "<=", ">", ">=" -> true;
+                default -> false;
+            };
+        }
+
+        private Operand parseOperand() {
+            if (pos >= tokens.size()) {
+                throw error("Unexpected end of expression");
+            }
+
+            Token token = tokens.get(pos++);
+            return switch (token.type()) {
+                case STRING -> new Operand(-1, token.text(), false);
+                case NUMBER -> new Operand(-1, token.text(), true);
+                case COLUMN -> {
+                    int column = headers.indexOf(token.text());
+                    if (column < 0) {
+                        throw new IllegalArgumentException("Filter " + expression + " uses column " + token.text() +
+                                " which does not exist, had: " + headers);
+                    }
+                    columns.set(column);
+                    yield new Operand(column, null, false);
+                }
+                default -> throw error("Unexpected " + token.text(), token.pos());
+            };
+        }
+
+        private boolean accept(String operator) {
+            if (pos < tokens.size() && tokens.get(pos).type() == Type.OPERATOR && tokens.get(pos).text().equals(operator)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return error(message, pos < tokens.size() ? tokens.get(pos).pos() : expression.length());
+        }
+
+        private IllegalArgumentException error(String message, int position) {
+            return new IllegalArgumentException(message + " at position " + position + " in filter " + expression);
+        }
+
+        private List<Token> tokenize(String text) {
+            List<Token> result = new ArrayList<>();
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (text.startsWith("${", i)) {
+                    int end = text.indexOf('}', i + 2);
+                    if (end < 0) {
+                        throw error("Missing closing brace", i);
+                    }
+                    result.add(new Token(Type.COLUMN, text.substring(i + 2, end), i));
+                    i = end + 1;
+                } else if (c == '"' || c == '\'') {
+                    int end = text.indexOf(c, i + 1);
+                    if (end < 0) {
+                        throw error("Missing closing quote", i);
+                    }
+                    result.add(new Token(Type.STRING, text.substring(i + 1, end), i));
+                    i = end + 1;
+                } else if (Character.isDigit(c) || (c == '-' && i + 1 < text.length() && Character.isDigit(text.charAt(i + 1)))) {
+                    int end = i + 1;
+                    while (end < text.length() && (Character.isDigit(text.charAt(end)) || text.charAt(end) == '.')) {
+                        end++;
+                    }
+                    String number = text.substring(i, end);
+                    if (!NumberUtils.isParsable(number)) {
+                        throw error("Invalid number " + number, i);
+                    }
+                    result.add(new Token(Type.NUMBER, number, i));
+                    i = end;
+                } else if (Character.isLetter(c) || c == '_') {
+                    int end = i + 1;
+                    while (end < text.length() &&
+                            (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_' || text.charAt(end) == '.')) {
+                        end++;
+                    }
+                    result.add(new Token(Type.COLUMN, text.substring(i, end), i));
+                    i = end;
+                } else {
+                    String operator = operatorAt(text, i);
+                    if (operator == null) {
+                        throw error("Unexpected character '" + c + "'", i);
+                    }
+                    result.add(new Token(Type.OPERATOR, operator, i));
+                    i += operator.length();
+                }
+            }
+            return result;
+        }
+
+        private static String operatorAt(String text, int i) {
+            for (String operator : new String[] { "&&", "||", "==", "!=", "<=", ">=", "<", ">", "!", "(", ")" }) {
+                if (text.startsWith(operator, i)) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+    }
+}
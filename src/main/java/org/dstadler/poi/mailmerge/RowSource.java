@@ -0,0 +1,349 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.poifs.filesystem.FileMagic;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Reads the merge-file-data from either a CSV or XLS/XLSX file
+ * one row at a time, so that the rows do not need to be held in
+ * memory all at once.
+ *
+ * Empty lines and lines which do not have the include-indicator set
+ * are skipped while reading.
+ *
+ * If only some of the columns are needed, the others can be skipped
+ * via {@link #setColumns(Collection)}, their values are then not
+ * converted and returned as null.
+ *
+ * The source can only be iterated once. The iterator returns the same
+ * row-instance for each row with the values of the current row, so
+ * callers need to copy it if they want to keep the values.
+ */
+public abstract class RowSource implements Iterable<List<String>>, Closeable {
+    private static final Logger log = LoggerFactory.make();
+
+    /**
+     * Whether the Excel-readers keep the formatter of numeric cells per cell-style,
+     * only switched off by the benchmarks to compare with looking it up for each cell.
+     */
+    static volatile boolean cacheFormats = true;
+
+    /**
+     * The header-names, filled by the implementations while opening the file.
+     */
+    final List<String> headers = new ArrayList<>();
+
+    private int indicatorPos = -1;
+    private RowFilter filter;
+    private Set<String> columns;
+    private boolean iterated;
+
+    // which columns are read, null if all are read, computed when the iteration starts
+    private boolean[] projection;
+
+    // counters for the statistics of the merge
+    private int rows;
+    private int skippedRows;
+    private long readNanos;
+
+    RowSource() {
+    }
+
+    /**
+     * Open the given file either as .csv or .xls/.xlsx file, depending
+     * on the file-extension and read the headers.
+     *
+     * .xlsx files are read as stream of XML-events, other Excel files
+     * are read via the full object-model of the workbook.
+     *
+     * @param dataFile The merge-file to read. Can have extension .csv, .xls or .xlsx
+     * @return A source which provides the headers and the rows of the file
+     * @throws IOException If an error occurs while reading the file
+     * @throws EncryptedDocumentException If the document is encrypted (passwords are not supported currently)
+     */
+    public static RowSource open(File dataFile) throws IOException, EncryptedDocumentException {
+        return open(dataFile, Charset.defaultCharset(), 1);
+    }
+
+    /**
+     * Open the given file either as .csv or .xls/.xlsx file, depending
+     * on the file-extension and read the headers.
+     *
+     * CSV files are decoded with the given charset, with more than one thread
+     * they are memory-mapped and parsed in chunks on multiple threads, if the
+     * charset allows it, see {@link ParallelCSVRowSource}. Both are ignored for
+     * Excel files.
+     *
+     * @param dataFile The merge-file to read. Can have extension .csv, .xls or .xlsx
+     * @param charset The encoding of CSV files
+     * @param threads The number of threads for parsing CSV files, 1 to read them on the calling thread
+     * @return A source which provides the headers and the rows of the file
+     * @throws IOException If an error occurs while reading the file
+     * @throws EncryptedDocumentException If the document is encrypted (passwords are not supported currently)
+     */
+    public static RowSource open(File dataFile, Charset charset, int threads) throws IOException, EncryptedDocumentException {
+        return open(dataFile, null, charset, threads);
+    }
+
+    /**
+     * Open the given sheet of a .xls/.xlsx file or the given .csv file and
+     * read the headers, see {@link #open(File, Charset, int)}.
+     *
+     * @param dataFile The merge-file to read. Can have extension .csv, .xls or .xlsx
+     * @param sheet The name of the sheet of an Excel file, null to read the first sheet, needs to be null for CSV files
+     * @param charset The encoding of CSV files
+     * @param threads The number of threads for parsing CSV files, 1 to read them on the calling thread
+     * @return A source which provides the headers and the rows of the file
+     * @throws IOException If an error occurs while reading the file
+     * @throws EncryptedDocumentException If the document is encrypted (passwords are not supported currently)
+     * @throws IllegalArgumentException If the sheet does not exist
+     */
+    public static RowSource open(File dataFile, String sheet, Charset charset, int threads) throws IOException, EncryptedDocumentException {
+        Preconditions.checkArgument(threads > 0, "Need at least one thread, but had %s", threads);
+
+        if(FilenameUtils.getExtension(dataFile.getName()).equalsIgnoreCase("csv")) {
+            Preconditions.checkArgument(sheet == null, "Cannot read sheet %s from CSV file %s", sheet, dataFile);
+
+            if(threads > 1) {
+                if(ParallelCSVRowSource.isSupported(charset)) {
+                    return new ParallelCSVRowSource(dataFile, charset, threads, ParallelCSVRowSource.DEFAULT_CHUNK_SIZE);
+                }
+                log.info("Reading " + dataFile + " on one thread as charset " + charset + " does not support parallel parsing");
+            }
+            return new CSVRowSource(dataFile, charset);
+        } else if(FileMagic.valueOf(dataFile) == FileMagic.OOXML) {
+            return new XlsxRowSource(dataFile, sheet);
+        } else {
+            return new ExcelRowSource(dataFile, sheet);
+        }
+    }
+
+    /**
+     * A list of header-names that are used to replace the templates.
+     *
+     * @return The header-names as found in the .csv/.xls/.xlsx file.
+     */
+    public List<String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Only return rows which have "1" or "true" in the given column.
+     *
+     * @param includeIndicator The name of the column or null to return all rows
+     * @throws IllegalStateException If there is no column with the given name
+     */
+    public void setIncludeIndicator(String includeIndicator) {
+        if(includeIndicator == null) {
+            indicatorPos = -1;
+            return;
+        }
+
+        indicatorPos = headers.indexOf(includeIndicator);
+        Preconditions.checkState(indicatorPos >= 0,
+                "An include-indicator is set via system properties as %s, but there is no such column, had: %s",
+                includeIndicator, headers);
+    }
+
+    /**
+     * Only return rows which match the given filter-expression, rows which
+     * do not match are skipped while reading.
+     *
+     * @param filter The filter-expression, see {@link RowFilter}, or null to return all rows
+     * @throws IllegalArgumentException If the expression is invalid or uses a column which does not exist
+     */
+    public void setFilter(String filter) {
+        this.filter = StringUtils.isBlank(filter) ? null : RowFilter.compile(filter, headers);
+    }
+
+    /**
+     * Only read the values of the given columns, the values of all other
+     * columns are not converted and always returned as null.
+     *
+     * The columns of the include-indicator and of the filter are always read.
+     * Rows are only skipped as empty if all columns which are read are empty.
+     *
+     * @param columns The header-names of the columns to read, e.g. the template-markers
+     *      found via {@link CompiledTemplate#findMarkers(String)}, or null to read all columns
+     */
+    public void setColumns(Collection<String> columns) {
+        Preconditions.checkState(!iterated, "The columns cannot be changed after reading started");
+        this.columns = columns == null ? null : new HashSet<>(columns);
+    }
+
+    /**
+     * Check if the given column needs to be read, implementations should
+     * leave the value of other columns null without converting it.
+     *
+     * @param column The index of the column
+     * @return true if the value of the column is used
+     */
+    final boolean isRead(int column) {
+        return projection == null || projection[column];
+    }
+
+    /**
+     * Read the values of the next row into the given array.
+     *
+     * @param values The array to fill, has one entry for each header, columns
+     *      which are not read according to {@link #isRead(int)} should be set to null
+     * @return false if there are no more rows
+     * @throws IOException If reading fails
+     */
+    abstract boolean readRow(String[] values) throws IOException;
+
+    @Override
+    public Iterator<List<String>> iterator() {
+        Preconditions.checkState(!iterated, "The rows can only be read once");
+        iterated = true;
+
+        if(columns != null) {
+            projection = new boolean[headers.size()];
+            int count = 0;
+            for(int i = 0;i < projection.length;i++) {
+                projection[i] = i == indicatorPos || columns.contains(headers.get(i)) ||
+                        (filter != null && filter.uses(i));
+                if(projection[i]) {
+                    count++;
+                }
+            }
+            log.info("Reading " + count + " of " + projection.length + " columns");
+        }
+
+        return new RowIterator(new String[headers.size()]);
+    }
+
+    /**
+     * @return The number of rows which were returned so far
+     */
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of rows which were skipped so far because they were empty or not included
+     */
+    int getSkippedRows() {
+        return skippedRows;
+    }
+
+    /**
+     * @return The time spent reading rows so far, in nanoseconds
+     */
+    long getReadNanos() {
+        return readNanos;
+    }
+
+    private boolean isIncluded(String[] values, List<String> row) {
+        boolean empty = true;
+        for(String item : values) {
+            if(StringUtils.isNotBlank(item)) {
+                empty = false;
+                break;
+            }
+        }
+
+        // remove empty line
+        if(empty) {
+            log.info("Removing an empty data line");
+            skippedRows++;
+            return false;
+        }
+
+        // if the option is set ignore lines which do not have the indicator set
+        if(indicatorPos >= 0 && !StringUtils.equalsAnyIgnoreCase(values[indicatorPos], "1", "true")) {
+            log.info("Skipping line " + row + " because include-indicator was not set");
+            skippedRows++;
+            return false;
+        }
+
+        if(filter != null && !filter.matches(row)) {
+            skippedRows++;
+            return false;
+        }
+
+        return true;
+    }
+
+    private final class RowIterator implements Iterator<List<String>> {
+        private final String[] values;
+        private final RowView row;
+
+        private boolean fetched;
+        private boolean hasNext;
+
+        private RowIterator(String[] values) {
+            this.values = values;
+            this.row = new RowView(values);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(!fetched) {
+                long start = System.nanoTime();
+                try {
+                    do {
+                        hasNext = readRow(values);
+                    } while (hasNext && !isIncluded(values, row));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                readNanos += System.nanoTime() - start;
+                fetched = true;
+            }
+
+            return hasNext;
+        }
+
+        @Override
+        public List<String> next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            fetched = false;
+            rows++;
+            return row;
+        }
+    }
+
+    /**
+     * A read-only view on the values of the current row.
+     */
+    private static final class RowView extends AbstractList<String> {
+        private final String[] values;
+
+        private RowView(String[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public String get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+    }
+}
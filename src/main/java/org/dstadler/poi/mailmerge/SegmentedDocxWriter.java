@@ -0,0 +1,323 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Writes a merged Microsoft Word document where the main document is
+ * provided as already compressed {@link DeflateSegment}s, e.g. taken from
+ * a cache or compressed on multiple threads. The caller writes all of the
+ * main document including the prefix and suffix of the template.
+ *
+ * The zip-format is written directly, as {@link java.util.zip.ZipOutputStream}
+ * can only write data which it compresses itself. All other parts of the
+ * template are copied and compressed in the same way.
+ *
+ * When pictures are inserted, the media-parts and the extended
+ * relationships and content-types are written after the main document.
+ *
+ * The sizes of the main document are only known at the end and are written
+ * in a data-descriptor with 4-byte sizes, as readers like {@link ZipInputStream}
+ * only expect 8-byte sizes for entries which actually exceed 4GB. Therefore
+ * the main document is limited to 4GB, which is far more than Word can open.
+ */
+class SegmentedDocxWriter implements Closeable {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int DEFLATED = 8;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+
+    private final CountingOutputStream out;
+    private final int dosTime;
+    private final int dosDate;
+    private final int level;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    // the main document which is currently written
+    private final String documentEntry;
+    private final byte[] documentName;
+    private final long documentOffset;
+    private int crc;
+    private long length;
+    private long compressedLength;
+
+    // the pictures of the document and the parts of the template which list them, null if there are no pictures
+    private final MediaParts media;
+    private String relationships;
+    private String contentTypes;
+
+    /**
+     * Copy all parts of the template except the main document to the
+     * output and start writing the main document.
+     *
+     * @param template The template which provides the parts of the package
+     * @param out The stream to write the resulting .docx to, it is closed when this writer is closed
+     * @param level The compression-level for the copied parts, see {@link java.util.zip.Deflater}
+     * @throws IOException If writing fails
+     */
+    SegmentedDocxWriter(TemplatePackage template, OutputStream out, int level) throws IOException {
+        this(template, out, level, null);
+    }
+
+    /**
+     * Copy all parts of the template except the main document to the
+     * output and start writing the main document.
+     *
+     * @param template The template which provides the parts of the package
+     * @param out The stream to write the resulting .docx to, it is closed when this writer is closed
+     * @param level The compression-level for the copied parts, see {@link java.util.zip.Deflater}
+     * @param media The pictures which are added when the document is finished, null if there are none
+     * @throws IOException If writing fails
+     */
+    SegmentedDocxWriter(TemplatePackage template, OutputStream out, int level, MediaParts media) throws IOException {
+        this.out = new CountingOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.level = level;
+        this.media = media;
+
+        LocalDateTime now = LocalDateTime.now();
+        dosTime = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() >> 1);
+        dosDate = ((now.getYear() - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(template.getBytes()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (entry.getName().equals(template.getDocumentEntry())) {
+                    continue;
+                }
+
+                // these parts are extended with the pictures when the document is finished
+                if (media != null && entry.getName().equals(MediaParts.relationshipsEntry(template.getDocumentEntry()))) {
+                    relationships = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    continue;
+                }
+                if (media != null && entry.getName().equals("[Content_Types].xml")) {
+                    contentTypes = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    continue;
+                }
+
+                writePart(entry.getName(), in.readAllBytes());
+            }
+        }
+
+        // sizes and CRC of the main document are written after the data
+        documentEntry = template.getDocumentEntry();
+        documentName = documentEntry.getBytes(StandardCharsets.UTF_8);
+        documentOffset = out();
+        writeLocalHeader(documentName, flags(documentEntry, FLAG_DATA_DESCRIPTOR), 0, 0, 0);
+    }
+
+    private void writePart(String entryName, byte[] data) throws IOException {
+        DeflateSegment segment = DeflateSegment.compress(data, level);
+        long compressed = segment.data().length + DeflateSegment.FINAL_BLOCK.length;
+        byte[] name = entryName.getBytes(StandardCharsets.UTF_8);
+
+        entries.add(new Entry(name, flags(entryName, 0), segment.crc(), compressed, segment.length(), out()));
+        writeLocalHeader(name, flags(entryName, 0), segment.crc(), compressed, segment.length());
+        out.write(segment.data());
+        out.write(DeflateSegment.FINAL_BLOCK);
+    }
+
+    private static int flags(String name, int flags) {
+        return name.chars().allMatch(c -> c < 0x80) ? flags : flags | FLAG_UTF8;
+    }
+
+    private long out() {
+        return out.getCount();
+    }
+
+    /**
+     * Append a compressed segment to the main document.
+     *
+     * @param segment The compressed content
+     * @throws IOException If writing fails
+     */
+    void write(DeflateSegment segment) throws IOException {
+        // keep room for the final block, the local header does not announce zip64-sizes
+        if (length + segment.length() >= MAX_32 ||
+                compressedLength + segment.data().length + DeflateSegment.FINAL_BLOCK.length >= MAX_32) {
+            throw new ZipException("The main document " + documentEntry + " would exceed the maximum size of 4GB, had "
+                    + length + " bytes and " + compressedLength + " compressed bytes");
+        }
+
+        out.write(segment.data());
+        crc = DeflateSegment.combine(crc, segment.crc(), segment.length());
+        length += segment.length();
+        compressedLength += segment.data().length;
+    }
+
+    /**
+     * @return The number of uncompressed bytes of the main document which were written so far
+     */
+    long getDocumentBytes() {
+        return length;
+    }
+
+    /**
+     * Finish the main document and the zip-package and close the
+     * underlying stream.
+     *
+     * @throws IOException If writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write(DeflateSegment.FINAL_BLOCK);
+            compressedLength += DeflateSegment.FINAL_BLOCK.length;
+
+            // the sizes are checked in write(), so they always fit into 4 bytes
+            writeInt(DATA_DESCRIPTOR);
+            writeInt(crc);
+            writeInt((int) compressedLength);
+            writeInt((int) length);
+            entries.add(new Entry(documentName, flags(documentEntry, FLAG_DATA_DESCRIPTOR),
+                    crc, compressedLength, length, documentOffset));
+
+            if (media != null) {
+                media.writeParts(documentEntry, relationships, contentTypes, this::writePart);
+            }
+
+            writeCentralDirectory();
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeLocalHeader(byte[] name, int flags, int crc, long compressed, long size) throws IOException {
+        boolean zip64 = compressed >= MAX_32 || size >= MAX_32;
+
+        writeInt(LOCAL_HEADER);
+        writeShort(zip64 ? 45 : 20);
+        writeShort(flags);
+        writeShort(DEFLATED);
+        writeShort(dosTime);
+        writeShort(dosDate);
+        writeInt(crc);
+        writeInt(zip64 ? (int) MAX_32 : (int) compressed);
+        writeInt(zip64 ? (int) MAX_32 : (int) size);
+        writeShort(name.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(name);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(size);
+            writeLong(compressed);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = out();
+        for (Entry entry : entries) {
+            // values which do not fit are stored in the zip64 extra-field
+            boolean largeSize = entry.size() >= MAX_32;
+            boolean largeCompressed = entry.compressed() >= MAX_32;
+            boolean largeOffset = entry.offset() >= MAX_32;
+            int extra = (largeSize ? 8 : 0) + (largeCompressed ? 8 : 0) + (largeOffset ? 8 : 0);
+            boolean zip64 = extra > 0;
+
+            writeInt(CENTRAL_HEADER);
+            writeShort(zip64 ? 45 : 20);
+            writeShort(zip64 ? 45 : 20);
+            writeShort(entry.flags());
+            writeShort(DEFLATED);
+            writeShort(dosTime);
+            writeShort(dosDate);
+            writeInt(entry.crc());
+            writeInt(largeCompressed ? (int) MAX_32 : (int) entry.compressed());
+            writeInt(largeSize ? (int) MAX_32 : (int) entry.size());
+            writeShort(entry.name().length);
+            writeShort(zip64 ? extra + 4 : 0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(largeOffset ? (int) MAX_32 : (int) entry.offset());
+            out.write(entry.name());
+            if (zip64) {
+                writeShort(0x0001);
+                writeShort(extra);
+                if (largeSize) {
+                    writeLong(entry.size());
+                }
+                if (largeCompressed) {
+                    writeLong(entry.compressed());
+                }
+                if (largeOffset) {
+                    writeLong(entry.offset());
+                }
+            }
+        }
+        long size = out() - start;
+
+        boolean zip64 = entries.size() >= 0xFFFF || start >= MAX_32 || size >= MAX_32;
+        if (zip64) {
+            long end = out();
+            writeInt(ZIP64_END);
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(size);
+            writeLong(start);
+
+            writeInt(ZIP64_LOCATOR);
+            writeInt(0);
+            writeLong(end);
+            writeInt(1);
+        }
+
+        writeInt(END);
+        writeShort(0);
+        writeShort(0);
+        writeShort(zip64 ? 0xFFFF : entries.size());
+        writeShort(zip64 ? 0xFFFF : entries.size());
+        writeInt(zip64 ? (int) MAX_32 : (int) size);
+        writeInt(zip64 ? (int) MAX_32 : (int) start);
+        writeShort(0);
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeShort(value & 0xFFFF);
+        writeShort((value >>> 16) & 0xFFFF);
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt((int) value);
+        writeInt((int) (value >>> 32));
+    }
+
+    /**
+     * The values of one entry which are needed for the central directory.
+     */
+    private record Entry(byte[] name, int flags, int crc, long compressed, long size, long offset) {
+    }
+}
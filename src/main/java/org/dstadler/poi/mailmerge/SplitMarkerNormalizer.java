@@ -0,0 +1,128 @@
+package org.dstadler.poi.mailmerge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Word splits text into multiple runs when the formatting changes or
+ * when editing history is kept, so a template-marker like ${Salutation}
+ * can end up as "${Salut" and "ation}" in two separate text-elements.
+ *
+ * This moves the text of such markers into the text-element where the
+ * marker starts, so that it can be replaced in one piece. The marker
+ * then uses the formatting of the run which contains its start.
+ */
+final class SplitMarkerNormalizer {
+    // the content of text-elements like <w:t> or <w:t xml:space="preserve">
+    private static final Pattern TEXT = Pattern.compile("<((?:\\w+:)?t)(?:\\s[^>]*)?>([^<]*)</\\1>");
+
+    // markers are only joined within one paragraph
+    private static final Pattern PARAGRAPH_END = Pattern.compile("</(?:\\w+:)?p>");
+
+    private SplitMarkerNormalizer() {
+    }
+
+    /**
+     * Join template-markers which are split across multiple text-elements of a paragraph.
+     *
+     * @param xml The XML of the document-body
+     * @return The XML with all split markers joined, the same instance if there were none
+     */
+    static String normalize(String xml) {
+        if (!xml.contains("${")) {
+            return xml;
+        }
+
+        // find the content of all text-elements
+        List<int[]> ranges = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        Matcher text = TEXT.matcher(xml);
+        Matcher paragraphEnd = PARAGRAPH_END.matcher(xml);
+
+        boolean changed = false;
+        int paragraphStart = 0;
+        int previousEnd = -1;
+        while (text.find()) {
+            if (previousEnd >= 0 && paragraphEnd.region(previousEnd, text.start()).find()) {
+                changed |= join(texts, paragraphStart, texts.size());
+                paragraphStart = texts.size();
+            }
+
+            ranges.add(new int[] { text.start(2), text.end(2) });
+            texts.add(text.group(2));
+            previousEnd = text.end();
+        }
+        changed |= join(texts, paragraphStart, texts.size());
+
+        if (!changed) {
+            return xml;
+        }
+
+        StringBuilder result = new StringBuilder(xml.length());
+        int copied = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            result.append(xml, copied, ranges.get(i)[0]).append(texts.get(i));
+            copied = ranges.get(i)[1];
+        }
+        return result.append(xml, copied, xml.length()).toString();
+    }
+
+    /**
+     * Move the text of markers which span multiple of the given texts
+     * into the text where the marker starts.
+     *
+     * @return true if any text was changed
+     */
+    private static boolean join(List<String> texts, int from, int to) {
+        if (to - from < 2) {
+            return false;
+        }
+
+        // remember which text each character of the paragraph belongs to
+        StringBuilder joined = new StringBuilder();
+        int[] owner = new int[texts.subList(from, to).stream().mapToInt(String::length).sum()];
+        for (int i = from; i < to; i++) {
+            int start = joined.length();
+            joined.append(texts.get(i));
+            for (int pos = start; pos < joined.length(); pos++) {
+                owner[pos] = i;
+            }
+        }
+
+        boolean changed = false;
+        int pos = joined.indexOf("${");
+        while (pos >= 0) {
+            int end = joined.indexOf("}", pos + 2);
+            if (end < 0) {
+                break;
+            }
+
+            if (owner[end] != owner[pos]) {
+                for (int i = pos + 1; i <= end; i++) {
+                    owner[i] = owner[pos];
+                }
+                changed = true;
+            }
+
+            pos = joined.indexOf("${", end + 1);
+        }
+
+        if (!changed) {
+            return false;
+        }
+
+        // the owners are still in ascending order, so each text is a consecutive part
+        int start = 0;
+        for (int i = from; i < to; i++) {
+            int end = start;
+            while (end < owner.length && owner[end] == i) {
+                end++;
+            }
+            texts.set(i, joined.substring(start, end));
+            start = end;
+        }
+        return true;
+    }
+}
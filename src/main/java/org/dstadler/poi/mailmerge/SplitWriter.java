@@ -0,0 +1,219 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Writes one separate Microsoft Word document for each row, either as
+ * files into a directory or as entries of a single zip-file.
+ *
+ * The documents are rendered and written on a pool of worker-threads,
+ * all of them re-use the template which is read only once. Each document
+ * only contains the pictures of its own row, image-files are probed only
+ * once for all documents.
+ */
+class SplitWriter implements Closeable {
+    private static final Logger log = LoggerFactory.make();
+
+    private final TemplatePackage template;
+    private final CompiledTemplate body;
+    private final CompiledTemplate fileName;
+    private final File target;
+    private final ZipOutputStream bundle;
+    private final int level;
+    private final ImageCache images;
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final Deque<Future<Document>> inFlight = new ArrayDeque<>();
+    private final Set<String> usedNames = new HashSet<>();
+
+    private int count;
+    private long bytesWritten;
+
+    /**
+     * @param template The template-package which is copied into each document
+     * @param body The compiled body of the template
+     * @param fileName The compiled pattern for the file-names, rendered without XML-escaping
+     * @param target The directory to write the documents to, or a file with extension .zip to bundle them
+     * @param threads The number of worker-threads to use
+     * @param level The compression-level of the documents, see {@link StreamingDocxWriter}
+     * @param images The probed image-files for image-markers in the body
+     * @throws IOException If the target cannot be created
+     */
+    SplitWriter(TemplatePackage template, CompiledTemplate body, CompiledTemplate fileName,
+            File target, int threads, int level, ImageCache images) throws IOException {
+        Preconditions.checkArgument(threads > 0, "Need at least one thread, but had %s", threads);
+
+        this.template = template;
+        this.body = body;
+        this.fileName = fileName;
+        this.level = level;
+        this.images = images;
+
+        if (FilenameUtils.getExtension(target.getName()).equalsIgnoreCase("zip")) {
+            this.target = null;
+            this.bundle = new ZipOutputStream(new FileOutputStream(target));
+        } else {
+            if (!target.isDirectory() && !target.mkdirs()) {
+                throw new IOException("Could not create output directory " + target);
+            }
+            this.target = target;
+            this.bundle = null;
+        }
+
+        this.maxInFlight = threads * 4;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().
+                setNameFormat("MailMerge-split-%d").
+                setDaemon(true).
+                build());
+    }
+
+    /**
+     * Render a document for each of the given rows.
+     *
+     * @param rows The rows to render, the row-instances may be re-used by the iterator
+     * @throws IOException If writing fails
+     */
+    void write(Iterable<List<String>> rows) throws IOException {
+        for (List<String> row : rows) {
+            // rows may be re-used by the source, so the values are copied here
+            List<String> values = new ArrayList<>(row);
+            String name = uniqueName(values);
+
+            inFlight.add(executor.submit(() -> render(name, values)));
+            if (inFlight.size() >= maxInFlight) {
+                finish(inFlight.removeFirst());
+            }
+        }
+
+        while (!inFlight.isEmpty()) {
+            finish(inFlight.removeFirst());
+        }
+
+        log.info("Wrote " + count + " documents");
+    }
+
+    private String uniqueName(List<String> values) {
+        // replace characters which are not allowed in file-names on common platforms
+        String name = fileName.render(values).replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_").trim();
+        if (StringUtils.isBlank(FilenameUtils.getBaseName(name))) {
+            name = "Document-" + (count + inFlight.size() + 1);
+        }
+        if (!FilenameUtils.getExtension(name).equalsIgnoreCase("docx")) {
+            name += ".docx";
+        }
+
+        String unique = name;
+        for (int nr = 2; !usedNames.add(unique.toLowerCase(Locale.ROOT)); nr++) {
+            unique = FilenameUtils.getBaseName(name) + "-" + nr + ".docx";
+        }
+        return unique;
+    }
+
+    private Document render(String name, List<String> values) throws IOException {
+        if (bundle == null) {
+            try (OutputStream out = new FileOutputStream(new File(target, name))) {
+                writeDocument(values, out);
+            }
+            return new Document(name, null);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(template.getBytes().length + body.getLength());
+        writeDocument(values, out);
+        return new Document(name, out.toByteArray());
+    }
+
+    private void writeDocument(List<String> values, OutputStream out) throws IOException {
+        MediaParts media = body.hasImages() ? new MediaParts(images) : null;
+
+        // documents are written in parallel already, so each one is compressed on one thread
+        try (StreamingDocxWriter writer = new StreamingDocxWriter(template, out, level, 1, media)) {
+            StringBuilder buffer = new StringBuilder(body.getLength() * 2);
+            (media == null ? body : body.withMedia(media)).render(values, buffer);
+            writer.write(buffer);
+        }
+    }
+
+    private void finish(Future<Document> future) throws IOException {
+        final Document document;
+        try {
+            document = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for writing documents");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IOException("Writing document failed", e.getCause());
+        }
+
+        // the zip-file is written on the calling thread in the order of the rows
+        if (bundle != null) {
+            // documents are compressed already, so they are only stored
+            CRC32 crc = new CRC32();
+            crc.update(document.bytes);
+
+            ZipEntry entry = new ZipEntry(document.name);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(document.bytes.length);
+            entry.setCrc(crc.getValue());
+
+            bundle.putNextEntry(entry);
+            bundle.write(document.bytes);
+            bundle.closeEntry();
+        } else {
+            bytesWritten += new File(target, document.name).length();
+        }
+
+        count++;
+    }
+
+    /**
+     * @return The size of the documents which were written to the directory, 0 when writing a zip-file
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        if (bundle != null) {
+            bundle.close();
+        }
+    }
+
+    private record Document(String name, byte[] bytes) {
+    }
+}
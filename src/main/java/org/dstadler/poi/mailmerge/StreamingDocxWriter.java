@@ -0,0 +1,218 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.CountingOutputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Writes a merged Microsoft Word document as a stream: all parts of the
+ * template are copied unchanged, the main document is written as
+ * prefix, the rendered body-content for each row and the suffix.
+ *
+ * Only the fragment which is currently written needs to be held in
+ * memory, so the memory usage does not grow with the number of rows.
+ *
+ * The compression-level can be chosen, e.g. {@link Deflater#NO_COMPRESSION}
+ * for intermediate files or {@link Deflater#BEST_SPEED}. With more than
+ * one thread, the main document is compressed in blocks on multiple threads,
+ * see {@link ParallelDeflateOutputStream}, the result is still a standard
+ * zip-file.
+ *
+ * Pictures for image-markers are added as media-parts when the document is
+ * finished, see {@link MediaParts}.
+ */
+public class StreamingDocxWriter implements Closeable {
+    private final TemplatePackage template;
+
+    // either the zip-stream or the segments which are compressed in parallel are used
+    private final ZipOutputStream zip;
+    private final SegmentedDocxWriter segments;
+    private final ParallelDeflateOutputStream deflate;
+
+    private final CountingOutputStream documentBytes;
+    private final Writer writer;
+
+    private final char[] chars = new char[8192];
+
+    // the pictures of the document and the parts of the template which list them, null if there are no pictures
+    private final MediaParts media;
+    private String relationships;
+    private String contentTypes;
+
+    /**
+     * Copy all parts of the template except the main document to the
+     * output and start writing the main document.
+     *
+     * @param template The template which provides the parts of the package
+     * @param out The stream to write the resulting .docx to, it is closed when this writer is closed
+     * @throws IOException If writing fails
+     */
+    public StreamingDocxWriter(TemplatePackage template, OutputStream out) throws IOException {
+        this(template, out, Deflater.DEFAULT_COMPRESSION, 1);
+    }
+
+    /**
+     * Copy all parts of the template except the main document to the
+     * output and start writing the main document.
+     *
+     * @param template The template which provides the parts of the package
+     * @param out The stream to write the resulting .docx to, it is closed when this writer is closed
+     * @param level The compression-level, from {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION}
+     *      or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param threads The number of threads for compressing the main document, 1 to compress it on the calling thread
+     * @throws IOException If writing fails
+     */
+    public StreamingDocxWriter(TemplatePackage template, OutputStream out, int level, int threads) throws IOException {
+        this(template, out, level, threads, null);
+    }
+
+    /**
+     * Copy all parts of the template except the main document to the
+     * output and start writing the main document.
+     *
+     * @param template The template which provides the parts of the package
+     * @param out The stream to write the resulting .docx to, it is closed when this writer is closed
+     * @param level The compression-level, see {@link #StreamingDocxWriter(TemplatePackage, OutputStream, int, int)}
+     * @param threads The number of threads for compressing the main document, 1 to compress it on the calling thread
+     * @param media The pictures which are rendered into the written fragments, null if there are none
+     * @throws IOException If writing fails
+     */
+    StreamingDocxWriter(TemplatePackage template, OutputStream out, int level, int threads, MediaParts media) throws IOException {
+        Preconditions.checkArgument(level == Deflater.DEFAULT_COMPRESSION ||
+                (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION),
+                "Invalid compression-level %s", level);
+        Preconditions.checkArgument(threads > 0, "Need at least one thread, but had %s", threads);
+
+        this.template = template;
+        this.media = media;
+        if (threads > 1) {
+            this.zip = null;
+            this.segments = new SegmentedDocxWriter(template, out, level, media);
+            this.deflate = new ParallelDeflateOutputStream(segments, level, threads, ParallelDeflateOutputStream.BLOCK_SIZE);
+            this.documentBytes = new CountingOutputStream(deflate);
+        } else {
+            this.zip = new ZipOutputStream(out);
+            this.segments = null;
+            this.deflate = null;
+            zip.setLevel(level);
+            copyParts();
+
+            zip.putNextEntry(new ZipEntry(template.getDocumentEntry()));
+            this.documentBytes = new CountingOutputStream(zip);
+        }
+
+        writer = new BufferedWriter(new OutputStreamWriter(documentBytes, StandardCharsets.UTF_8));
+        writer.write(template.getPrefix());
+    }
+
+    private void copyParts() throws IOException {
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(template.getBytes()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (entry.getName().equals(template.getDocumentEntry())) {
+                    continue;
+                }
+
+                // these parts are extended with the pictures when the document is finished
+                if (media != null && entry.getName().equals(MediaParts.relationshipsEntry(template.getDocumentEntry()))) {
+                    relationships = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    continue;
+                }
+                if (media != null && entry.getName().equals("[Content_Types].xml")) {
+                    contentTypes = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    continue;
+                }
+
+                zip.putNextEntry(new ZipEntry(entry.getName()));
+                IOUtils.copy(in, zip);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Append the rendered body-content of one row.
+     *
+     * @param fragment The XML-content which is added to the body
+     * @throws IOException If writing fails
+     */
+    public void write(CharSequence fragment) throws IOException {
+        if (fragment instanceof String string) {
+            writer.write(string);
+            return;
+        }
+
+        // copy in chunks to not create a String-copy of large buffers
+        int length = fragment.length();
+        if (fragment instanceof StringBuilder builder) {
+            for (int pos = 0; pos < length; pos += chars.length) {
+                int end = Math.min(length, pos + chars.length);
+                builder.getChars(pos, end, chars, 0);
+                writer.write(chars, 0, end - pos);
+            }
+        } else {
+            writer.append(fragment);
+        }
+    }
+
+    /**
+     * @return The number of uncompressed bytes of the main document which were written so far
+     * @throws IOException If writing buffered content fails
+     */
+    public long getDocumentBytes() throws IOException {
+        writer.flush();
+        return documentBytes.getCount();
+    }
+
+    /**
+     * Finish the main document and the zip-package and close the
+     * underlying stream.
+     *
+     * The document is finished also when writing the rows failed, so it should be
+     * written to a temporary file which only replaces the result on success.
+     *
+     * @throws IOException If writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.write(template.getSuffix());
+            writer.flush();
+            if (zip != null) {
+                zip.closeEntry();
+                if (media != null) {
+                    media.writeParts(template.getDocumentEntry(), relationships, contentTypes, (name, data) -> {
+                        zip.putNextEntry(new ZipEntry(name));
+                        zip.write(data);
+                        zip.closeEntry();
+                    });
+                }
+            } else {
+                deflate.close();
+            }
+        } finally {
+            if (zip != null) {
+                zip.close();
+            } else {
+                try {
+                    deflate.close();
+                } finally {
+                    segments.close();
+                }
+            }
+        }
+    }
+}
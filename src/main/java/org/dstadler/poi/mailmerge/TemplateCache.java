@@ -0,0 +1,104 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * Keeps the most recently used templates, so that merging the same
+ * template repeatedly does not parse it again.
+ *
+ * Templates are identified by their path and a hash of their content,
+ * so a template-file which is changed is loaded again.
+ */
+class TemplateCache {
+    private static final Logger log = LoggerFactory.make();
+
+    private final Map<Key, TemplatePackage> templates;
+
+    private int hits;
+    private int misses;
+
+    /**
+     * @param maxSize The number of templates to keep at most
+     */
+    TemplateCache(int maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "Need to keep at least one template, but had %s", maxSize);
+
+        // access-order, so the eldest entry is the least recently used one
+        this.templates = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, TemplatePackage> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Return the parsed template, it is only parsed if it is not cached yet
+     * or if the content of the file changed.
+     *
+     * @param wordTemplate The .docx file to read
+     * @return The parts of the template
+     * @throws IOException If the file cannot be read or is not a valid .docx file
+     */
+    TemplatePackage get(File wordTemplate) throws IOException {
+        byte[] bytes = Files.readAllBytes(wordTemplate.toPath());
+        Key key = new Key(wordTemplate.getCanonicalPath(), Hashing.sha256().hashBytes(bytes));
+
+        synchronized (templates) {
+            TemplatePackage template = templates.get(key);
+            if (template != null) {
+                hits++;
+                return template;
+            }
+            misses++;
+        }
+
+        // parse outside the lock, loading the same template concurrently only does some duplicate work
+        log.info("Loading template " + wordTemplate);
+        TemplatePackage template = TemplatePackage.load(bytes);
+        synchronized (templates) {
+            templates.put(key, template);
+        }
+        return template;
+    }
+
+    /**
+     * @return The number of templates which are currently cached
+     */
+    int size() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+    /**
+     * @return How often a template was found in the cache
+     */
+    int getHits() {
+        synchronized (templates) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return How often a template needed to be loaded
+     */
+    int getMisses() {
+        synchronized (templates) {
+            return misses;
+        }
+    }
+
+    private record Key(String path, HashCode hash) {
+    }
+}
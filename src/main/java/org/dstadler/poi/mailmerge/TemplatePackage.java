@@ -0,0 +1,180 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+
+/**
+ * The raw parts of a Microsoft Word template: the bytes of the
+ * zip-package and the XML of the main document split into the
+ * part before the body-content, the body-content itself and
+ * the part after it.
+ *
+ * This allows to produce the merged document by copying all other
+ * parts and writing the repeated body-content as a stream, without
+ * holding an XML object-model of the resulting document.
+ */
+public class TemplatePackage {
+    // matches the start-tag of the body-element with any namespace-prefix
+    private static final Pattern BODY_START = Pattern.compile("<(\\w+:)?body(\\s[^>]*)?>");
+
+    private final byte[] bytes;
+    private final String documentEntry;
+    private final String prefix;
+    private final String body;
+    private final String suffix;
+
+    // the body compiled for the headers which were used last, templates are usually merged with similar data-files
+    private volatile CompiledBody compiled;
+
+    // the names of the markers in the body, found when they are first needed
+    private volatile Set<String> markers;
+
+    private TemplatePackage(byte[] bytes, String documentEntry, String prefix, String body, String suffix) {
+        this.bytes = bytes;
+        this.documentEntry = documentEntry;
+        this.prefix = prefix;
+        this.body = body;
+        this.suffix = suffix;
+    }
+
+    /**
+     * Read the given Microsoft Word template.
+     *
+     * @param wordTemplate The .docx file to read
+     * @return The parts of the template
+     * @throws IOException If the file cannot be read or is not a valid .docx file
+     */
+    public static TemplatePackage load(File wordTemplate) throws IOException {
+        return load(Files.readAllBytes(wordTemplate.toPath()));
+    }
+
+    /**
+     * Parse the given bytes of a Microsoft Word template.
+     *
+     * @param bytes The content of a .docx file
+     * @return The parts of the template
+     * @throws IOException If the bytes are not a valid .docx file
+     */
+    public static TemplatePackage load(byte[] bytes) throws IOException {
+        final String entry;
+        final String xml;
+        try {
+            OPCPackage pkg = OPCPackage.open(new ByteArrayInputStream(bytes));
+            try {
+                List<PackagePart> parts = pkg.getPartsByRelationshipType(PackageRelationshipTypes.CORE_DOCUMENT);
+                if (parts.isEmpty()) {
+                    throw new IOException("Could not find the main document part in the template");
+                }
+
+                PackagePart part = parts.get(0);
+                entry = part.getPartName().getName().substring(1);
+                try (InputStream stream = part.getInputStream()) {
+                    xml = IOUtils.toString(stream, StandardCharsets.UTF_8);
+                }
+            } finally {
+                // never write back any changes
+                pkg.revert();
+            }
+        } catch (InvalidFormatException e) {
+            throw new IOException("Could not read the template as Microsoft Word document", e);
+        }
+
+        Matcher matcher = BODY_START.matcher(xml);
+        if (!matcher.find()) {
+            throw new IOException("Could not find the body-element in part " + entry + " of the template");
+        }
+
+        String endTag = "</" + (matcher.group(1) == null ? "" : matcher.group(1)) + "body>";
+        int end = xml.lastIndexOf(endTag);
+        if (end < matcher.end()) {
+            throw new IOException("Could not find the end of the body-element in part " + entry + " of the template");
+        }
+
+        return new TemplatePackage(bytes, entry,
+                xml.substring(0, matcher.end()), xml.substring(matcher.end(), end), xml.substring(end));
+    }
+
+    /**
+     * @return The bytes of the template-file
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The name of the zip-entry which holds the main document, usually "word/document.xml"
+     */
+    public String getDocumentEntry() {
+        return documentEntry;
+    }
+
+    /**
+     * @return The XML of the main document up to and including the start-tag of the body
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return The XML-content of the body which is repeated for each row
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @return The XML of the main document starting with the end-tag of the body
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Compile the body for the given headers, the result is kept and
+     * re-used as long as the template is merged with the same headers.
+     *
+     * @param headers The header-names as read from the data-file
+     * @return The compiled body of the template
+     */
+    public CompiledTemplate compile(List<String> headers) {
+        CompiledBody current = compiled;
+        if (current != null && current.headers().equals(headers)) {
+            return current.template();
+        }
+
+        CompiledTemplate template = CompiledTemplate.compile(body, headers);
+        compiled = new CompiledBody(new ArrayList<>(headers), template);
+        return template;
+    }
+
+    /**
+     * @return The names of the template-markers used in the body, see {@link CompiledTemplate#findMarkers(String)}
+     */
+    public Set<String> getMarkers() {
+        Set<String> current = markers;
+        if (current == null) {
+            current = Collections.unmodifiableSet(CompiledTemplate.findMarkers(body));
+            markers = current;
+        }
+        return current;
+    }
+
+    private record CompiledBody(List<String> headers, CompiledTemplate template) {
+    }
+}
@@ -0,0 +1,414 @@
+package org.dstadler.poi.mailmerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.format.CellFormat;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.LocaleUtil;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the rows of one sheet of a XLSX file by parsing the
+ * XML of the sheet as a stream of events instead of building the
+ * object-model of the whole workbook.
+ *
+ * The cells are converted to the same text as {@link ExcelRowSource}
+ * does, i.e. numeric cells are formatted via {@link CellFormat} and
+ * for formula cells the formula is returned.
+ */
+final class XlsxRowSource extends RowSource {
+    private static final Logger log = LoggerFactory.make();
+
+    private static final XMLInputFactory XML_FACTORY = XMLHelper.newXMLInputFactory();
+
+    private final OPCPackage pkg;
+    private final ReadOnlySharedStringsTable strings;
+    private final StylesTable styles;
+    private final boolean date1904;
+
+    // the number-format for each cell-style, indexed by the style-index, filled when the style is first used
+    private final NumberFormat[] formats;
+
+    private final InputStream sheetStream;
+    private final XMLStreamReader xml;
+
+    private final int start;
+
+    // the current row, remembered to support rows without "r" attribute
+    private int rowNum = -1;
+
+    // the state of the cell which is currently parsed
+    private int cellColumn;
+    private int cellStyle;
+    private String cellType;
+    private String cellValue;
+    private String cellFormula;
+    private String cellInlineString;
+
+    XlsxRowSource(File excelFile) throws IOException {
+        this(excelFile, null);
+    }
+
+    /**
+     * @param excelFile The file to read
+     * @param sheetName The name of the sheet to read, null for the first sheet
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If there is no such sheet or it does not have a header-row
+     */
+    XlsxRowSource(File excelFile, String sheetName) throws IOException {
+        pkg = openPackage(excelFile);
+        try {
+            XSSFReader reader = new XSSFReader(pkg);
+            strings = new ReadOnlySharedStringsTable(pkg);
+            styles = reader.getStylesTable();
+            formats = new NumberFormat[styles == null ? 0 : styles.getNumCellStyles()];
+
+            try (InputStream workbook = reader.getWorkbookData()) {
+                date1904 = isDate1904(workbook);
+            }
+
+            sheetStream = openSheet(reader, sheetName, excelFile);
+            xml = XML_FACTORY.createXMLStreamReader(sheetStream);
+
+            // read headers, they need to be located in the first row
+            List<String> headerCells = new ArrayList<>();
+            int first = readHeaderRow(headerCells);
+            if (first < 0) {
+                throw new IllegalArgumentException("Provided Microsoft Excel file " + excelFile + " does not have data in the first row in the " +
+                        (sheetName == null ? "first sheet" : "sheet '" + sheetName + "'") + ", but we expect the header data to be located there");
+            }
+
+            start = first;
+            for (int cellNum = start; cellNum < start + headerCells.size(); cellNum++) {
+                String value = headerCells.get(cellNum - start);
+                headers.add(value);
+                if (value == null) {
+                    log.info("Had empty header for column " + CellReference.convertNumToColString(cellNum));
+                } else {
+                    log.info("Had header '" + value + "' for column " + CellReference.convertNumToColString(cellNum));
+                }
+            }
+        } catch (OpenXML4JException | SAXException | XMLStreamException e) {
+            pkg.revert();
+            throw new IOException("Could not read Microsoft Excel file " + excelFile, e);
+        } catch (IOException | RuntimeException e) {
+            pkg.revert();
+            throw e;
+        }
+    }
+
+    private static InputStream openSheet(XSSFReader reader, String sheetName, File excelFile) throws IOException, InvalidFormatException {
+        XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+        while (sheets.hasNext()) {
+            InputStream stream = sheets.next();
+            if (sheetName == null || sheetName.equals(sheets.getSheetName())) {
+                return stream;
+            }
+            stream.close();
+        }
+
+        throw new IllegalArgumentException(sheetName == null ?
+                "Provided Microsoft Excel file " + excelFile + " does not have any sheet" :
+                "Provided Microsoft Excel file " + excelFile + " does not have a sheet '" + sheetName + "'");
+    }
+
+    private static OPCPackage openPackage(File excelFile) throws IOException {
+        try {
+            return OPCPackage.open(excelFile, PackageAccess.READ);
+        } catch (InvalidFormatException e) {
+            throw new IOException("Could not open Microsoft Excel file " + excelFile, e);
+        }
+    }
+
+    private static boolean isDate1904(InputStream workbook) throws XMLStreamException {
+        XMLStreamReader reader = XML_FACTORY.createXMLStreamReader(workbook);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("workbookPr".equals(name)) {
+                        String value = reader.getAttributeValue(null, "date1904");
+                        return "1".equals(value) || "true".equals(value);
+                    } else if ("sheets".equals(name)) {
+                        // workbookPr is located before the list of sheets
+                        return false;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the first row of the sheet into the given list, starting at the
+     * first cell, with null for missing cells and one additional null-entry
+     * at the end, in the same way as iterating the cells of the first row
+     * via the usermodel does.
+     *
+     * @return The index of the first column or -1 if the sheet does not have a first row
+     */
+    private int readHeaderRow(List<String> headerCells) throws XMLStreamException {
+        if (!nextRow() || rowNum != 0) {
+            return -1;
+        }
+
+        int first = -1;
+        while (nextCell()) {
+            if (first < 0) {
+                first = cellColumn;
+            }
+            while (headerCells.size() < cellColumn - first) {
+                headerCells.add(null);
+            }
+            headerCells.add(headerValue());
+        }
+
+        if (first >= 0) {
+            headerCells.add(null);
+        }
+        return first;
+    }
+
+    @Override
+    boolean readRow(String[] values) throws IOException {
+        try {
+            if (!nextRow()) {
+                return false;
+            }
+
+            Arrays.fill(values, null);
+            while (nextCell()) {
+                int pos = cellColumn - start;
+                if (pos >= 0 && pos < values.length && isRead(pos)) {
+                    values[pos] = cellValue();
+                }
+            }
+
+            return true;
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not read the sheet", e);
+        }
+    }
+
+    /**
+     * Move to the start of the next row-element.
+     */
+    private boolean nextRow() throws XMLStreamException {
+        while (xml.hasNext()) {
+            if (xml.next() == XMLStreamConstants.START_ELEMENT && "row".equals(xml.getLocalName())) {
+                String ref = xml.getAttributeValue(null, "r");
+                rowNum = ref == null ? rowNum + 1 : Integer.parseInt(ref) - 1;
+                cellColumn = -1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the next cell-element of the current row, returns false
+     * when the end of the row is reached.
+     */
+    private boolean nextCell() throws XMLStreamException {
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.END_ELEMENT && "row".equals(xml.getLocalName())) {
+                return false;
+            }
+
+            if (event == XMLStreamConstants.START_ELEMENT && "c".equals(xml.getLocalName())) {
+                String ref = xml.getAttributeValue(null, "r");
+                cellColumn = ref == null ? cellColumn + 1 : parseColumn(ref);
+
+                String style = xml.getAttributeValue(null, "s");
+                cellStyle = style == null ? 0 : Integer.parseInt(style);
+                cellType = xml.getAttributeValue(null, "t");
+                cellValue = null;
+                cellFormula = null;
+                cellInlineString = null;
+
+                readCellContent();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void readCellContent() throws XMLStreamException {
+        StringBuilder inline = null;
+        int phonetic = 0;
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (xml.getLocalName()) {
+                    case "v" -> cellValue = xml.getElementText();
+                    case "f" -> cellFormula = xml.getElementText();
+                    case "is" -> inline = new StringBuilder();
+                    case "rPh" -> phonetic++;
+                    case "t" -> {
+                        String text = xml.getElementText();
+                        if (inline != null && phonetic == 0) {
+                            inline.append(text);
+                        }
+                    }
+                    default -> {
+                        // ignore other elements, e.g. extensions
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                String name = xml.getLocalName();
+                if ("rPh".equals(name)) {
+                    phonetic--;
+                } else if ("c".equals(name)) {
+                    break;
+                }
+            }
+        }
+
+        if (inline != null) {
+            cellInlineString = inline.toString();
+        }
+    }
+
+    private static int parseColumn(String ref) {
+        int column = 0;
+        for (int i = 0; i < ref.length(); i++) {
+            char c = ref.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                break;
+            }
+            column = column * 26 + (c - 'A' + 1);
+        }
+        return column - 1;
+    }
+
+    /**
+     * Convert the current cell in the same way as Cell.toString() does.
+     */
+    private String headerValue() {
+        if (isNumeric()) {
+            double value = Double.parseDouble(cellValue);
+            XSSFCellStyle style = getStyle();
+            if (style != null && DateUtil.isADateFormat(style.getDataFormat(), style.getDataFormatString()) &&
+                    DateUtil.isValidExcelDate(value)) {
+                DateFormat sdf = new SimpleDateFormat("dd-MMM-yyyy", LocaleUtil.getUserLocale());
+                sdf.setTimeZone(LocaleUtil.getUserTimeZone());
+                return sdf.format(DateUtil.getJavaDate(value, date1904));
+            }
+            return Double.toString(value);
+        }
+
+        return textValue();
+    }
+
+    /**
+     * Convert the current cell to text, numeric cells are formatted
+     * with the format of the cell-style.
+     */
+    private String cellValue() {
+        if (isNumeric()) {
+            double value = Double.parseDouble(cellValue);
+            NumberFormat format = getNumberFormat();
+            if (format.date() && DateUtil.isValidExcelDate(value)) {
+                return format.format().apply(DateUtil.getJavaDate(value, date1904)).text;
+            }
+            return format.format().apply(value).text;
+        }
+
+        return textValue();
+    }
+
+    private boolean isNumeric() {
+        return cellFormula == null && cellValue != null && (cellType == null || "n".equals(cellType));
+    }
+
+    private String textValue() {
+        // Cell.toString() returns the formula for formula-cells, shared formulas
+        // are only stored with the first cell, so we fall back to the cached value here
+        if (cellFormula != null && !cellFormula.isEmpty()) {
+            return cellFormula;
+        }
+
+        if (cellType == null) {
+            return cellValue == null ? "" : cellValue;
+        }
+
+        return switch (cellType) {
+            case "s" -> cellValue == null ? "" : strings.getItemAt(Integer.parseInt(cellValue)).getString();
+            case "inlineStr" -> cellInlineString == null ? "" : cellInlineString;
+            case "b" -> "1".equals(cellValue) || "true".equals(cellValue) ? "TRUE" : "FALSE";
+            default -> cellValue == null ? "" : cellValue;
+        };
+    }
+
+    private NumberFormat getNumberFormat() {
+        if (cellStyle >= formats.length) {
+            // the style is missing in the workbook
+            return new NumberFormat(CellFormat.getInstance("General"), false);
+        }
+
+        NumberFormat format = cacheFormats ? formats[cellStyle] : null;
+        if (format == null) {
+            XSSFCellStyle style = styles.getStyleAt(cellStyle);
+            String formatString = style.getDataFormatString();
+            format = new NumberFormat(CellFormat.getInstance(formatString),
+                    DateUtil.isADateFormat(style.getDataFormat(), formatString));
+            formats[cellStyle] = format;
+        }
+        return format;
+    }
+
+    private XSSFCellStyle getStyle() {
+        if (styles == null || cellStyle >= styles.getNumCellStyles()) {
+            return null;
+        }
+        return styles.getStyleAt(cellStyle);
+    }
+
+    /**
+     * The formatter for numeric cells of one cell-style.
+     */
+    private record NumberFormat(CellFormat format, boolean date) {
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            try {
+                sheetStream.close();
+            } finally {
+                pkg.revert();
+            }
+        }
+    }
+}
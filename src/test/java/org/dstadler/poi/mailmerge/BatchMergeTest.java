@@ -0,0 +1,105 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BatchMergeTest {
+    private static final File DIR = new File("build/BatchMerge");
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileUtils.deleteDirectory(DIR);
+        assertTrue(DIR.mkdirs());
+    }
+
+    @Test
+    void testRun() throws IOException {
+        File manifest = writeManifest("""
+                template,data,output
+                # the same data-file is merged twice
+                ../../samples/Template.docx,../../samples/Lines.csv,Result1.docx
+                ../../samples/Template.docx,../../samples/Lines.csv,Result2.docx
+                ../../samples/Template.docx,../../samples/Lines.xlsx,Result3.docx
+                ../../samples/Template.docx,Missing.csv,Result4.docx
+                """);
+
+        AtomicInteger reads = new AtomicInteger();
+        List<BatchMerge.JobResult> results = new BatchMerge(2, () -> new MailMerge() {
+            @Override
+            Data readData(File dataFile) throws IOException {
+                reads.incrementAndGet();
+                return super.readData(dataFile);
+            }
+        }).run(BatchMerge.readManifest(manifest));
+
+        assertEquals(4, results.size());
+        for (int i = 0; i < 3; i++) {
+            BatchMerge.JobResult result = results.get(i);
+            assertTrue(result.isSuccess(), "Had: " + result.failure());
+            assertNotNull(result.statistics());
+            assertTrue(result.statistics().getRows() > 0);
+            assertTrue(new File(DIR, "Result" + (i + 1) + ".docx").exists());
+        }
+
+        // the shared data is merged like the streamed one, the empty line is skipped
+        assertEquals(4, results.get(0).statistics().getRows());
+        assertEquals(4, results.get(1).statistics().getRows());
+
+        // the failure of one job does not stop the others
+        BatchMerge.JobResult failed = results.get(3);
+        assertFalse(failed.isSuccess());
+        assertNull(failed.statistics());
+        assertEquals(new File(DIR, "Missing.csv").getAbsoluteFile(), failed.job().data());
+
+        // only the data-file which is used twice is read into memory
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    void testSharedDataFails() throws IOException {
+        File manifest = writeManifest("""
+                template,data,output
+                ../../samples/Template.docx,Missing.csv,Result1.docx
+                ../../samples/Template.docx,Missing.csv,Result2.docx
+                """);
+
+        List<BatchMerge.JobResult> results = new BatchMerge(1).run(BatchMerge.readManifest(manifest));
+        assertFalse(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+    }
+
+    @Test
+    void testInvalidManifest() throws IOException {
+        File missingColumn = writeManifest("template,data\na.docx,b.csv\n");
+        assertThrows(IllegalArgumentException.class, () -> BatchMerge.readManifest(missingColumn));
+
+        File emptyValue = writeManifest("template,data,output\na.docx,,c.docx\n");
+        assertThrows(IllegalArgumentException.class, () -> BatchMerge.readManifest(emptyValue));
+    }
+
+    @Test
+    void testInvalidThreads() {
+        assertThrows(IllegalArgumentException.class, () -> new BatchMerge(0));
+        assertTrue(BatchMerge.defaultThreads() >= 1);
+    }
+
+    private static File writeManifest(String content) throws IOException {
+        File manifest = new File(DIR, "manifest.csv");
+        FileUtils.writeStringToFile(manifest, content, StandardCharsets.UTF_8);
+        return manifest;
+    }
+}
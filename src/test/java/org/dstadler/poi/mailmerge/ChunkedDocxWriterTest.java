@@ -0,0 +1,80 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ChunkedDocxWriterTest {
+    private static final File DIR = new File("build/chunked");
+
+    private TemplatePackage template;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileUtils.deleteDirectory(DIR);
+        assertTrue(DIR.mkdirs());
+
+        template = TemplatePackage.load(new File("samples/Template.docx"));
+    }
+
+    @Test
+    void testRolloverRows() throws IOException {
+        ChunkedDocxWriter writer = new ChunkedDocxWriter(template, new File(DIR, "Result.docx"), 2, 0, Deflater.DEFAULT_COMPRESSION, 1, null);
+        try (writer) {
+            for (int i = 0; i < 5; i++) {
+                writer.accept("<w:p><w:r><w:t>Row " + i + "</w:t></w:r></w:p>");
+            }
+        }
+
+        List<File> files = writer.getFiles();
+        assertEquals(3, files.size());
+        assertEquals("Result-0001.docx", files.get(0).getName());
+        assertEquals("Result-0003.docx", files.get(2).getName());
+
+        assertEquals(2, countParagraphs(files.get(0)));
+        assertEquals(2, countParagraphs(files.get(1)));
+        assertEquals(1, countParagraphs(files.get(2)));
+    }
+
+    @Test
+    void testRolloverBytes() throws IOException {
+        ChunkedDocxWriter writer = new ChunkedDocxWriter(template, new File(DIR, "Result"), 0, 1, Deflater.DEFAULT_COMPRESSION, 1, null);
+        try (writer) {
+            for (int i = 0; i < 3; i++) {
+                writer.accept("<w:p><w:r><w:t>Row " + i + "</w:t></w:r></w:p>");
+            }
+        }
+
+        // each document is above the limit after the first row
+        List<File> files = writer.getFiles();
+        assertEquals(3, files.size());
+        assertEquals("Result-0002.docx", files.get(1).getName());
+    }
+
+    @Test
+    void testNoRows() throws IOException {
+        ChunkedDocxWriter writer = new ChunkedDocxWriter(template, new File(DIR, "Result.docx"), 2, 0, Deflater.DEFAULT_COMPRESSION, 1, null);
+        writer.close();
+
+        assertEquals(1, writer.getFiles().size());
+        assertEquals(0, countParagraphs(writer.getFiles().get(0)));
+    }
+
+    private static int countParagraphs(File file) throws IOException {
+        try (InputStream stream = new FileInputStream(file);
+             XWPFDocument doc = new XWPFDocument(stream)) {
+            return doc.getParagraphs().size();
+        }
+    }
+}
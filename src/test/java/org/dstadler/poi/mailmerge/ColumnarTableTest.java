@@ -0,0 +1,81 @@
+package org.dstadler.poi.mailmerge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ColumnarTableTest {
+    @Test
+    void testEmpty() {
+        ColumnarTable table = new ColumnarTable(3);
+        Assertions.assertEquals(0, table.size());
+        Assertions.assertTrue(table.isEmpty());
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> table.get(0));
+
+        table.trim();
+        Assertions.assertEquals(0, table.size());
+    }
+
+    @Test
+    void testValues() {
+        ColumnarTable table = new ColumnarTable(3);
+        List<String> row = new ArrayList<>(Arrays.asList("a", "b", "c"));
+        table.add(row);
+
+        // the row can be re-used after adding it
+        row.set(0, "d");
+        row.set(2, null);
+        table.add(row);
+
+        // short rows are filled with null, additional values are ignored
+        table.add(List.of("x"));
+        table.add(List.of("a", "b", "c", "z"));
+        table.trim();
+
+        Assertions.assertEquals(4, table.size());
+        Assertions.assertEquals("[a, b, c]", table.get(0).toString());
+        Assertions.assertEquals("[d, b, null]", table.get(1).toString());
+        Assertions.assertEquals("[x, null, null]", table.get(2).toString());
+        Assertions.assertEquals(List.of("a", "b", "c"), table.get(3));
+        Assertions.assertEquals(table.get(0), table.get(3));
+
+        // null, a, d, x
+        Assertions.assertEquals(4, table.getDistinctValues(0));
+        Assertions.assertEquals(2, table.getDistinctValues(1));
+        Assertions.assertEquals(2, table.getDistinctValues(2));
+    }
+
+    @Test
+    void testReadOnly() {
+        ColumnarTable table = new ColumnarTable(1);
+        table.add(List.of("a"));
+
+        List<String> row = table.get(0);
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> row.set(0, "b"));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> table.remove(0));
+    }
+
+    @Test
+    void testManyDistinctValues() {
+        ColumnarTable table = new ColumnarTable(2);
+        List<List<String>> expected = new ArrayList<>();
+        for (int i = 0; i < 70_000; i++) {
+            List<String> row = Arrays.asList(Integer.toString(i), i % 2 == 0 ? "even" : "odd");
+            table.add(row);
+            expected.add(row);
+
+            // add some rows after trimming to re-build the dictionary
+            if (i == 40_000) {
+                table.trim();
+            }
+        }
+        table.trim();
+
+        Assertions.assertEquals(expected, table);
+        Assertions.assertEquals(70_001, table.getDistinctValues(0));
+        Assertions.assertEquals(3, table.getDistinctValues(1));
+    }
+}
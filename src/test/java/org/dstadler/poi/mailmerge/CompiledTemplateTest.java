@@ -0,0 +1,118 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class CompiledTemplateTest {
+    private static final List<String> HEADERS = Arrays.asList("Name", null, "City", "Name");
+
+    @Test
+    void testRender() {
+        CompiledTemplate template = CompiledTemplate.compile("<p>${Name} lives in ${City}, ${Name}</p>", HEADERS);
+
+        assertEquals(3, template.getSlotCount());
+        assertEquals("<p> lives in , </p>".length(), template.getLength());
+        assertEquals("<p>Joe lives in Graz, Joe</p>",
+                template.render(Arrays.asList("Joe", "ignored", "Graz", "other")));
+    }
+
+    @Test
+    void testRenderEscapesAndNull() {
+        CompiledTemplate template = CompiledTemplate.compile("${Name}|${City}", HEADERS);
+
+        assertEquals("a&lt;b&amp;c|", template.render(Arrays.asList("a<b&c", null, null, null)));
+    }
+
+    @Test
+    void testRenderShortRow() {
+        CompiledTemplate template = CompiledTemplate.compile("${Name}|${City}", HEADERS);
+
+        assertEquals("Joe|", template.render(Collections.singletonList("Joe")));
+    }
+
+    @Test
+    void testUnknownAndIncompleteMarkers() {
+        CompiledTemplate template = CompiledTemplate.compile("${Other} ${${City}} ${Name", HEADERS);
+
+        assertEquals(1, template.getSlotCount());
+        assertEquals("${Other} ${${City}} ${Name", template.getUnresolved());
+        assertEquals("${Other} ${Graz} ${Name", template.render(Arrays.asList("Joe", null, "Graz", null)));
+    }
+
+    @Test
+    void testSplitMarker() {
+        CompiledTemplate template = CompiledTemplate.compile(
+                "<w:p><w:r><w:t>${Na</w:t></w:r><w:r><w:t>me}</w:t></w:r></w:p>", HEADERS);
+
+        assertEquals(1, template.getSlotCount());
+        assertNull(template.getUnresolved());
+        assertEquals("<w:p><w:r><w:t>Joe</w:t></w:r><w:r><w:t></w:t></w:r></w:p>",
+                template.render(Collections.singletonList("Joe")));
+    }
+
+    @Test
+    void testPlainTextIsNotNormalized() {
+        CompiledTemplate template = CompiledTemplate.compile("<t>${Na</t><t>me}</t>", HEADERS, false);
+
+        assertEquals(0, template.getSlotCount());
+        assertEquals("${Na</t><t>me}</t>", template.getUnresolved());
+    }
+
+    @Test
+    void testFindMarkers() {
+        assertEquals(Set.of(), CompiledTemplate.findMarkers("<p>text ${incomplete</p>"));
+        assertEquals(List.of("Name", "City", "Unknown"), List.copyOf(CompiledTemplate.findMarkers(
+                "<w:p><w:r><w:t>${Na</w:t></w:r><w:r><w:t>me} ${City} ${Name} ${Unknown}</w:t></w:r></w:p>")));
+    }
+
+    @Test
+    void testImageMarker() {
+        CompiledTemplate template = CompiledTemplate.compile(
+                "<w:p><w:r><w:t xml:space=\"preserve\">Logo: ${image:City}</w:t></w:r></w:p>", HEADERS);
+
+        assertEquals(1, template.getSlotCount());
+        assertTrue(template.hasImages());
+        assertNull(template.getUnresolved());
+
+        // without media-parts the picture is left out
+        assertEquals("<w:p><w:r><w:t xml:space=\"preserve\">Logo: </w:t></w:r></w:p>",
+                template.render(Arrays.asList("Joe", null, "logo.png", null)));
+
+        assertEquals(List.of("City"), List.copyOf(CompiledTemplate.findMarkers("<w:t>${image:City}</w:t>")));
+    }
+
+    @Test
+    void testImageMarkerOutsideOfText() {
+        CompiledTemplate template = CompiledTemplate.compile("<w:p w:rsidR=\"${image:City}\"/><w:t>${Name}</w:t>", HEADERS);
+
+        assertEquals(1, template.getSlotCount());
+        assertFalse(template.hasImages());
+        assertEquals("${image:City}\"/><w:t>${Name}</w:t>", template.getUnresolved());
+        assertEquals("<w:p w:rsidR=\"${image:City}\"/><w:t>Joe</w:t>",
+                template.render(Arrays.asList("Joe", null, "logo.png", null)));
+
+        // the marker is not handled as image in plain text
+        assertFalse(CompiledTemplate.compile("${image:City}", HEADERS, false).hasImages());
+    }
+
+    @Test
+    void testNoMarkers() {
+        CompiledTemplate template = CompiledTemplate.compile("<p>text</p>", HEADERS);
+
+        assertEquals(0, template.getSlotCount());
+        assertEquals("<p>text</p>", template.render(Collections.emptyList()));
+
+        StringBuilder buffer = new StringBuilder("start");
+        template.render(Collections.emptyList(), buffer);
+        assertEquals("start<p>text</p>", buffer.toString());
+    }
+}
@@ -0,0 +1,53 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class DataRowSourceTest {
+    @Test
+    void testRows() throws IOException {
+        Data data = new Data(true);
+        data.read(new File("samples/Lines.csv"));
+
+        try (DataRowSource source = new DataRowSource(data)) {
+            assertEquals(data.getHeaders(), source.getHeaders());
+
+            List<List<String>> rows = new ArrayList<>();
+            for (List<String> row : source) {
+                rows.add(new ArrayList<>(row));
+            }
+            assertEquals(data.getData(), rows);
+            assertEquals(rows.size(), source.getRows());
+        }
+    }
+
+    @Test
+    void testFilterAndColumns() throws IOException {
+        Data data = new Data();
+        data.read(new File("samples/Lines.csv"));
+
+        // the same data can be used by multiple sources with different filters
+        for (int i = 0; i < 2; i++) {
+            try (DataRowSource source = new DataRowSource(data)) {
+                source.setFilter("City == \"New York\"");
+                source.setColumns(List.of("Name"));
+
+                List<List<String>> rows = new ArrayList<>();
+                for (List<String> row : source) {
+                    rows.add(new ArrayList<>(row));
+                }
+                assertEquals(List.of(
+                        Arrays.asList("Ginger Rogers", null, null, null, "New York", null),
+                        Arrays.asList("Fred Astaire", null, null, null, "New York", null)), rows);
+                assertEquals(data.getData().size() - 2, source.getSkippedRows());
+            }
+        }
+    }
+}
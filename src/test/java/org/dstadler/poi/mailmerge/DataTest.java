@@ -33,6 +33,28 @@ class DataTest {
 		Assertions.assertEquals(4, data.getData().size());
 	}
 
+	@Test
+    void testReadCompact() throws Exception {
+		Data data = new Data(true);
+		data.read(new File("samples/Lines.csv"));
+
+		Data expected = new Data();
+		expected.read(new File("samples/Lines.csv"));
+
+		Assertions.assertEquals(expected.getHeaders(), data.getHeaders());
+		Assertions.assertEquals(expected.getData(), data.getData());
+		Assertions.assertEquals(4, data.getData().size());
+	}
+
+	@Test
+    void testReadFiltered() throws Exception {
+		Data data = new Data();
+		data.read(new File("samples/Lines.csv"), "City == \"New York\" && Zip > 10010");
+
+		Assertions.assertEquals(1, data.getData().size());
+		Assertions.assertEquals("Fred Astaire", data.getData().get(0).get(0));
+	}
+
 	@Test
     void testReadEmptyExcel() throws Exception {
 		Assertions.assertTrue(new File("build").exists() || new File("build").mkdirs(), "Failed to create directory 'build'");
@@ -0,0 +1,96 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.jupiter.api.Test;
+
+class DeflateSegmentTest {
+    @Test
+    void testConcatenatedSegments() throws Exception {
+        byte[] first = "<w:p>Some text which is repeated, repeated, repeated</w:p>".getBytes(StandardCharsets.UTF_8);
+        byte[] second = new byte[200_000];
+        new Random(42).nextBytes(second);
+        byte[] third = new byte[0];
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        int crc = 0;
+        for (byte[] data : new byte[][] { first, second, third, first }) {
+            DeflateSegment segment = DeflateSegment.compress(data, Deflater.BEST_SPEED);
+            assertEquals(data.length, segment.length());
+
+            compressed.write(segment.data());
+            expected.write(data);
+            crc = DeflateSegment.combine(crc, segment.crc(), segment.length());
+        }
+        compressed.write(DeflateSegment.FINAL_BLOCK);
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(compressed.toByteArray());
+        byte[] result = new byte[expected.size()];
+        assertEquals(result.length, inflater.inflate(result));
+        assertEquals(0, inflater.inflate(new byte[10]));
+        inflater.end();
+
+        assertArrayEquals(expected.toByteArray(), result);
+        assertEquals(crc(expected.toByteArray()), crc);
+    }
+
+    @Test
+    void testDictionary() throws Exception {
+        byte[] data = "<w:p>Some text which is repeated</w:p>".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        int split = data.length / 2;
+        byte[] second = Arrays.copyOfRange(data, split, data.length);
+
+        DeflateSegment first = DeflateSegment.compress(data, split, null, Deflater.DEFAULT_COMPRESSION);
+        DeflateSegment withDictionary = DeflateSegment.compress(second, second.length,
+                Arrays.copyOfRange(data, split - 100, split), Deflater.DEFAULT_COMPRESSION);
+        DeflateSegment withoutDictionary = DeflateSegment.compress(second, Deflater.DEFAULT_COMPRESSION);
+        assertTrue(withDictionary.data().length < withoutDictionary.data().length);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compressed.write(first.data());
+        compressed.write(withDictionary.data());
+        compressed.write(DeflateSegment.FINAL_BLOCK);
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(compressed.toByteArray());
+        byte[] result = new byte[data.length];
+        assertEquals(result.length, inflater.inflate(result));
+        inflater.end();
+
+        assertArrayEquals(data, result);
+        assertEquals(crc(data), DeflateSegment.combine(first.crc(), withDictionary.crc(), withDictionary.length()));
+    }
+
+    @Test
+    void testCombine() {
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+        for (int split = 0; split <= data.length; split++) {
+            CRC32 first = new CRC32();
+            first.update(data, 0, split);
+            CRC32 second = new CRC32();
+            second.update(data, split, data.length - split);
+
+            assertEquals(crc(data),
+                    DeflateSegment.combine((int) first.getValue(), (int) second.getValue(), data.length - split),
+                    "Split at " + split);
+        }
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,157 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FragmentCacheTest {
+    private static final File CACHE_DIR = new File("build/FragmentCache");
+    private static final String TEMPLATE = "<p>${Name} &amp; ${City}</p>";
+    private static final List<String> HEADERS = List.of("Name", "City");
+    private static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private static final HashCode KEY1 = Hashing.murmur3_128().hashInt(1);
+    private static final HashCode KEY2 = Hashing.murmur3_128().hashInt(2);
+    private static final DeflateSegment SEGMENT1 = segment("<p>first</p>");
+    private static final DeflateSegment SEGMENT2 = segment("<p>second</p>");
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileUtils.deleteDirectory(CACHE_DIR);
+    }
+
+    @Test
+    void testGetAndPut() throws IOException {
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            assertNull(cache.get(KEY1));
+            cache.put(KEY1, SEGMENT1);
+            cache.put(KEY2, SEGMENT2);
+
+            // segments are only available in the next run
+            assertNull(cache.get(KEY2));
+            assertEquals(0, cache.getHits());
+            assertEquals(2, cache.getMisses());
+            cache.commit();
+        }
+
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            assertSegment(SEGMENT2, cache.get(KEY2));
+            assertSegment(SEGMENT1, cache.get(KEY1));
+            assertEquals(2, cache.getHits());
+
+            // only the first segment is used in this run
+            cache.put(KEY1, SEGMENT1);
+            cache.commit();
+        }
+
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            assertSegment(SEGMENT1, cache.get(KEY1));
+            assertNull(cache.get(KEY2));
+        }
+    }
+
+    @Test
+    void testNotCommitted() throws IOException {
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            cache.put(KEY1, SEGMENT1);
+            cache.commit();
+        }
+
+        // a failed run keeps the blocks of the previous run and removes its temporary file
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            cache.put(KEY2, SEGMENT2);
+        }
+        assertEquals(1, CACHE_DIR.list().length);
+
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            assertSegment(SEGMENT1, cache.get(KEY1));
+            assertNull(cache.get(KEY2));
+        }
+    }
+
+    @Test
+    void testConcurrentRuns() throws IOException {
+        // both runs write their own temporary file, the one which commits last wins
+        try (FragmentCache first = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL);
+             FragmentCache second = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            first.put(KEY1, SEGMENT1);
+            second.put(KEY2, SEGMENT2);
+            first.commit();
+            second.commit();
+        }
+        assertEquals(1, CACHE_DIR.list().length);
+
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            assertNull(cache.get(KEY1));
+            assertSegment(SEGMENT2, cache.get(KEY2));
+        }
+    }
+
+    @Test
+    void testSeparatedByTemplateAndHeaders() throws IOException {
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            cache.put(KEY1, SEGMENT1);
+            cache.commit();
+        }
+
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, List.of("Name", "Town"), LEVEL)) {
+            assertNull(cache.get(KEY1));
+        }
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, "<p>${Name}</p>", HEADERS, LEVEL)) {
+            assertNull(cache.get(KEY1));
+        }
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, Deflater.BEST_SPEED)) {
+            assertNull(cache.get(KEY1));
+        }
+
+        // runs which are not committed do not create a cache-file
+        assertEquals(1, CACHE_DIR.list().length);
+    }
+
+    @Test
+    void testIncompleteCacheFile() throws IOException {
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            cache.put(KEY1, SEGMENT1);
+            cache.put(KEY2, SEGMENT2);
+            cache.commit();
+        }
+
+        File[] files = CACHE_DIR.listFiles();
+        assertEquals(1, files.length);
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        // the incomplete last segment is ignored
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, TEMPLATE, HEADERS, LEVEL)) {
+            assertNotNull(cache.get(KEY1));
+            assertNull(cache.get(KEY2));
+        }
+        assertArrayEquals(files, CACHE_DIR.listFiles());
+    }
+
+    private static DeflateSegment segment(String text) {
+        return DeflateSegment.compress(text.getBytes(StandardCharsets.UTF_8), Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private static void assertSegment(DeflateSegment expected, DeflateSegment actual) {
+        assertNotNull(actual);
+        assertArrayEquals(expected.data(), actual.data());
+        assertEquals(expected.crc(), actual.crc());
+        assertEquals(expected.length(), actual.length());
+    }
+}
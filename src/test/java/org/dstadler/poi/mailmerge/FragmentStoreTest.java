@@ -0,0 +1,90 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Objects;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FragmentStoreTest {
+    private static final File DIR = new File("build/FragmentStore");
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileUtils.deleteDirectory(DIR);
+        assertTrue(DIR.mkdirs());
+    }
+
+    @Test
+    void testInMemory() throws IOException {
+        try (FragmentStore store = new FragmentStore(1024 * 1024, DIR)) {
+            store.accept("<p>1</p>");
+            store.accept(new StringBuilder("<p>2</p>"));
+
+            assertEquals(2, store.getMemoryRows());
+            assertEquals(0, store.getSpilledRows());
+            assertEquals(0, Objects.requireNonNull(DIR.list()).length);
+
+            try (Reader reader = store.openReader("<body>", "</body>")) {
+                assertEquals("<body><p>1</p><p>2</p></body>", IOUtils.toString(reader));
+            }
+
+            // rows are released while reading
+            assertEquals(0, store.getMemoryRows());
+        }
+    }
+
+    @Test
+    void testSpill() throws IOException {
+        StringBuilder expected = new StringBuilder("<body>");
+        try (FragmentStore store = new FragmentStore(1000, DIR)) {
+            for (int i = 0; i < 1000; i++) {
+                String fragment = "<p>row " + i + " ä€</p>";
+                store.accept(fragment);
+                expected.append(fragment);
+            }
+            expected.append("</body>");
+
+            assertTrue(store.getMemoryRows() > 0);
+            assertEquals(1000, store.getMemoryRows() + store.getSpilledRows());
+            assertEquals(1, Objects.requireNonNull(DIR.list()).length);
+
+            // rows are read in their original order
+            assertEquals(expected.toString(), IOUtils.toString(store.openReader("<body>", "</body>")));
+        }
+
+        // the temporary file is removed
+        assertEquals(0, Objects.requireNonNull(DIR.list()).length);
+    }
+
+    @Test
+    void testNoBudget() throws IOException {
+        try (FragmentStore store = new FragmentStore(0, DIR)) {
+            assertEquals("", IOUtils.toString(store.openReader("", "")));
+
+            assertThrows(IllegalStateException.class, () -> store.accept("<p/>"));
+            assertThrows(IllegalStateException.class, () -> store.openReader("", ""));
+        }
+
+        try (FragmentStore store = new FragmentStore(0, DIR)) {
+            store.accept("<p/>");
+            assertEquals(0, store.getMemoryRows());
+            assertEquals(1, store.getSpilledRows());
+        }
+        assertFalse(Objects.requireNonNull(DIR.list()).length > 0);
+    }
+
+    @Test
+    void testInvalidBudget() {
+        assertThrows(IllegalArgumentException.class, () -> new FragmentStore(-1, DIR));
+    }
+}
@@ -0,0 +1,107 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Iterables;
+import org.junit.jupiter.api.Test;
+
+class GroupedTemplateTest {
+    private static final List<String> HEADERS = Arrays.asList("Invoice", "Item", "Amount");
+
+    private static final String TEMPLATE = "<w:p>${Invoice}</w:p><w:tbl><w:tr><w:trPr/><w:tc>Item</w:tc></w:tr>" +
+            "<w:tr w:rsidR=\"1\"><w:tc><w:t>${repeat}${Item}</w:t></w:tc><w:tc><w:t>${Amount}</w:t></w:tc></w:tr>" +
+            "</w:tbl><w:p>Total</w:p>";
+
+    @Test
+    void testRender() {
+        GroupedTemplate template = GroupedTemplate.compile(TEMPLATE, HEADERS, "Invoice");
+        assertEquals(1, template.getRepeatedRows());
+
+        StringBuilder out = new StringBuilder();
+        template.render(List.of(List.of("1", "Apple", "3"), List.of("1", "Pear", "4")), out);
+        assertEquals("<w:p>1</w:p><w:tbl><w:tr><w:trPr/><w:tc>Item</w:tc></w:tr>" +
+                "<w:tr w:rsidR=\"1\"><w:tc><w:t>Apple</w:t></w:tc><w:tc><w:t>3</w:t></w:tc></w:tr>" +
+                "<w:tr w:rsidR=\"1\"><w:tc><w:t>Pear</w:t></w:tc><w:tc><w:t>4</w:t></w:tc></w:tr>" +
+                "</w:tbl><w:p>Total</w:p>", out.toString());
+    }
+
+    @Test
+    void testGroup() {
+        GroupedTemplate template = GroupedTemplate.compile(TEMPLATE, HEADERS, "Amount");
+
+        // the source re-uses the row-instance, groups keep the order of their first row
+        String[] values = new String[3];
+        List<String> row = Arrays.asList(values);
+        Iterable<List<String>> rows = Iterables.transform(Arrays.asList(
+                new String[][] { { "1", "a", "B" }, { "2", "b", "A" }, { "3", "c", "B" }, { "4", "d", null } }),
+                line -> {
+                    System.arraycopy(line, 0, values, 0, 3);
+                    return row;
+                });
+
+        List<List<List<String>>> groups = new ArrayList<>(template.group(rows));
+        assertEquals(List.of(
+                List.of(List.of("1", "a", "B"), List.of("3", "c", "B")),
+                List.of(List.of("2", "b", "A")),
+                List.of(Arrays.asList("4", "d", null))), groups);
+    }
+
+    @Test
+    void testGroupMissingKey() {
+        GroupedTemplate template = GroupedTemplate.compile(TEMPLATE, HEADERS, "Amount");
+
+        // missing values and short rows are grouped together, but not with empty values
+        List<List<List<String>>> groups = new ArrayList<>(template.group(List.of(
+                Arrays.asList("1", "a", null), List.of("2", "b", ""), List.of("3", "c"), List.of("4", "d", ""))));
+        assertEquals(List.of(
+                List.of(Arrays.asList("1", "a", null), Arrays.asList("3", "c", null)),
+                List.of(List.of("2", "b", ""), List.of("4", "d", ""))), groups);
+    }
+
+    @Test
+    void testFindRepeatedRows() {
+        // only the innermost row of nested tables is repeated, rows without marker are kept
+        String xml = "<w:tbl><w:tr><w:tc><w:tbl><w:tr>${repeat}</w:tr><w:tr>b</w:tr></w:tbl></w:tc></w:tr>" +
+                "<w:tr>${repeat} ${repeat}</w:tr></w:tbl>${repeat}";
+        List<int[]> rows = GroupedTemplate.findRepeatedRows(xml);
+
+        assertEquals(2, rows.size());
+        assertEquals("<w:tr>${repeat}</w:tr>", xml.substring(rows.get(0)[0], rows.get(0)[1]));
+        assertEquals("<w:tr>${repeat} ${repeat}</w:tr>", xml.substring(rows.get(1)[0], rows.get(1)[1]));
+
+        assertTrue(GroupedTemplate.findRepeatedRows("<w:p>${repeat}</w:p>").isEmpty());
+    }
+
+    @Test
+    void testNoRepeatedRow() {
+        GroupedTemplate template = GroupedTemplate.compile("<w:p>${Invoice}: ${Item}</w:p>", HEADERS, "Invoice");
+        assertEquals(0, template.getRepeatedRows());
+
+        StringBuilder out = new StringBuilder();
+        template.render(List.of(List.of("1", "Apple", "3"), List.of("1", "Pear", "4")), out);
+        assertEquals("<w:p>1: Apple</w:p>", out.toString());
+    }
+
+    @Test
+    void testSplitMarker() {
+        GroupedTemplate template = GroupedTemplate.compile(
+                "<w:tr><w:p><w:r><w:t>${rep</w:t></w:r><w:r><w:t>eat}${Item}</w:t></w:r></w:p></w:tr>", HEADERS, "Invoice");
+        assertEquals(1, template.getRepeatedRows());
+
+        StringBuilder out = new StringBuilder();
+        template.render(List.of(List.of("1", "Apple", "3"), List.of("1", "Pear", "4")), out);
+        assertEquals("<w:tr><w:p><w:r><w:t></w:t></w:r><w:r><w:t>Apple</w:t></w:r></w:p></w:tr>" +
+                "<w:tr><w:p><w:r><w:t></w:t></w:r><w:r><w:t>Pear</w:t></w:r></w:p></w:tr>", out.toString());
+    }
+
+    @Test
+    void testNoSuchColumn() {
+        assertThrows(IllegalArgumentException.class, () -> GroupedTemplate.compile(TEMPLATE, HEADERS, "Customer"));
+    }
+}
@@ -0,0 +1,94 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ImageCacheTest {
+    private static final File DIR = new File("build/Images");
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileUtils.deleteDirectory(DIR);
+        assertTrue(DIR.mkdirs());
+    }
+
+    @Test
+    void testGet() throws IOException {
+        writeImage(DIR, "logo.png", "png", 40, 20, Color.RED);
+        writeImage(DIR, "photo.jpg", "jpeg", 30, 60, Color.BLUE);
+
+        ImageCache cache = new ImageCache(DIR);
+        ImageCache.Image logo = cache.get("logo.png");
+        assertEquals(new File(DIR, "logo.png"), logo.file());
+        assertEquals("png", logo.extension());
+        assertEquals("image/png", logo.contentType());
+        assertEquals(40, logo.width());
+        assertEquals(20, logo.height());
+
+        ImageCache.Image photo = cache.get(new File(DIR, "photo.jpg").getAbsolutePath());
+        assertEquals("jpeg", photo.extension());
+        assertEquals(30, photo.width());
+        assertEquals(60, photo.height());
+        assertNotEquals(logo.hash(), photo.hash());
+
+        // probed only once per path
+        assertSame(logo, cache.get(" logo.png "));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void testSameContent() throws IOException {
+        writeImage(DIR, "logo.png", "png", 40, 20, Color.RED);
+        FileUtils.copyFile(new File(DIR, "logo.png"), new File(DIR, "copy.png"));
+
+        ImageCache cache = new ImageCache(DIR);
+        assertEquals(cache.get("logo.png").hash(), cache.get("copy.png").hash());
+    }
+
+    @Test
+    void testInvalid() throws IOException {
+        FileUtils.writeStringToFile(new File(DIR, "text.png"), "no image", StandardCharsets.UTF_8);
+
+        ImageCache cache = new ImageCache(DIR);
+        assertNull(cache.get("missing.png"));
+        assertNull(cache.get("text.png"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void testNotAllowed() throws IOException {
+        writeImage(DIR, "logo.png", "png", 40, 20, Color.RED);
+
+        ImageCache cache = new ImageCache(DIR, file -> !file.getName().equals("logo.png"));
+        assertNull(cache.get("logo.png"));
+        assertEquals(1, cache.size());
+    }
+
+    static File writeImage(File dir, String name, String format, int width, int height, Color color) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, color.getRGB());
+            }
+        }
+
+        File file = new File(dir, name);
+        assertTrue(ImageIO.write(image, format, file));
+        return file;
+    }
+}
@@ -0,0 +1,102 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class IncrementalDocxWriterTest {
+    private static final File CACHE_DIR = new File("build/IncrementalCache");
+    private static final File RESULT_FILE = new File("build/Incremental.docx");
+    private static final File EXPECTED_FILE = new File("build/IncrementalExpected.docx");
+
+    private static final List<String> HEADERS = List.of("Name", "Organisation", "Address", "Zip", "City", "Salutation", "Date");
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileUtils.deleteDirectory(CACHE_DIR);
+    }
+
+    @Test
+    void testReuseUnchangedRows() throws IOException {
+        TemplatePackage template = TemplatePackage.load(new File("samples/Template.docx"));
+
+        List<List<String>> rows = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            rows.add(List.of("Name " + i, "Org & Co", "Street " + i, "1010", "Wien", "Dear " + i, "2024-01-01"));
+        }
+
+        int[] counts = write(template, rows);
+        assertEquals(0, counts[0]);
+        assertEquals(3000, counts[1]);
+        assertSameAsStreaming(template, rows);
+
+        // nothing changed
+        counts = write(template, rows);
+        assertEquals(3000, counts[0]);
+        assertEquals(0, counts[1]);
+        assertSameAsStreaming(template, rows);
+
+        // change one row, insert and remove another one
+        rows.set(100, List.of("Changed", "Org", "Street", "1010", "Wien", "Dear", "2024-01-01"));
+        rows.add(2000, List.of("Inserted", "Org", "Street", "1010", "Wien", "Dear", "2024-01-01"));
+        rows.remove(2500);
+        counts = write(template, rows);
+        // only the blocks around the changes are rendered again
+        assertTrue(counts[1] > 0 && counts[1] <= 1500, "Had: " + counts[1]);
+        assertEquals(3000, counts[0] + counts[1]);
+        assertSameAsStreaming(template, rows);
+    }
+
+    private static int[] write(TemplatePackage template, List<List<String>> rows) throws IOException {
+        CompiledTemplate compiled = template.compile(HEADERS);
+        IncrementalDocxWriter writer;
+        try (FragmentCache cache = new FragmentCache(CACHE_DIR, template.getBody(), HEADERS, Deflater.DEFAULT_COMPRESSION)) {
+            writer = new IncrementalDocxWriter(template, compiled, cache, new FileOutputStream(RESULT_FILE),
+                    Deflater.DEFAULT_COMPRESSION);
+            try (writer) {
+                for (List<String> row : rows) {
+                    writer.write(row);
+                }
+            }
+            cache.commit();
+        }
+        return new int[] { writer.getCachedRows(), writer.getRenderedRows() };
+    }
+
+    private static void assertSameAsStreaming(TemplatePackage template, List<List<String>> rows) throws IOException {
+        CompiledTemplate compiled = template.compile(HEADERS);
+        try (StreamingDocxWriter writer = new StreamingDocxWriter(template, new FileOutputStream(EXPECTED_FILE))) {
+            for (List<String> row : rows) {
+                writer.write(compiled.render(row));
+            }
+        }
+
+        try (ZipFile expected = new ZipFile(EXPECTED_FILE);
+             ZipFile actual = new ZipFile(RESULT_FILE)) {
+            assertEquals(expected.size(), actual.size());
+            for (ZipEntry entry : expected.stream().toList()) {
+                ZipEntry actualEntry = actual.getEntry(entry.getName());
+                try (InputStream expectedStream = expected.getInputStream(entry);
+                     InputStream actualStream = actual.getInputStream(actualEntry)) {
+                    assertTrue(IOUtils.contentEquals(expectedStream, actualStream), "Entry " + entry.getName());
+                }
+                assertEquals(entry.getCrc(), actualEntry.getCrc(), "Entry " + entry.getName());
+                assertEquals(entry.getSize(), actualEntry.getSize(), "Entry " + entry.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class JoinedRowSourceTest {
+    private static final File CUSTOMERS_XLSX = new File("build/Customers.xlsx");
+    private static final File CUSTOMERS_XLS = new File("build/Customers.xls");
+    private static final File COUNTRIES_CSV = new File("build/Countries.csv");
+
+    private static final JoinedRowSource.Lookup ORDERS =
+            new JoinedRowSource.Lookup("orders", null, "Orders", "Id", "Customer");
+    private static final JoinedRowSource.Lookup COUNTRIES =
+            new JoinedRowSource.Lookup("country", COUNTRIES_CSV, null, "Country", "Code");
+
+    @BeforeAll
+    static void setUpClass() throws IOException {
+        assertTrue(new File("build").exists() || new File("build").mkdirs(), "Failed to create directory 'build'");
+
+        writeWorkbook(new XSSFWorkbook(), CUSTOMERS_XLSX);
+        writeWorkbook(new HSSFWorkbook(), CUSTOMERS_XLS);
+        Files.writeString(COUNTRIES_CSV.toPath(), "Code,Name\nAT,Austria\nUS,United States\n", StandardCharsets.UTF_8);
+    }
+
+    private static void writeWorkbook(Workbook wb, File file) throws IOException {
+        try (wb) {
+            Sheet customers = wb.createSheet("Customers");
+            addRow(customers, "Id", "Name", "Country");
+            addRow(customers, "c1", "Alice", "AT");
+            addRow(customers, "c2", "Bob", "US");
+            addRow(customers, "c3", "Carol", "DE");
+
+            Sheet orders = wb.createSheet("Orders");
+            addRow(orders, "Customer", "Total", "Item");
+            addRow(orders, "c2", "20.5", "Shoes");
+            addRow(orders, "c1", "10", "Hat");
+            addRow(orders, "c1", "99", "Duplicate");
+
+            try (OutputStream stream = new FileOutputStream(file)) {
+                wb.write(stream);
+            }
+        }
+    }
+
+    private static void addRow(Sheet sheet, String... values) {
+        Row row = sheet.createRow(sheet.getPhysicalNumberOfRows());
+        for (int i = 0; i < values.length; i++) {
+            row.createCell(i).setCellValue(values[i]);
+        }
+    }
+
+    @Test
+    void testJoin() throws IOException {
+        for (File file : new File[] { CUSTOMERS_XLSX, CUSTOMERS_XLS }) {
+            try (RowSource source = open(file, List.of(ORDERS, COUNTRIES))) {
+                // the Excel readers add an empty header after the last column
+                assertEquals("[Id, Name, Country, null, orders.Customer, orders.Total, orders.Item, null, country.Code, country.Name]",
+                        source.getHeaders().toString());
+
+                List<List<String>> rows = readAll(source);
+                assertEquals(3, rows.size());
+                assertEquals("[c1, Alice, AT, null, c1, 10, Hat, null, AT, Austria]", rows.get(0).toString(), "File " + file);
+                assertEquals("[c2, Bob, US, null, c2, 20.5, Shoes, null, US, United States]", rows.get(1).toString(), "File " + file);
+
+                // no matching rows
+                assertEquals("[c3, Carol, DE, null, null, null, null, null, null, null]", rows.get(2).toString(), "File " + file);
+            }
+        }
+    }
+
+    @Test
+    void testColumnsAndFilter() throws IOException {
+        try (RowSource source = open(CUSTOMERS_XLSX, List.of(ORDERS, COUNTRIES))) {
+            source.setColumns(List.of("Name", "orders.Total"));
+            source.setFilter("country.Name != \"Austria\"");
+
+            // the key-columns are only read for joining
+            List<List<String>> rows = readAll(source);
+            assertEquals(2, rows.size());
+            assertEquals("[null, Bob, null, null, null, 20.5, null, null, null, United States]", rows.get(0).toString());
+            assertEquals("[null, Carol, null, null, null, null, null, null, null, null]", rows.get(1).toString());
+        }
+
+        try (RowSource source = open(CUSTOMERS_XLSX, List.of(ORDERS))) {
+            source.setColumns(List.of("orders.Item"));
+            assertEquals("[null, null, null, null, null, null, Hat, null]", readAll(source).get(0).toString());
+        }
+    }
+
+    @Test
+    void testInvalidLookup() throws IOException {
+        assertThrows(IllegalArgumentException.class,
+                () -> open(CUSTOMERS_XLSX, List.of(new JoinedRowSource.Lookup("orders", null, "Orders", "NoSuchColumn", "Customer"))));
+        assertThrows(IllegalArgumentException.class,
+                () -> open(CUSTOMERS_XLSX, List.of(new JoinedRowSource.Lookup("orders", null, "Orders", "Id", "NoSuchColumn"))));
+        assertThrows(IllegalArgumentException.class,
+                () -> open(CUSTOMERS_XLSX, List.of(new JoinedRowSource.Lookup("orders", null, "NoSuchSheet", "Id", "Customer"))));
+        assertThrows(IllegalArgumentException.class,
+                () -> open(CUSTOMERS_XLS, List.of(new JoinedRowSource.Lookup("orders", null, "NoSuchSheet", "Id", "Customer"))));
+        assertThrows(IllegalArgumentException.class,
+                () -> new JoinedRowSource.Lookup("orders", null, null, "Id", "Customer"));
+        assertThrows(IllegalArgumentException.class,
+                () -> RowSource.open(COUNTRIES_CSV, "Sheet1", StandardCharsets.UTF_8, 1));
+    }
+
+    @Test
+    void testOpenSheet() throws IOException {
+        try (RowSource source = RowSource.open(CUSTOMERS_XLSX, "Orders", StandardCharsets.UTF_8, 1)) {
+            assertInstanceOf(XlsxRowSource.class, source);
+            assertEquals(Arrays.asList("Customer", "Total", "Item", null), source.getHeaders());
+            assertEquals(3, readAll(source).size());
+        }
+        try (RowSource source = RowSource.open(CUSTOMERS_XLS, "Orders", StandardCharsets.UTF_8, 1)) {
+            assertInstanceOf(ExcelRowSource.class, source);
+            assertEquals(Arrays.asList("Customer", "Total", "Item", null), source.getHeaders());
+            assertEquals(3, readAll(source).size());
+        }
+    }
+
+    private static RowSource open(File file, List<JoinedRowSource.Lookup> lookups) throws IOException {
+        return new JoinedRowSource(RowSource.open(file), file, StandardCharsets.UTF_8, lookups);
+    }
+
+    private static List<List<String>> readAll(RowSource source) {
+        List<List<String>> rows = new ArrayList<>();
+        for (List<String> row : source) {
+            rows.add(new ArrayList<>(row));
+        }
+        return rows;
+    }
+}
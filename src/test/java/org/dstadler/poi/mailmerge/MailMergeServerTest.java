@@ -0,0 +1,263 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.poi.xwpf.usermodel.XWPFRun;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MailMergeServerTest {
+    private static final File RESULT_FILE = new File("build/ResultServer.docx");
+
+    private static final String VALID_QUERY = "template=" + encode("samples/Template.docx") +
+            "&data=" + encode("samples/Lines.xlsx") + "&output=" + encode(RESULT_FILE.getPath());
+
+    private MailMergeServer server;
+    private HttpClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        assertTrue(!RESULT_FILE.exists() || RESULT_FILE.delete());
+
+        server = new MailMergeServer(0, 2, 5).
+                setBaseDirectories(List.of(new File("samples"), new File("build")));
+        server.start();
+        client = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+        client.close();
+    }
+
+    @Test
+    void testMerge() throws Exception {
+        HttpResponse<String> response = post("template=" + encode("samples/Template.docx") +
+                "&data=" + encode("samples/Lines.xlsx") + "&output=" + encode(RESULT_FILE.getPath()));
+        assertEquals(200, response.statusCode(), response.body());
+        assertTrue(response.body().startsWith("Merged "), response.body());
+        assertTrue(RESULT_FILE.exists());
+
+        // the second merge uses the cached template
+        response = post("template=" + encode("samples/Template.docx") +
+                "&data=" + encode("samples/Lines.csv") + "&output=" + encode(RESULT_FILE.getPath()));
+        assertEquals(200, response.statusCode(), response.body());
+        assertEquals(1, server.getTemplates().getMisses());
+        assertEquals(1, server.getTemplates().getHits());
+    }
+
+    @Test
+    void testMissingParameter() throws Exception {
+        HttpResponse<String> response = post("template=" + encode("samples/Template.docx"));
+        assertEquals(400, response.statusCode(), response.body());
+    }
+
+    @Test
+    void testMissingFile() throws Exception {
+        HttpResponse<String> response = post("template=" + encode("samples/Missing.docx") +
+                "&data=" + encode("samples/Lines.xlsx") + "&output=" + encode(RESULT_FILE.getPath()));
+        assertEquals(400, response.statusCode(), response.body());
+    }
+
+    @Test
+    void testInvalidTemplate() throws Exception {
+        HttpResponse<String> response = post("template=" + encode("samples/Lines.csv") +
+                "&data=" + encode("samples/Lines.xlsx") + "&output=" + encode(RESULT_FILE.getPath()));
+        assertEquals(400, response.statusCode(), response.body());
+    }
+
+    @Test
+    void testGet() throws Exception {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(
+                URI.create("http://127.0.0.1:" + server.getPort() + "/merge")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(405, response.statusCode(), response.body());
+    }
+
+    @Test
+    void testMissingToken() throws Exception {
+        HttpResponse<String> response = client.send(request(VALID_QUERY).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(401, response.statusCode(), response.body());
+
+        response = client.send(request(VALID_QUERY).header(MailMergeServer.TOKEN_HEADER, "invalid").build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(401, response.statusCode(), response.body());
+        assertFalse(RESULT_FILE.exists());
+    }
+
+    @Test
+    void testSetToken() throws Exception {
+        server.setToken("0123456789abcdef");
+        assertEquals("0123456789abcdef", server.getToken());
+
+        assertEquals(200, post(VALID_QUERY).statusCode());
+        assertThrows(IllegalArgumentException.class, () -> server.setToken("short"));
+    }
+
+    @Test
+    void testOrigin() throws Exception {
+        HttpResponse<String> response = client.send(request(VALID_QUERY).
+                header(MailMergeServer.TOKEN_HEADER, server.getToken()).
+                header("Origin", "http://example.com").build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(403, response.statusCode(), response.body());
+        assertFalse(RESULT_FILE.exists());
+    }
+
+    @Test
+    void testHost() throws Exception {
+        // the HttpClient does not allow to set the Host-header
+        assertTrue(rawPost("localhost:" + server.getPort()).startsWith("HTTP/1.1 200"));
+        assertTrue(rawPost("[::1]").startsWith("HTTP/1.1 200"));
+        assertTrue(rawPost("attacker.example.com:" + server.getPort()).startsWith("HTTP/1.1 403"));
+        assertTrue(rawPost(null).startsWith("HTTP/1.1 403"));
+    }
+
+    @Test
+    void testOutsideBaseDirectories() throws Exception {
+        HttpResponse<String> response = post("template=" + encode("samples/Template.docx") +
+                "&data=" + encode("samples/Lines.xlsx") + "&output=" + encode("build/../ResultServer.docx"));
+        assertEquals(403, response.statusCode(), response.body());
+        assertFalse(new File("ResultServer.docx").exists());
+
+        response = post("template=" + encode("samples/Template.docx") +
+                "&data=" + encode(new File("build.gradle").getAbsolutePath()) + "&output=" + encode(RESULT_FILE.getPath()));
+        assertEquals(403, response.statusCode(), response.body());
+    }
+
+    @Test
+    void testImageOutsideBaseDirectories() throws Exception {
+        File dir = new File("build/server-images");
+        FileUtils.deleteDirectory(dir);
+        assertTrue(dir.mkdirs());
+
+        ImageCacheTest.writeImage(dir, "inside.png", "png", 40, 20, Color.RED);
+        File outside = Files.createTempDirectory("MailMergeServerTest").toFile();
+        try {
+            File image = ImageCacheTest.writeImage(outside, "outside.jpg", "jpeg", 30, 60, Color.BLUE);
+
+            File data = new File(dir, "Images.csv");
+            FileUtils.writeStringToFile(data, "Name,Logo\nInside,inside.png\nOutside," + image.getAbsolutePath() +
+                    "\nRelative," + dir.getCanonicalFile().toPath().relativize(image.getCanonicalFile().toPath()) + "\n",
+                    StandardCharsets.UTF_8);
+
+            File template = new File(dir, "Template.docx");
+            try (XWPFDocument doc = new XWPFDocument()) {
+                XWPFRun run = doc.createParagraph().createRun();
+                run.setText("${Name}: ");
+                run.setText("${image:Logo}", 1);
+                try (OutputStream out = new FileOutputStream(template)) {
+                    doc.write(out);
+                }
+            }
+
+            HttpResponse<String> response = post("template=" + encode(template.getPath()) +
+                    "&data=" + encode(data.getPath()) + "&output=" + encode(RESULT_FILE.getPath()));
+            assertEquals(200, response.statusCode(), response.body());
+
+            // only the picture inside the base-directories is inserted
+            try (InputStream stream = new FileInputStream(RESULT_FILE);
+                 XWPFDocument doc = new XWPFDocument(stream)) {
+                assertEquals(1, doc.getAllPictures().size());
+                assertEquals("png", doc.getAllPictures().get(0).suggestFileExtension());
+            }
+        } finally {
+            FileUtils.deleteDirectory(outside);
+        }
+    }
+
+    @Test
+    void testQueueFull() throws Exception {
+        try (MailMergeServer busy = new MailMergeServer(0, 1, 1, 5)) {
+            busy.start();
+
+            // block the only thread and the only place in the queue
+            CountDownLatch latch = new CountDownLatch(1);
+            busy.getExecutor().execute(() -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            busy.getExecutor().execute(() -> {});
+
+            try {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(
+                        URI.create("http://127.0.0.1:" + busy.getPort() + "/merge?" + VALID_QUERY)).
+                        header(MailMergeServer.TOKEN_HEADER, busy.getToken()).
+                        POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals(503, response.statusCode(), response.body());
+            } finally {
+                latch.countDown();
+            }
+        }
+    }
+
+    @Test
+    void testWriteToken() throws IOException {
+        File tokenFile = new File("build/server-test/server.token");
+        MailMergeServer.writeToken(tokenFile, "0123456789abcdef");
+        MailMergeServer.writeToken(tokenFile, server.getToken());
+
+        assertEquals(server.getToken(), Files.readString(tokenFile.toPath()));
+        if (tokenFile.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+        }
+    }
+
+    private HttpResponse<String> post(String query) throws IOException, InterruptedException {
+        return client.send(request(query).header(MailMergeServer.TOKEN_HEADER, server.getToken()).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest.Builder request(String query) {
+        return HttpRequest.newBuilder(
+                URI.create("http://127.0.0.1:" + server.getPort() + "/merge?" + query)).
+                POST(HttpRequest.BodyPublishers.noBody());
+    }
+
+    private String rawPost(String host) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /merge?" + VALID_QUERY + " HTTP/1.1\r\n" +
+                    (host == null ? "" : "Host: " + host + "\r\n") +
+                    MailMergeServer.TOKEN_HEADER + ": " + server.getToken() + "\r\n" +
+                    "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -1,18 +1,49 @@
 package org.dstadler.poi.mailmerge;
 
+import java.awt.Color;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.poi.xwpf.extractor.XWPFWordExtractor;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.apache.poi.xwpf.usermodel.XWPFPicture;
+import org.apache.poi.xwpf.usermodel.XWPFPictureData;
+import org.apache.poi.xwpf.usermodel.XWPFRun;
+import org.apache.poi.xwpf.usermodel.XWPFTable;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 class MailMergeTest {
     private static final File RESULT_FILE = new File("build/Result.docx");
+    private static final File STREAMED_FILE = new File("build/ResultStreamed.docx");
 
 	@BeforeAll
 	static void setUpClass() {
@@ -80,6 +111,11 @@ class MailMergeTest {
 
         // ensure the result file is written now
         assertTrue(RESULT_FILE.exists());
+
+        // the marker which is split by formatting is replaced as well
+        String text = extractText(RESULT_FILE);
+        assertTrue(text.contains("Dear Ginger"), "Had: " + text);
+        assertFalse(text.contains("${"), "Had: " + text);
     }
 
     @Test
@@ -113,4 +149,546 @@ class MailMergeTest {
             System.clearProperty("org.dstadler.poi.mailmerge.includeindicator");
         }
     }
+
+    @Test
+    void testStreaming() throws Exception {
+        new MailMerge().merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), RESULT_FILE);
+        new MailMerge().setStreaming(true).merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), STREAMED_FILE);
+
+        // both ways of writing should produce the same text
+        String text = extractText(RESULT_FILE);
+        assertTrue(text.contains("Ginger Rogers"), "Had: " + text);
+        assertTrue(text.contains("Marie Curie"), "Had: " + text);
+        assertFalse(text.contains("${"), "Had: " + text);
+        assertEquals(text, extractText(STREAMED_FILE));
+    }
+
+    @Test
+    void testMemoryBudget() throws Exception {
+        for (String template : new String[] { "samples/Template.docx", "samples/Template-TagSplitByFormatting.docx" }) {
+            new MailMerge().setMemoryBudget(Long.MAX_VALUE).merge(new File(template), new File("samples/Lines.xlsx"), RESULT_FILE);
+            String text = extractText(RESULT_FILE);
+
+            // a small budget keeps some rows in memory, the others are read back from the temporary file,
+            // a large budget builds the document in memory from the rows rendered from the template-file
+            for (long budget : new long[] { 0, 20_000, 1024 * 1024, MailMerge.defaultMemoryBudget() }) {
+                new MailMerge().setMemoryBudget(budget).
+                        merge(new File(template), new File("samples/Lines.xlsx"), STREAMED_FILE);
+                assertEquals(text, extractText(STREAMED_FILE), "Budget " + budget + " for " + template);
+            }
+        }
+
+        String[] files = new File("build").list((dir, name) -> name.endsWith(".fragments.gz"));
+        assertNotNull(files);
+        assertEquals(0, files.length, "Temporary files should be removed: " + Arrays.toString(files));
+    }
+
+    @Test
+    void testFailedMergeLeavesNoOutput() throws Exception {
+        File dir = new File("build/MailMergeFailed");
+        FileUtils.deleteDirectory(dir);
+        assertTrue(dir.mkdirs());
+
+        // reading fails part-way because of the unterminated quote in the last line
+        StringBuilder csv = new StringBuilder("Name,Organisation\n");
+        for (int i = 0; i < 1000; i++) {
+            csv.append("Name ").append(i).append(",Org\n");
+        }
+        csv.append("\"Unterminated,Org\n");
+        File data = new File(dir, "Broken.csv");
+        FileUtils.writeStringToFile(data, csv.toString(), StandardCharsets.UTF_8);
+
+        File output = new File(dir, "Result.docx");
+        assertThrows(IOException.class,
+                () -> new MailMerge().setStreaming(true).merge(new File("samples/Template.docx"), data, output));
+        assertFalse(output.exists());
+
+        assertThrows(IOException.class,
+                () -> new MailMerge().setMemoryBudget(0).merge(new File("samples/Template.docx"), data, output));
+        assertFalse(output.exists());
+
+        // neither the result nor the blocks of a failed run are kept
+        File cache = new File(dir, "cache");
+        assertThrows(IOException.class,
+                () -> new MailMerge().setFragmentCache(cache).merge(new File("samples/Template.docx"), data, output));
+        assertFalse(output.exists());
+        assertEquals(0, cache.list().length);
+        FileUtils.deleteDirectory(cache);
+
+        // the result of a previous run is kept
+        FileUtils.writeStringToFile(output, "previous", StandardCharsets.UTF_8);
+        assertThrows(IOException.class,
+                () -> new MailMerge().setStreaming(true).merge(new File("samples/Template.docx"), data, output));
+        assertEquals("previous", FileUtils.readFileToString(output, StandardCharsets.UTF_8));
+
+        assertEquals(List.of("Broken.csv", "Result.docx"), Arrays.stream(dir.list()).sorted().toList());
+    }
+
+    @Test
+    void testInvalidMemoryBudget() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new MailMerge().setMemoryBudget(-1));
+    }
+
+    @Test
+    void testDefaultMemoryBudget() {
+        // the budget depends on the heap, so merges finish regardless of the size of the data
+        assertTrue(MailMerge.defaultMemoryBudget() > 0);
+        assertTrue(MailMerge.defaultMemoryBudget() < Runtime.getRuntime().maxMemory());
+    }
+
+    @Test
+    void testProjectColumns() throws Exception {
+        new MailMerge().merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), RESULT_FILE);
+        new MailMerge().setProjectColumns(true).merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), STREAMED_FILE);
+        assertEquals(extractText(RESULT_FILE), extractText(STREAMED_FILE));
+
+        new MailMerge().setProjectColumns(true).setStreaming(true).merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), STREAMED_FILE);
+        assertEquals(extractText(RESULT_FILE), extractText(STREAMED_FILE));
+    }
+
+    @Test
+    void testFragmentCache() throws Exception {
+        File cacheDir = new File("build/MailMergeFragmentCache");
+        FileUtils.deleteDirectory(cacheDir);
+
+        new MailMerge().merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), RESULT_FILE);
+        String expected = extractText(RESULT_FILE);
+
+        // the second run takes all rows from the cache
+        for (int i = 0; i < 2; i++) {
+            List<MergeStatistics> results = new ArrayList<>();
+            new MailMerge().setFragmentCache(cacheDir).setListener(results::add).
+                    merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), STREAMED_FILE);
+            assertEquals(expected, extractText(STREAMED_FILE));
+            assertEquals(5, results.get(0).getRows());
+            assertEquals(STREAMED_FILE.length(), results.get(0).getBytesWritten());
+        }
+
+        assertEquals(1, cacheDir.list().length);
+    }
+
+    @Test
+    void testStreamingCSV() throws Exception {
+        new MailMerge().setStreaming(true).merge(new File("samples/Template.docx"), new File("samples/Lines.csv"), STREAMED_FILE);
+
+        String text = extractText(STREAMED_FILE);
+        assertTrue(text.contains("Fred Astaire"), "Had: " + text);
+    }
+
+    @Test
+    void testStreamingIncludeIndicatorNoSuchColumn() {
+        assertTrue(!STREAMED_FILE.exists() || STREAMED_FILE.delete());
+
+        System.setProperty("org.dstadler.poi.mailmerge.includeindicator", "Include");
+        try {
+            assertThrows(IllegalStateException.class,
+                    () -> new MailMerge().setStreaming(true).merge(new File("samples/Template.docx"), new File("samples/Lines.csv"), STREAMED_FILE));
+
+            // ensure the result file is not written now
+            assertFalse(STREAMED_FILE.exists());
+        } finally {
+            System.clearProperty("org.dstadler.poi.mailmerge.includeindicator");
+        }
+    }
+
+    @Test
+    void testParallel() throws Exception {
+        new MailMerge().merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), RESULT_FILE);
+        new MailMerge().setStreaming(true).setRenderThreads(3).merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), STREAMED_FILE);
+
+        assertEquals(extractText(RESULT_FILE), extractText(STREAMED_FILE));
+    }
+
+    @Test
+    void testPipelined() throws Exception {
+        new MailMerge().merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), RESULT_FILE);
+
+        List<MergeStatistics> results = new ArrayList<>();
+        new MailMerge().setPipelined(true).setRenderThreads(2).setListener(results::add).
+                merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), STREAMED_FILE);
+
+        assertEquals(extractText(RESULT_FILE), extractText(STREAMED_FILE));
+        assertEquals(5, results.get(0).getRows());
+    }
+
+    @Test
+    void testCompression() throws Exception {
+        new MailMerge().setStreaming(true).merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), RESULT_FILE);
+        String expected = extractText(RESULT_FILE);
+        long size = RESULT_FILE.length();
+
+        new MailMerge().setCompressionLevel(Deflater.NO_COMPRESSION).
+                merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), STREAMED_FILE);
+        assertEquals(expected, extractText(STREAMED_FILE));
+        assertTrue(STREAMED_FILE.length() > size, "Had " + STREAMED_FILE.length() + " and " + size);
+
+        new MailMerge().setCompressionLevel(Deflater.BEST_COMPRESSION).setCompressThreads(2).
+                merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), STREAMED_FILE);
+        assertEquals(expected, extractText(STREAMED_FILE));
+
+        assertThrows(IllegalArgumentException.class, () -> new MailMerge().setCompressionLevel(10));
+        assertThrows(IllegalArgumentException.class, () -> new MailMerge().setCompressThreads(0));
+    }
+
+    @Test
+    void testInvalidRenderThreads() {
+        assertThrows(IllegalArgumentException.class, () -> new MailMerge().setRenderThreads(0));
+    }
+
+    @Test
+    void testSplitDirectory() throws Exception {
+        File dir = new File("build/split");
+        FileUtils.deleteDirectory(dir);
+
+        new MailMerge().setSplitPattern("Letter ${Name}").setRenderThreads(2).
+                merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), dir);
+
+        String[] files = dir.list();
+        assertNotNull(files);
+        Arrays.sort(files);
+        assertEquals("[Letter Fred Astaire.docx, Letter Ginger Rogers.docx, Letter Louie Austen.docx, " +
+                "Letter Marie Curie.docx, Letter Some special char &.docx]", Arrays.toString(files));
+
+        String text = extractText(new File(dir, "Letter Marie Curie.docx"));
+        assertTrue(text.contains("Marie Curie"), "Had: " + text);
+        assertFalse(text.contains("Ginger Rogers"), "Had: " + text);
+    }
+
+    @Test
+    void testSplitZip() throws Exception {
+        File zip = new File("build/split.zip");
+        assertTrue(!zip.exists() || zip.delete());
+
+        new MailMerge().setSplitPattern("${City}.docx").
+                merge(new File("samples/Template.docx"), new File("samples/Lines.csv"), zip);
+
+        List<String> names = new ArrayList<>();
+        try (ZipFile file = new ZipFile(zip)) {
+            Enumeration<? extends ZipEntry> entries = file.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                names.add(entry.getName());
+
+                try (InputStream stream = file.getInputStream(entry);
+                     XWPFDocument doc = new XWPFDocument(stream)) {
+                    assertFalse(doc.getParagraphs().isEmpty());
+                }
+            }
+        }
+
+        // the same city is used twice, so a unique name is generated, invalid characters are replaced
+        assertEquals("[New York.docx, New York-2.docx, City.docx, W_ß_.docx]", names.toString());
+    }
+
+    @Test
+    void testRollover() throws Exception {
+        File dir = new File("build/rollover");
+        FileUtils.deleteDirectory(dir);
+        assertTrue(dir.mkdirs());
+
+        new MailMerge().setRolloverRows(2).
+                merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), new File(dir, "Result.docx"));
+
+        String[] files = dir.list();
+        assertNotNull(files);
+        Arrays.sort(files);
+        assertEquals("[Result-0001.docx, Result-0002.docx, Result-0003.docx]", Arrays.toString(files));
+
+        String text = extractText(new File(dir, "Result-0001.docx"));
+        assertTrue(text.contains("Ginger Rogers"), "Had: " + text);
+        assertTrue(text.contains("Fred Astaire"), "Had: " + text);
+        assertFalse(text.contains("Louie Austen"), "Had: " + text);
+    }
+
+    @Test
+    void testStatistics() throws Exception {
+        List<MergeStatistics> results = new ArrayList<>();
+        new MailMerge().setListener(results::add).
+                merge(new File("samples/Template.docx"), new File("samples/Lines.csv"), RESULT_FILE);
+
+        assertEquals(1, results.size());
+        MergeStatistics statistics = results.get(0);
+        assertEquals(4, statistics.getRows());
+        assertEquals(1, statistics.getSkippedRows(), "The empty line is skipped");
+        assertEquals(RESULT_FILE.length(), statistics.getBytesWritten());
+        assertTrue(statistics.getRowsPerSecond() > 0);
+        assertTrue(statistics.getPeakHeap() > 0);
+        assertTrue(statistics.getTemplateLoadTime().toNanos() > 0);
+        assertTrue(statistics.getBodyRebuildTime().toNanos() > 0);
+        assertTrue(statistics.getWriteTime().toNanos() > 0);
+        assertTrue(statistics.getTotalTime().compareTo(statistics.getWriteTime()) >= 0);
+    }
+
+    @Test
+    void testStatisticsStreaming() throws Exception {
+        List<MergeStatistics> results = new ArrayList<>();
+        new MailMerge().setStreaming(true).setLogRows(true).setListener(results::add).
+                merge(new File("samples/Template.docx"), new File("samples/Lines.xlsx"), STREAMED_FILE);
+
+        MergeStatistics statistics = results.get(0);
+        assertEquals(STREAMED_FILE.length(), statistics.getBytesWritten());
+        assertEquals(0, statistics.getBodyRebuildTime().toNanos());
+        assertTrue(statistics.getRows() > 0);
+        assertTrue(statistics.getReadTime().toNanos() > 0);
+        assertTrue(statistics.toString().contains(statistics.getRows() + " rows"), "Had: " + statistics);
+    }
+
+    @Test
+    void testFilter() throws Exception {
+        List<MergeStatistics> results = new ArrayList<>();
+        new MailMerge().setFilter("City == \"New York\"").setStreaming(true).setListener(results::add).
+                merge(new File("samples/Template.docx"), new File("samples/Lines.csv"), STREAMED_FILE);
+
+        assertEquals(2, results.get(0).getRows());
+        assertEquals(3, results.get(0).getSkippedRows());
+
+        String text = extractText(STREAMED_FILE);
+        assertTrue(text.contains("Fred Astaire"), "Had: " + text);
+        assertFalse(text.contains("Some other"), "Had: " + text);
+    }
+
+    @Test
+    void testLookup() throws Exception {
+        File countries = new File("build/Cities.csv");
+        FileUtils.writeStringToFile(countries, "City,Country\nNew York,US\nWien,AT\n", StandardCharsets.UTF_8);
+
+        List<MergeStatistics> results = new ArrayList<>();
+        new MailMerge().addLookup("cities", countries, null, "City", "City").
+                setFilter("cities.Country == \"US\"").setStreaming(true).setListener(results::add).
+                merge(new File("samples/Template.docx"), new File("samples/Lines.csv"), STREAMED_FILE);
+
+        assertEquals(2, results.get(0).getRows());
+        assertEquals(3, results.get(0).getSkippedRows());
+
+        String text = extractText(STREAMED_FILE);
+        assertTrue(text.contains("Fred Astaire"), "Had: " + text);
+        assertFalse(text.contains("Some other"), "Had: " + text);
+    }
+
+    @Test
+    void testLookupNoSuchColumn() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new MailMerge().addLookup("orders", new File("samples/Lines.csv"), null, "Country", "Name").
+                        merge(new File("samples/Template.docx"), new File("samples/Lines.csv"), RESULT_FILE));
+        assertFalse(RESULT_FILE.exists());
+    }
+
+    @Test
+    void testFilterNoSuchColumn() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new MailMerge().setFilter("Country == \"AT\"").
+                        merge(new File("samples/Template.docx"), new File("samples/Lines.csv"), RESULT_FILE));
+        assertFalse(RESULT_FILE.exists());
+    }
+
+    @Test
+    void testImages() throws Exception {
+        File dir = new File("build/MailMergeImages");
+        FileUtils.deleteDirectory(dir);
+        assertTrue(dir.mkdirs());
+
+        ImageCacheTest.writeImage(dir, "red.png", "png", 40, 20, Color.RED);
+        ImageCacheTest.writeImage(dir, "blue.jpg", "jpeg", 30, 60, Color.BLUE);
+
+        // relative paths are resolved against the directory of the data-file
+        StringBuilder csv = new StringBuilder("Name,Logo\n");
+        for (int i = 0; i < 100; i++) {
+            csv.append("Name ").append(i).append(",").append(i % 10 == 9 ? "" : i % 2 == 0 ? "red.png" : "blue.jpg").append("\n");
+        }
+        csv.append("Missing,missing.png\n");
+        File data = new File(dir, "Logos.csv");
+        FileUtils.writeStringToFile(data, csv.toString(), StandardCharsets.UTF_8);
+
+        File template = new File(dir, "Template.docx");
+        try (XWPFDocument doc = new XWPFDocument()) {
+            XWPFRun run = doc.createParagraph().createRun();
+            run.setText("${Name}: ");
+            run.setText("${image:Logo}", 1);
+            try (OutputStream out = new FileOutputStream(template)) {
+                doc.write(out);
+            }
+        }
+
+        new MailMerge().merge(template, data, RESULT_FILE);
+        assertPictures(RESULT_FILE, 90);
+
+        new MailMerge().setStreaming(true).merge(template, data, STREAMED_FILE);
+        assertPictures(STREAMED_FILE, 90);
+
+        // the rows are kept in memory or exceed the budget and are streamed
+        File inMemory = new File(dir, "InMemory.docx");
+        new MailMerge().setMemoryBudget(1024 * 1024).merge(template, data, inMemory);
+        assertPictures(inMemory, 90);
+        new MailMerge().setMemoryBudget(20_000).merge(template, data, STREAMED_FILE);
+        assertPictures(STREAMED_FILE, 90);
+        assertEquals(extractText(inMemory), extractText(STREAMED_FILE));
+
+        new MailMerge().setCompressThreads(2).setPipelined(true).merge(template, data, STREAMED_FILE);
+        assertPictures(STREAMED_FILE, 90);
+
+        new MailMerge().setRolloverRows(60).merge(template, data, new File(dir, "Result.docx"));
+        assertPictures(new File(dir, "Result-0001.docx"), 54);
+        assertPictures(new File(dir, "Result-0002.docx"), 36);
+
+        // each document only contains the pictures which are used by its rows
+        File few = new File(dir, "Few.csv");
+        FileUtils.writeStringToFile(few, "Name,Logo\nRed,red.png\nBlue,blue.jpg\nNone,\n", StandardCharsets.UTF_8);
+        new MailMerge().setRolloverRows(1).merge(template, few, new File(dir, "Few.docx"));
+        assertPictureParts(new File(dir, "Few-0001.docx"), "png");
+        assertPictureParts(new File(dir, "Few-0002.docx"), "jpeg");
+        assertPictureParts(new File(dir, "Few-0003.docx"));
+
+        new MailMerge().setSplitPattern("${Name}").merge(template, data, new File(dir, "split"));
+        assertPictures(new File(dir, "split/Name 0.docx"), 1);
+        assertPictures(new File(dir, "split/Name 9.docx"), 0);
+        assertPictures(new File(dir, "split/Missing.docx"), 0);
+    }
+
+    private static void assertPictureParts(File file, String... expected) throws IOException {
+        try (InputStream stream = new FileInputStream(file);
+             XWPFDocument doc = new XWPFDocument(stream)) {
+            List<String> types = new ArrayList<>();
+            for (XWPFPictureData picture : doc.getAllPictures()) {
+                types.add(picture.suggestFileExtension());
+            }
+            assertEquals(Arrays.asList(expected), types, "Pictures in " + file);
+        }
+    }
+
+    private static void assertPictures(File file, int expected) throws IOException {
+        try (InputStream stream = new FileInputStream(file);
+             XWPFDocument doc = new XWPFDocument(stream)) {
+            int pictures = 0;
+            Set<String> data = new HashSet<>();
+            for (XWPFParagraph paragraph : doc.getParagraphs()) {
+                for (XWPFRun run : paragraph.getRuns()) {
+                    for (XWPFPicture picture : run.getEmbeddedPictures()) {
+                        assertNotNull(picture.getPictureData(), "Missing picture in " + file);
+                        data.add(picture.getPictureData().getFileName());
+                        pictures++;
+                    }
+                }
+            }
+
+            assertEquals(expected, pictures, "In " + file);
+
+            // each distinct image is stored only once, all of them are used in the single documents
+            if (expected > 1) {
+                assertEquals(2, data.size(), "In " + file);
+            }
+            assertTrue(doc.getAllPictures().size() <= 2, "In " + file + ": " + doc.getAllPictures());
+
+            String text = new XWPFWordExtractor(doc).getText();
+            assertFalse(text.contains("${"), "Had: " + text);
+        }
+    }
+
+    @Test
+    void testGroupBy() throws Exception {
+        File dir = new File("build/MailMergeGroups");
+        FileUtils.deleteDirectory(dir);
+        assertTrue(dir.mkdirs());
+
+        // the line-items of the invoices are not sorted
+        StringBuilder csv = new StringBuilder("Invoice,Customer,Item,Amount\n");
+        for (int i = 0; i < 100; i++) {
+            csv.append("INV-").append(i % 7).append(",Customer ").append(i % 7).append(",Item ").append(i).append(",").append(i * 10).append("\n");
+        }
+        File data = new File(dir, "Items.csv");
+        FileUtils.writeStringToFile(data, csv.toString(), StandardCharsets.UTF_8);
+
+        File template = new File(dir, "Invoice.docx");
+        try (XWPFDocument doc = new XWPFDocument()) {
+            doc.createParagraph().createRun().setText("Invoice ${Invoice} for ${Customer}");
+            XWPFTable table = doc.createTable(2, 2);
+            table.getRow(0).getCell(0).setText("Item");
+            table.getRow(0).getCell(1).setText("Amount");
+            table.getRow(1).getCell(0).setText("${repeat}${Item}");
+            table.getRow(1).getCell(1).setText("${Amount}");
+            try (OutputStream out = new FileOutputStream(template)) {
+                doc.write(out);
+            }
+        }
+
+        // the repeat-marker is not reported as unknown marker
+        List<String> warnings = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                    warnings.add(record.getMessage());
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(CompiledTemplate.class.getName());
+        logger.addHandler(handler);
+        try {
+            new MailMerge().setGroupBy("Invoice").merge(template, data, RESULT_FILE);
+            assertGroups(RESULT_FILE);
+
+            new MailMerge().setGroupBy("Invoice").setStreaming(true).setProjectColumns(true).merge(template, data, STREAMED_FILE);
+            assertGroups(STREAMED_FILE);
+        } finally {
+            logger.removeHandler(handler);
+        }
+        assertEquals(List.of(), warnings);
+        assertEquals(extractText(RESULT_FILE), extractText(STREAMED_FILE));
+
+        new MailMerge().setGroupBy("Invoice").setMemoryBudget(0).merge(template, data, STREAMED_FILE);
+        assertGroups(STREAMED_FILE);
+
+        // each document contains complete groups
+        new MailMerge().setGroupBy("Invoice").setRolloverRows(4).merge(template, data, new File(dir, "Result.docx"));
+        assertTrue(new File(dir, "Result-0002.docx").exists());
+        assertFalse(new File(dir, "Result-0003.docx").exists());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new MailMerge().setGroupBy("Order").merge(template, data, STREAMED_FILE));
+        assertThrows(IllegalStateException.class,
+                () -> new MailMerge().setGroupBy("Invoice").setSplitPattern("${Invoice}.docx").merge(template, data, dir));
+    }
+
+    private static void assertGroups(File file) throws IOException {
+        try (InputStream stream = new FileInputStream(file);
+             XWPFDocument doc = new XWPFDocument(stream)) {
+            List<XWPFTable> tables = doc.getTables();
+            assertEquals(7, tables.size(), "In " + file);
+
+            // one table per invoice in the order of the first line-item, with one row per line-item
+            for (int i = 0; i < tables.size(); i++) {
+                XWPFTable table = tables.get(i);
+                assertEquals(1 + (i < 2 ? 15 : 14), table.getNumberOfRows(), "In " + file);
+                assertEquals("Item " + i, table.getRow(1).getCell(0).getText());
+                assertEquals("Item " + (i + 7), table.getRow(2).getCell(0).getText());
+                assertEquals(Integer.toString((i + 7) * 10), table.getRow(2).getCell(1).getText());
+            }
+
+            String text = new XWPFWordExtractor(doc).getText();
+            assertTrue(text.contains("Invoice INV-3 for Customer 3"), "Had: " + text);
+            assertFalse(text.contains("${"), "Had: " + text);
+        }
+    }
+
+    @Test
+    void testInvalidListener() {
+        assertThrows(NullPointerException.class,
+                () -> new MailMerge().setListener(null));
+    }
+
+    private static String extractText(File file) throws IOException {
+        try (InputStream stream = new FileInputStream(file);
+             XWPFDocument doc = new XWPFDocument(stream);
+             XWPFWordExtractor extractor = new XWPFWordExtractor(doc)) {
+            return extractor.getText();
+        }
+    }
 }
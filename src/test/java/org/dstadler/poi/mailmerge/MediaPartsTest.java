@@ -0,0 +1,115 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.poi.util.Units;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MediaPartsTest {
+    private static final File DIR = new File("build/MediaParts");
+
+    private static final String RELATIONSHIPS = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" +
+            "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">" +
+            "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/styles\" " +
+            "Target=\"styles.xml\"/></Relationships>";
+    private static final String CONTENT_TYPES = "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">" +
+            "<Default Extension=\"xml\" ContentType=\"application/xml\"/>" +
+            "<Default Extension=\"PNG\" ContentType=\"image/png\"/></Types>";
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileUtils.deleteDirectory(DIR);
+        assertTrue(DIR.mkdirs());
+    }
+
+    @Test
+    void testRender() throws IOException {
+        ImageCacheTest.writeImage(DIR, "logo.png", "png", 40, 20, Color.RED);
+        FileUtils.copyFile(new File(DIR, "logo.png"), new File(DIR, "copy.png"));
+
+        ImageCache cache = new ImageCache(DIR);
+        MediaParts media = new MediaParts(cache);
+
+        StringBuilder out = new StringBuilder();
+        media.render("logo.png", "w:", out);
+        media.render("copy.png", "w:", out);
+        media.render("missing.png", "w:", out);
+
+        // both paths reference the same part
+        List<ImageCache.Image> images = media.getImages();
+        assertEquals(1, images.size());
+        assertEquals(2, media.getDrawings());
+
+        String id = MediaParts.relationshipId(images.get(0));
+        String xml = out.toString();
+        assertTrue(xml.startsWith("</w:t><w:drawing>"), xml);
+        assertTrue(xml.endsWith("</w:drawing><w:t xml:space=\"preserve\">"), xml);
+        assertEquals(2, xml.split("r:embed=\"" + id + "\"").length - 1, xml);
+        assertTrue(xml.contains("<wp:extent cx=\"" + 40 * Units.EMU_PER_PIXEL + "\" cy=\"" + 20 * Units.EMU_PER_PIXEL + "\"/>"), xml);
+    }
+
+    @Test
+    void testRenderLargeImage() throws IOException {
+        ImageCacheTest.writeImage(DIR, "wide.png", "png", 2000, 100, Color.GREEN);
+
+        StringBuilder out = new StringBuilder();
+        new MediaParts(new ImageCache(DIR)).render("wide.png", "", out);
+
+        // scaled down to the width of a page
+        assertTrue(out.toString().contains("<wp:extent cx=\"" + MediaParts.MAX_WIDTH + "\" cy=\"" + MediaParts.MAX_WIDTH / 20 + "\"/>"), out.toString());
+        assertTrue(out.toString().startsWith("</t><drawing>"), out.toString());
+    }
+
+    @Test
+    void testWriteParts() throws IOException {
+        File logo = ImageCacheTest.writeImage(DIR, "logo.png", "png", 40, 20, Color.RED);
+        ImageCacheTest.writeImage(DIR, "photo.jpg", "jpeg", 30, 60, Color.BLUE);
+
+        MediaParts media = new MediaParts(new ImageCache(DIR));
+        media.render("logo.png", "w:", new StringBuilder());
+        media.render("photo.jpg", "w:", new StringBuilder());
+
+        Map<String, byte[]> parts = new LinkedHashMap<>();
+        media.writeParts("word/document.xml", RELATIONSHIPS, CONTENT_TYPES, parts::put);
+
+        assertEquals(4, parts.size());
+        ImageCache.Image image = new ImageCache(DIR).get("logo.png");
+        assertArrayEquals(Files.readAllBytes(logo.toPath()), parts.get("word/" + MediaParts.partName(image)));
+
+        String relationships = new String(parts.get("word/_rels/document.xml.rels"), StandardCharsets.UTF_8);
+        assertTrue(relationships.contains("Target=\"styles.xml\"/><Relationship Id=\"" + MediaParts.relationshipId(image) + "\""),
+                relationships);
+        assertTrue(relationships.endsWith("</Relationships>"), relationships);
+
+        // the existing extension is matched case-insensitive
+        String contentTypes = new String(parts.get("[Content_Types].xml"), StandardCharsets.UTF_8);
+        assertEquals(CONTENT_TYPES.replace("</Types>", "<Default Extension=\"jpeg\" ContentType=\"image/jpeg\"/></Types>"),
+                contentTypes);
+    }
+
+    @Test
+    void testNoRelationships() {
+        String relationships = MediaParts.addRelationships(null, List.of());
+        assertTrue(relationships.endsWith("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">" +
+                "</Relationships>"), relationships);
+    }
+
+    @Test
+    void testRelationshipsEntry() {
+        assertEquals("word/_rels/document.xml.rels", MediaParts.relationshipsEntry("word/document.xml"));
+        assertEquals("_rels/document2.xml.rels", MediaParts.relationshipsEntry("document2.xml"));
+    }
+}
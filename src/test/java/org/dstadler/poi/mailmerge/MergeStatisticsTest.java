@@ -0,0 +1,74 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class MergeStatisticsTest {
+    @Test
+    void testEmpty() {
+        MergeStatistics statistics = new MergeStatistics();
+        assertEquals(0, statistics.getRows());
+        assertEquals(0, statistics.getRowsPerSecond(), 0.001);
+        assertEquals(0, statistics.getTotalTime().toNanos());
+    }
+
+    @Test
+    void testRowsPerSecond() {
+        MergeStatistics statistics = new MergeStatistics();
+        statistics.rows = 500;
+        statistics.totalNanos = TimeUnit.MILLISECONDS.toNanos(250);
+
+        assertEquals(2000, statistics.getRowsPerSecond(), 0.001);
+        assertEquals(250, statistics.getTotalTime().toMillis());
+    }
+
+    @Test
+    void testStartFinish() {
+        MergeStatistics statistics = new MergeStatistics();
+        statistics.start();
+        statistics.finish();
+
+        assertTrue(statistics.getTotalTime().toNanos() > 0);
+        assertTrue(statistics.getPeakHeap() > 0);
+    }
+
+    @Test
+    void testConcurrent() throws InterruptedException {
+        MergeStatistics first = new MergeStatistics();
+        first.start();
+
+        // hold a large allocation for some samples, then release it
+        byte[] data = new byte[32 * 1024 * 1024];
+        Thread.sleep(100);
+        assertEquals(0, data[data.length - 1]);
+        //noinspection UnusedAssignment
+        data = null;
+        System.gc();
+
+        // starting and finishing another merge does not affect the peak of the first one
+        MergeStatistics second = new MergeStatistics();
+        second.start();
+        second.finish();
+        first.finish();
+
+        assertTrue(first.getPeakHeap() >= 32 * 1024 * 1024, "Had: " + first.getPeakHeap());
+        assertTrue(second.getPeakHeap() > 0);
+    }
+
+    @Test
+    void testToString() {
+        MergeStatistics statistics = new MergeStatistics();
+        statistics.rows = 3;
+        statistics.skippedRows = 1;
+        statistics.bytesWritten = 1234;
+        statistics.totalNanos = TimeUnit.SECONDS.toNanos(1);
+        statistics.writeNanos = TimeUnit.MILLISECONDS.toNanos(20);
+
+        assertEquals("Merged 3 rows (1 skipped) in 1000 ms, 3.0 rows/s, template 0 ms, read 0 ms, render 0 ms, " +
+                "rebuild 0 ms, write 20 ms, 1234 bytes written, peak heap 0 MB", statistics.toString());
+    }
+}
@@ -0,0 +1,119 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class ParallelCSVRowSourceTest {
+    private static final File CSV_FILE = new File("build/Parallel.csv");
+
+    @BeforeAll
+    static void setUpClass() {
+        assertTrue(new File("build").exists() || new File("build").mkdirs(), "Failed to create directory 'build'");
+    }
+
+    @Test
+    void testSameAsSequential() throws IOException {
+        StringBuilder csv = new StringBuilder("\nName, \"City\",Note\r\n");
+        for (int i = 0; i < 500; i++) {
+            csv.append("Name ").append(i).append(",");
+            switch (i % 5) {
+                case 0 -> csv.append("\"New\nYork\",\"with \"\"quotes\"\", and comma\"\n");
+                case 1 -> csv.append("  Wien  ,\"multi\r\nline\r\n\"  \r\n");
+                case 2 -> csv.append("Zürich,un\"quoted\n\n");
+                case 3 -> csv.append(",,\n");
+                default -> csv.append("Graz\n");
+            }
+        }
+        csv.append("Last,no,line-break");
+        Files.writeString(CSV_FILE.toPath(), csv, StandardCharsets.UTF_8);
+
+        // small chunks to split the file at many places
+        for (int chunkSize : new int[] { 1, 7, 64, 1000, ParallelCSVRowSource.DEFAULT_CHUNK_SIZE }) {
+            try (RowSource expected = new CSVRowSource(CSV_FILE, StandardCharsets.UTF_8);
+                 RowSource actual = new ParallelCSVRowSource(CSV_FILE, StandardCharsets.UTF_8, 3, chunkSize)) {
+                assertEquals(List.of("Name", "City", "Note"), actual.getHeaders());
+                assertEquals(expected.getHeaders(), actual.getHeaders());
+
+                List<List<String>> rows = readAll(actual);
+                assertEquals(readAll(expected), rows, "Chunk-size " + chunkSize);
+                assertEquals(501, rows.size());
+                assertEquals("New\nYork", rows.get(0).get(1));
+                assertEquals("Zürich", rows.get(2).get(1));
+                assertEquals("line-break", rows.get(500).get(2));
+            }
+        }
+    }
+
+    @Test
+    void testCharset() throws IOException {
+        Files.writeString(CSV_FILE.toPath(), "Name,City\nJürgen,Köln\n", StandardCharsets.ISO_8859_1);
+
+        try (RowSource source = RowSource.open(CSV_FILE, StandardCharsets.ISO_8859_1, 2)) {
+            assertInstanceOf(ParallelCSVRowSource.class, source);
+            assertEquals(List.of(List.of("Jürgen", "Köln")), readAll(source));
+        }
+    }
+
+    @Test
+    void testUnsupportedCharset() throws IOException {
+        assertTrue(ParallelCSVRowSource.isSupported(StandardCharsets.UTF_8));
+        assertTrue(ParallelCSVRowSource.isSupported(StandardCharsets.ISO_8859_1));
+        assertFalse(ParallelCSVRowSource.isSupported(StandardCharsets.UTF_16LE));
+        assertFalse(ParallelCSVRowSource.isSupported(Charset.forName("UTF-32")));
+
+        Files.writeString(CSV_FILE.toPath(), "Name,City\nJürgen,Köln\n", StandardCharsets.UTF_16);
+
+        // falls back to reading on one thread
+        try (RowSource source = RowSource.open(CSV_FILE, StandardCharsets.UTF_16, 2)) {
+            assertInstanceOf(CSVRowSource.class, source);
+            assertEquals(List.of(List.of("Jürgen", "Köln")), readAll(source));
+        }
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new ParallelCSVRowSource(CSV_FILE, StandardCharsets.UTF_16, 2, 100));
+    }
+
+    @Test
+    void testColumnsAndFilter() throws IOException {
+        try (RowSource source = RowSource.open(new File("samples/Lines.csv"), StandardCharsets.UTF_8, 2)) {
+            source.setColumns(List.of("Name"));
+            source.setFilter("City == \"New York\"");
+
+            List<List<String>> rows = readAll(source);
+            assertEquals(2, rows.size(), "Had: " + rows);
+            assertEquals("[Ginger Rogers, null, null, null, New York, null]", rows.get(0).toString());
+        }
+    }
+
+    @Test
+    void testEmptyFile() throws IOException {
+        Files.writeString(CSV_FILE.toPath(), "", StandardCharsets.UTF_8);
+
+        try (RowSource source = new ParallelCSVRowSource(CSV_FILE, StandardCharsets.UTF_8, 2, 100)) {
+            assertEquals(List.of(), source.getHeaders());
+            assertEquals(List.of(), readAll(source));
+        }
+    }
+
+    private static List<List<String>> readAll(RowSource source) {
+        List<List<String>> rows = new ArrayList<>();
+        for (List<String> row : source) {
+            rows.add(new ArrayList<>(row));
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,98 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class ParallelDeflateOutputStreamTest {
+    private static final File RESULT_FILE = new File("build/ParallelDeflate.docx");
+    private static final File EXPECTED_FILE = new File("build/ParallelDeflateExpected.docx");
+
+    private static TemplatePackage template;
+
+    @BeforeAll
+    static void setUpClass() throws IOException {
+        assertTrue(new File("build").exists() || new File("build").mkdirs(), "Failed to create directory 'build'");
+        template = TemplatePackage.load(new File("samples/Template.docx"));
+    }
+
+    @Test
+    void testSameAsSequential() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            body.append("<w:p><w:r><w:t>Row ").append(i).append(" with some repeated text</w:t></w:r></w:p>");
+        }
+        byte[] document = (template.getPrefix() + body + template.getSuffix()).getBytes(StandardCharsets.UTF_8);
+
+        try (StreamingDocxWriter writer = new StreamingDocxWriter(template, new FileOutputStream(EXPECTED_FILE))) {
+            writer.write(body);
+        }
+
+        // small blocks to split the document at many places, also within single write-calls
+        for (int blockSize : new int[] { 1, 1000, 64 * 1024, 10_000_000 }) {
+            SegmentedDocxWriter segments = new SegmentedDocxWriter(template, new FileOutputStream(RESULT_FILE), Deflater.BEST_SPEED);
+            try (segments) {
+                try (ParallelDeflateOutputStream out = new ParallelDeflateOutputStream(segments, Deflater.BEST_SPEED, 3, blockSize)) {
+                    out.write(document, 0, 10);
+                    out.write(document[10]);
+                    out.write(document, 11, document.length - 11);
+                }
+            }
+
+            assertEquals(document.length, segments.getDocumentBytes());
+            assertSameEntries();
+        }
+    }
+
+    @Test
+    void testStreamingDocxWriter() throws IOException {
+        String fragment = "<w:p><w:r><w:t>Some text</w:t></w:r></w:p>";
+        try (StreamingDocxWriter writer = new StreamingDocxWriter(template, new FileOutputStream(EXPECTED_FILE))) {
+            writer.write(fragment);
+        }
+
+        for (int level : new int[] { Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION }) {
+            for (int threads = 1; threads <= 2; threads++) {
+                try (StreamingDocxWriter writer = new StreamingDocxWriter(template, new FileOutputStream(RESULT_FILE), level, threads)) {
+                    writer.write(fragment);
+                    assertEquals(template.getPrefix().length() + fragment.length(), writer.getDocumentBytes());
+                }
+                assertSameEntries();
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new StreamingDocxWriter(template, new ByteArrayOutputStream(), 10, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new StreamingDocxWriter(template, new ByteArrayOutputStream(), Deflater.DEFAULT_COMPRESSION, 0));
+    }
+
+    private static void assertSameEntries() throws IOException {
+        try (ZipFile expected = new ZipFile(EXPECTED_FILE);
+             ZipFile actual = new ZipFile(RESULT_FILE)) {
+            assertEquals(expected.size(), actual.size());
+            for (ZipEntry entry : expected.stream().toList()) {
+                ZipEntry actualEntry = actual.getEntry(entry.getName());
+                try (InputStream expectedStream = expected.getInputStream(entry);
+                     InputStream actualStream = actual.getInputStream(actualEntry)) {
+                    assertTrue(IOUtils.contentEquals(expectedStream, actualStream), "Entry " + entry.getName());
+                }
+                assertEquals(entry.getCrc(), actualEntry.getCrc(), "Entry " + entry.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ParallelRendererTest {
+    private static final CompiledTemplate TEMPLATE = CompiledTemplate.compile("<p>${Nr}</p>", Collections.singletonList("Nr"));
+
+    @Test
+    void testKeepsOrder() throws IOException {
+        List<List<String>> rows = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            rows.add(Collections.singletonList(Integer.toString(i)));
+            expected.append("<p>").append(i).append("</p>");
+        }
+
+        StringBuilder result = new StringBuilder();
+        try (ParallelRenderer renderer = new ParallelRenderer(TEMPLATE, 4)) {
+            renderer.render(rows, result::append);
+        }
+
+        assertEquals(expected.toString(), result.toString());
+    }
+
+    @Test
+    void testNoRows() throws IOException {
+        StringBuilder result = new StringBuilder();
+        try (ParallelRenderer renderer = new ParallelRenderer(TEMPLATE, 2)) {
+            renderer.render(Collections.emptyList(), result::append);
+        }
+
+        assertEquals("", result.toString());
+    }
+
+    @Test
+    void testConsumerFails() {
+        try (ParallelRenderer renderer = new ParallelRenderer(TEMPLATE, 2)) {
+            assertThrows(IOException.class, () -> renderer.render(
+                    Arrays.asList(Collections.singletonList("1"), Collections.singletonList("2")),
+                    fragment -> {
+                        throw new IOException("failing");
+                    }));
+        }
+    }
+
+    @Test
+    void testInvalidThreads() {
+        assertThrows(IllegalArgumentException.class, () -> new ParallelRenderer(TEMPLATE, 0));
+    }
+}
@@ -0,0 +1,124 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class PipelinedRendererTest {
+    private static final CompiledTemplate TEMPLATE = CompiledTemplate.compile("<p>${Nr}</p>", Collections.singletonList("Nr"));
+
+    @Test
+    void testKeepsOrder() throws IOException {
+        List<List<String>> rows = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            rows.add(Collections.singletonList(Integer.toString(i)));
+            expected.append("<p>").append(i).append("</p>");
+        }
+
+        for (int threads = 1; threads <= 4; threads++) {
+            StringBuilder result = new StringBuilder();
+            try (PipelinedRenderer renderer = new PipelinedRenderer(TEMPLATE, threads, 2)) {
+                renderer.render(rows, result::append);
+                assertTrue(renderer.getRenderNanos() > 0);
+            }
+
+            assertEquals(expected.toString(), result.toString());
+        }
+    }
+
+    @Test
+    void testBoundedQueue() throws IOException {
+        AtomicInteger read = new AtomicInteger();
+        Iterable<List<String>> rows = () -> new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return read.get() < 100_000;
+            }
+
+            @Override
+            public List<String> next() {
+                return Collections.singletonList(Integer.toString(read.incrementAndGet()));
+            }
+        };
+
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger maxAhead = new AtomicInteger();
+        try (PipelinedRenderer renderer = new PipelinedRenderer(TEMPLATE, 2, 3)) {
+            renderer.render(rows, fragment -> {
+                written.incrementAndGet();
+                maxAhead.accumulateAndGet(read.get() - written.get(), Math::max);
+            });
+        }
+
+        assertEquals(100_000, written.get());
+
+        // queued batches, one batch which is written and one which is read
+        assertTrue(maxAhead.get() <= 5 * PipelinedRenderer.BATCH_SIZE, "Had: " + maxAhead.get());
+    }
+
+    @Test
+    void testNoRows() throws IOException {
+        StringBuilder result = new StringBuilder();
+        try (PipelinedRenderer renderer = new PipelinedRenderer(TEMPLATE, 2, 2)) {
+            renderer.render(Collections.emptyList(), result::append);
+        }
+
+        assertEquals("", result.toString());
+    }
+
+    @Test
+    void testConsumerFails() throws IOException {
+        List<List<String>> rows = Collections.nCopies(10_000, Collections.singletonList("1"));
+        try (PipelinedRenderer renderer = new PipelinedRenderer(TEMPLATE, 2, 1)) {
+            assertThrows(IOException.class, () -> renderer.render(rows,
+                    fragment -> {
+                        throw new IOException("failing");
+                    }));
+        }
+    }
+
+    @Test
+    void testReadingFails() throws IOException {
+        Iterable<List<String>> rows = () -> new Iterator<>() {
+            private int count;
+
+            @Override
+            public boolean hasNext() {
+                if (count == 1000) {
+                    throw new UncheckedIOException(new IOException("failing"));
+                }
+                return true;
+            }
+
+            @Override
+            public List<String> next() {
+                return Collections.singletonList(Integer.toString(count++));
+            }
+        };
+
+        AtomicInteger written = new AtomicInteger();
+        try (PipelinedRenderer renderer = new PipelinedRenderer(TEMPLATE, 2, 2)) {
+            assertThrows(UncheckedIOException.class, () -> renderer.render(rows, fragment -> written.incrementAndGet()));
+        }
+
+        // the complete batches which were read before are still written
+        assertEquals(1000 / PipelinedRenderer.BATCH_SIZE * PipelinedRenderer.BATCH_SIZE, written.get());
+    }
+
+    @Test
+    void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new PipelinedRenderer(TEMPLATE, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new PipelinedRenderer(TEMPLATE, 1, 0));
+    }
+}
@@ -0,0 +1,115 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class RowFilterTest {
+    private static final List<String> HEADERS = Arrays.asList("Country", "Amount", "Full Name", "Include", null);
+
+    private static final List<String> ROW = Arrays.asList("AT", "150", "Joe Doe", "true", null);
+
+    @Test
+    void testComparisons() {
+        assertTrue(matches("Country == \"AT\""));
+        assertTrue(matches("Country == 'AT'"));
+        assertFalse(matches("Country != \"AT\""));
+        assertTrue(matches("Country < \"DE\""));
+        assertTrue(matches("Amount > 100"));
+        assertTrue(matches("Amount >= 150"));
+        assertTrue(matches("Amount <= 150.0"));
+        assertFalse(matches("Amount < 150"));
+        assertTrue(matches("Amount > -1"));
+        assertTrue(matches("${Full Name} == \"Joe Doe\""));
+    }
+
+    @Test
+    void testNumbersAreComparedNumerically() {
+        // as text "150" would be smaller than "9"
+        assertTrue(matches("Amount > 9"));
+
+        // text never matches a number
+        assertFalse(matches("Country > 1"));
+        assertFalse(matches("Country == 1"));
+        assertTrue(matches("Country != 1"));
+    }
+
+    @Test
+    void testFormattedNumbers() {
+        // values of Excel-files are read as formatted
+        RowFilter filter = RowFilter.compile("Amount > 100", HEADERS);
+        for (String amount : new String[] { "1,234.50", "€ 120", "120 €", "$1,000", "150%", "100.5" }) {
+            assertTrue(filter.matches(Arrays.asList("AT", amount)), amount);
+        }
+        for (String amount : new String[] { "(1,234.50)", "12%", "€\u00A0100", "1,23", "EUR 120", "1,234,56.7", "", "€" }) {
+            assertFalse(filter.matches(Arrays.asList("AT", amount)), amount);
+        }
+
+        assertEquals(-1234.5, RowFilter.toNumber("(1,234.50)"), 0.001);
+        assertEquals(12, RowFilter.toNumber("12%"), 0.001);
+        assertEquals(-5000, RowFilter.toNumber("-€5,000"), 0.001);
+        assertEquals(1234567.5, RowFilter.toNumber("1\u00A0234\u00A0567.5"), 0.001);
+
+        // two formatted values are compared as numbers as well, as text "10.00 €" would be smaller
+        assertTrue(RowFilter.compile("Amount > Country", HEADERS).matches(Arrays.asList("9.50", "10.00 €")));
+    }
+
+    @Test
+    void testLogic() {
+        assertTrue(matches("Country == \"AT\" && Amount > 100"));
+        assertFalse(matches("Country == \"DE\" && Amount > 100"));
+        assertTrue(matches("Country == \"DE\" || Amount > 100"));
+        assertTrue(matches("!(Country == \"DE\")"));
+        assertFalse(matches("!Country == \"AT\""));
+        assertTrue(matches("Country == \"DE\" && Amount > 100 || Include"));
+        assertFalse(matches("Country == \"DE\" && (Amount > 100 || Include)"));
+    }
+
+    @Test
+    void testIndicatorColumn() {
+        assertTrue(matches("Include"));
+        assertFalse(matches("Country"));
+        assertFalse(matches("!Include"));
+    }
+
+    @Test
+    void testNullValue() {
+        assertTrue(RowFilter.compile("Country == \"\"", HEADERS).matches(Arrays.asList(null, "1")));
+        assertFalse(RowFilter.compile("Amount > 1", HEADERS).matches(Arrays.asList("AT", null)));
+        assertFalse(RowFilter.compile("Include", HEADERS).matches(Arrays.asList("AT", null)));
+    }
+
+    @Test
+    void testToString() {
+        assertEquals("Amount > 1", RowFilter.compile("Amount > 1", HEADERS).toString());
+    }
+
+    @Test
+    void testInvalid() {
+        assertInvalid("");
+        assertInvalid("Other == 1");
+        assertInvalid("Country ==");
+        assertInvalid("Country == \"AT");
+        assertInvalid("(Country == \"AT\"");
+        assertInvalid("Country == \"AT\")");
+        assertInvalid("Country = \"AT\"");
+        assertInvalid("\"AT\"");
+        assertInvalid("${Country");
+        assertInvalid("Amount > 1.2.3");
+    }
+
+    private static boolean matches(String expression) {
+        return RowFilter.compile(expression, HEADERS).matches(ROW);
+    }
+
+    private static void assertInvalid(String expression) {
+        assertThrows(IllegalArgumentException.class,
+                () -> RowFilter.compile(expression, HEADERS), expression);
+    }
+}
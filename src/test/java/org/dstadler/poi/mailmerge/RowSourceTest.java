@@ -0,0 +1,116 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class RowSourceTest {
+    @Test
+    void testReadExcel() throws Exception {
+        try (RowSource source = RowSource.open(new File("samples/Lines.xlsx"))) {
+            assertEquals("[Name, Organisation, Address, Zip, City, Salutation, Include, Date, , , , , , , , , , null]",
+                    source.getHeaders().toString());
+            assertEquals(5, readAll(source).size());
+        }
+    }
+
+    @Test
+    void testReadCSV() throws Exception {
+        try (RowSource source = RowSource.open(new File("samples/Lines.csv"))) {
+            assertEquals("[Name, Organisation, Address, Zip, City, Salutation]", source.getHeaders().toString());
+
+            List<List<String>> rows = readAll(source);
+            assertEquals(4, rows.size());
+            assertEquals("Ginger Rogers", rows.get(0).get(0));
+        }
+    }
+
+    @Test
+    void testRowIsReused() throws Exception {
+        try (RowSource source = RowSource.open(new File("samples/Lines.csv"))) {
+            Iterator<List<String>> it = source.iterator();
+            List<String> first = it.next();
+            String name = first.get(0);
+
+            assertSame(first, it.next());
+            assertEquals(6, first.size());
+            assertEquals("Ginger Rogers", name);
+        }
+    }
+
+    @Test
+    void testIncludeIndicator() throws Exception {
+        try (RowSource source = RowSource.open(new File("samples/Lines.xlsx"))) {
+            source.setIncludeIndicator("Include");
+
+            List<List<String>> rows = readAll(source);
+            assertEquals(2, rows.size(), "Had: " + rows);
+        }
+    }
+
+    @Test
+    void testIncludeIndicatorNoSuchColumn() throws Exception {
+        try (RowSource source = RowSource.open(new File("samples/Lines.csv"))) {
+            assertThrows(IllegalStateException.class, () -> source.setIncludeIndicator("Include"));
+        }
+    }
+
+    @Test
+    void testColumns() throws Exception {
+        try (RowSource source = RowSource.open(new File("samples/Lines.csv"))) {
+            source.setColumns(List.of("Name", "Unknown"));
+            source.setFilter("Zip > 10010");
+
+            // the columns of the filter are read as well
+            List<List<String>> rows = readAll(source);
+            assertEquals(1, rows.size(), "Had: " + rows);
+            assertEquals(Arrays.asList("Fred Astaire", null, null, "10014", null, null), rows.get(0));
+        }
+    }
+
+    @Test
+    void testColumnsExcel() throws Exception {
+        try (RowSource source = new ExcelRowSource(new File("samples/Lines.xlsx"))) {
+            source.setColumns(List.of("City"));
+            source.setIncludeIndicator("Include");
+
+            List<List<String>> rows = readAll(source);
+            assertEquals(2, rows.size(), "Had: " + rows);
+            assertEquals(Arrays.asList(null, null, null, null, "New York", null, "1"), rows.get(0).subList(0, 7));
+        }
+    }
+
+    @Test
+    void testColumnsAfterReading() throws Exception {
+        try (RowSource source = RowSource.open(new File("samples/Lines.csv"))) {
+            readAll(source);
+
+            assertThrows(IllegalStateException.class, () -> source.setColumns(List.of("Name")));
+        }
+    }
+
+    @Test
+    void testIterateOnlyOnce() throws Exception {
+        try (RowSource source = RowSource.open(new File("samples/Lines.csv"))) {
+            readAll(source);
+
+            assertThrows(IllegalStateException.class, source::iterator);
+        }
+    }
+
+    private static List<List<String>> readAll(RowSource source) {
+        List<List<String>> rows = new ArrayList<>();
+        for (List<String> row : source) {
+            rows.add(new ArrayList<>(row));
+        }
+        return rows;
+    }
+}
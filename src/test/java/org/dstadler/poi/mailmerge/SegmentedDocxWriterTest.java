@@ -0,0 +1,71 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+
+class SegmentedDocxWriterTest {
+    private static final File RESULT_FILE = new File("build/Segmented.docx");
+
+    @Test
+    void testReadWithZipInputStream() throws IOException {
+        TemplatePackage template = TemplatePackage.load(new File("samples/Template.docx"));
+        String document = template.getPrefix() + "<w:p/>" + template.getSuffix();
+
+        try (SegmentedDocxWriter writer = new SegmentedDocxWriter(template, new FileOutputStream(RESULT_FILE),
+                Deflater.DEFAULT_COMPRESSION)) {
+            writer.write(segment(template.getPrefix()));
+            writer.write(segment("<w:p/>"));
+            writer.write(segment(template.getSuffix()));
+        }
+
+        // the data-descriptor of the main document needs to match the local header for streaming readers
+        int entries = 0;
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(RESULT_FILE))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                byte[] bytes = in.readAllBytes();
+                if (entry.getName().equals(template.getDocumentEntry())) {
+                    assertEquals(document, new String(bytes, StandardCharsets.UTF_8));
+                }
+                entries++;
+            }
+        }
+
+        try (ZipFile zip = new ZipFile(RESULT_FILE)) {
+            assertEquals(entries, zip.size());
+            assertEquals(document.getBytes(StandardCharsets.UTF_8).length,
+                    zip.getEntry(template.getDocumentEntry()).getSize());
+        }
+    }
+
+    @Test
+    void testDocumentTooLarge() throws IOException {
+        TemplatePackage template = TemplatePackage.load(new File("samples/Template.docx"));
+
+        try (SegmentedDocxWriter writer = new SegmentedDocxWriter(template, new FileOutputStream(RESULT_FILE),
+                Deflater.DEFAULT_COMPRESSION)) {
+            writer.write(segment(template.getPrefix()));
+
+            // only the length is checked, so the content does not need to be that large
+            DeflateSegment large = new DeflateSegment(new byte[0], 0, 0xFFFFFFFFL);
+            assertThrows(ZipException.class, () -> writer.write(large));
+        }
+    }
+
+    private static DeflateSegment segment(String text) {
+        return DeflateSegment.compress(text.getBytes(StandardCharsets.UTF_8), Deflater.DEFAULT_COMPRESSION);
+    }
+}
@@ -0,0 +1,48 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+class SplitMarkerNormalizerTest {
+    @Test
+    void testNoMarkers() {
+        String xml = "<w:p><w:r><w:t>text</w:t></w:r></w:p>";
+        assertSame(xml, SplitMarkerNormalizer.normalize(xml));
+    }
+
+    @Test
+    void testCompleteMarkers() {
+        String xml = "<w:p><w:r><w:t>${Name}</w:t></w:r><w:r><w:t xml:space=\"preserve\"> ${City}</w:t></w:r></w:p>";
+        assertSame(xml, SplitMarkerNormalizer.normalize(xml));
+    }
+
+    @Test
+    void testSplitAcrossRuns() {
+        assertEquals("<w:p><w:r><w:rPr><w:u/></w:rPr><w:t>Dear ${Salutation}</w:t></w:r>" +
+                        "<w:r><w:rPr><w:b/></w:rPr><w:t>,</w:t></w:r></w:p>",
+                SplitMarkerNormalizer.normalize("<w:p><w:r><w:rPr><w:u/></w:rPr><w:t>Dear ${Salut</w:t></w:r>" +
+                        "<w:r><w:rPr><w:b/></w:rPr><w:t>ation},</w:t></w:r></w:p>"));
+    }
+
+    @Test
+    void testSplitAcrossManyRuns() {
+        assertEquals("<w:p><w:r><w:t>${Name}</w:t></w:r><w:proofErr w:type=\"spellStart\"/>" +
+                        "<w:r><w:t></w:t></w:r><w:r><w:t xml:space=\"preserve\"> and ${City}</w:t></w:r></w:p>",
+                SplitMarkerNormalizer.normalize("<w:p><w:r><w:t>$</w:t></w:r><w:proofErr w:type=\"spellStart\"/>" +
+                        "<w:r><w:t>{Na</w:t></w:r><w:r><w:t xml:space=\"preserve\">me} and ${City}</w:t></w:r></w:p>"));
+    }
+
+    @Test
+    void testNotAcrossParagraphs() {
+        String xml = "<w:p><w:r><w:t>${Na</w:t></w:r></w:p><w:p><w:r><w:t>me}</w:t></w:r></w:p>";
+        assertSame(xml, SplitMarkerNormalizer.normalize(xml));
+    }
+
+    @Test
+    void testOtherPrefix() {
+        assertEquals("<p><r><t>${Name}</t></r><r><t></t></r></p>",
+                SplitMarkerNormalizer.normalize("<p><r><t>${Na</t></r><r><t>me}</t></r></p>"));
+    }
+}
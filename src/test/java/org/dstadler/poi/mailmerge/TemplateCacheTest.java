@@ -0,0 +1,69 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TemplateCacheTest {
+    private static final File DIR = new File("build/templatecache");
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileUtils.deleteDirectory(DIR);
+        assertTrue(DIR.mkdirs());
+    }
+
+    @Test
+    void testHit() throws IOException {
+        TemplateCache cache = new TemplateCache(2);
+
+        TemplatePackage template = cache.get(new File("samples/Template.docx"));
+        assertSame(template, cache.get(new File("samples/Template.docx")));
+        assertSame(template, cache.get(new File("samples/../samples/Template.docx")));
+
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void testChangedContent() throws IOException {
+        File file = new File(DIR, "Template.docx");
+        FileUtils.copyFile(new File("samples/Template.docx"), file);
+
+        TemplateCache cache = new TemplateCache(2);
+        TemplatePackage template = cache.get(file);
+
+        FileUtils.copyFile(new File("samples/Template-TagSplitByFormatting.docx"), file);
+        TemplatePackage changed = cache.get(file);
+        assertNotSame(template, changed);
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void testEvictLeastRecentlyUsed() throws IOException {
+        TemplateCache cache = new TemplateCache(1);
+
+        TemplatePackage template = cache.get(new File("samples/Template.docx"));
+        cache.get(new File("samples/Template-TagSplitByFormatting.docx"));
+        assertEquals(1, cache.size());
+
+        assertNotSame(template, cache.get(new File("samples/Template.docx")));
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    void testInvalidSize() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new TemplateCache(0));
+    }
+}
@@ -0,0 +1,34 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class TemplatePackageTest {
+    @Test
+    void testLoad() throws IOException {
+        TemplatePackage template = TemplatePackage.load(new File("samples/Template.docx"));
+
+        assertEquals("word/document.xml", template.getDocumentEntry());
+        assertTrue(template.getPrefix().endsWith("<w:body>"), "Had: " + template.getPrefix());
+        assertEquals("</w:body></w:document>", template.getSuffix().trim());
+        assertTrue(template.getBody().contains("${Name}"), "Had: " + template.getBody());
+        assertTrue(template.getBody().endsWith("</w:sectPr>"), "Had: " + template.getBody());
+        assertTrue(template.getBytes().length > 0);
+        assertEquals(Set.of("Name", "Organisation", "Address", "Zip", "City", "Salutation", "Date"), template.getMarkers());
+    }
+
+    @Test
+    void testLoadInvalid() {
+        // POI reports invalid files with an IllegalArgumentException
+        assertThrows(IllegalArgumentException.class,
+                () -> TemplatePackage.load("some text".getBytes(StandardCharsets.UTF_8)));
+    }
+}
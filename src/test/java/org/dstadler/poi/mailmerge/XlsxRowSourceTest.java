@@ -0,0 +1,116 @@
+package org.dstadler.poi.mailmerge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class XlsxRowSourceTest {
+    private static final File TYPES_XLSX = new File("build/Types.xlsx");
+
+    @BeforeAll
+    static void setUpClass() {
+        assertTrue(new File("build").exists() || new File("build").mkdirs(), "Failed to create directory 'build'");
+    }
+
+    @Test
+    void testOpen() throws IOException {
+        try (RowSource source = RowSource.open(new File("samples/Lines.xlsx"))) {
+            assertInstanceOf(XlsxRowSource.class, source);
+        }
+    }
+
+    @Test
+    void testSameAsUsermodel() throws IOException {
+        assertSameRows(new File("samples/Lines.xlsx"));
+    }
+
+    @Test
+    void testCellTypes() throws IOException {
+        try (Workbook wb = new XSSFWorkbook()) {
+            Sheet sheet = wb.createSheet();
+            Row row = sheet.createRow(0);
+            row.createCell(1).setCellValue("Text");
+            row.createCell(2).setCellValue("Number");
+            row.createCell(4).setCellValue("Date");
+            row.createCell(5).setCellValue("Bool");
+            row.createCell(6).setCellValue("Formula");
+            row.createCell(7).setCellValue(42);
+
+            CellStyle dateStyle = wb.createCellStyle();
+            dateStyle.setDataFormat(wb.getCreationHelper().createDataFormat().getFormat("yyyy-mm-dd"));
+            CellStyle amountStyle = wb.createCellStyle();
+            amountStyle.setDataFormat(wb.getCreationHelper().createDataFormat().getFormat("#,##0.00"));
+
+            for (int rowNum = 1; rowNum <= 3; rowNum++) {
+                row = sheet.createRow(rowNum * 2);
+                row.createCell(1).setCellValue("value " + rowNum);
+                Cell cell = row.createCell(2);
+                cell.setCellValue(1234.5 * rowNum);
+                cell.setCellStyle(amountStyle);
+                row.createCell(3).setCellValue(-17.25);
+                cell = row.createCell(4);
+                cell.setCellValue(45000 + rowNum);
+                cell.setCellStyle(dateStyle);
+                row.createCell(5).setCellValue(rowNum % 2 == 0);
+                row.createCell(6).setCellFormula("C" + (rowNum * 2 + 1) + "*2");
+                row.createCell(7).setCellErrorValue(FormulaError.DIV0.getCode());
+                row.createCell(8).setCellValue("outside");
+            }
+            row.createCell(1).setBlank();
+
+            try (OutputStream stream = new FileOutputStream(TYPES_XLSX)) {
+                wb.write(stream);
+            }
+        }
+
+        assertSameRows(TYPES_XLSX);
+    }
+
+    @Test
+    void testColumns() throws IOException {
+        try (RowSource expected = new ExcelRowSource(new File("samples/Lines.xlsx"));
+             RowSource actual = new XlsxRowSource(new File("samples/Lines.xlsx"))) {
+            expected.setColumns(List.of("Name", "Date"));
+            actual.setColumns(List.of("Name", "Date"));
+
+            List<List<String>> rows = readAll(actual);
+            assertEquals(readAll(expected), rows);
+            assertEquals("Ginger Rogers", rows.get(0).get(0));
+            assertNull(rows.get(0).get(1));
+        }
+    }
+
+    private static void assertSameRows(File file) throws IOException {
+        try (RowSource expected = new ExcelRowSource(file);
+             RowSource actual = new XlsxRowSource(file)) {
+            assertEquals(expected.getHeaders(), actual.getHeaders());
+            assertEquals(readAll(expected), readAll(actual));
+        }
+    }
+
+    private static List<List<String>> readAll(RowSource source) {
+        List<List<String>> rows = new ArrayList<>();
+        for (List<String> row : source) {
+            rows.add(new ArrayList<>(row));
+        }
+        return rows;
+    }
+}